@@ -102,7 +102,6 @@ import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.regex.Pattern;
 
 import jp.hazuki.yuzubrowser.action.Action;
 import jp.hazuki.yuzubrowser.action.ActionCallback;
@@ -204,8 +203,8 @@ import jp.hazuki.yuzubrowser.toolbar.sub.WebViewFindDialog;
 import jp.hazuki.yuzubrowser.toolbar.sub.WebViewFindDialogFactory;
 import jp.hazuki.yuzubrowser.toolbar.sub.WebViewPageFastScroller;
 import jp.hazuki.yuzubrowser.useragent.UserAgentListActivity;
-import jp.hazuki.yuzubrowser.userjs.UserScript;
 import jp.hazuki.yuzubrowser.userjs.UserScriptDatabase;
+import jp.hazuki.yuzubrowser.userjs.UserScriptDispatcher;
 import jp.hazuki.yuzubrowser.userjs.UserScriptListActivity;
 import jp.hazuki.yuzubrowser.utils.ClipboardUtils;
 import jp.hazuki.yuzubrowser.utils.DisplayUtils;
@@ -224,6 +223,7 @@ import jp.hazuki.yuzubrowser.utils.app.LongPressFixActivity;
 import jp.hazuki.yuzubrowser.utils.graphics.SimpleLayerDrawable;
 import jp.hazuki.yuzubrowser.utils.graphics.TabListActionTextDrawable;
 import jp.hazuki.yuzubrowser.utils.handler.PauseHandler;
+import jp.hazuki.yuzubrowser.utils.net.RequestUrl;
 import jp.hazuki.yuzubrowser.utils.view.CopyableTextView;
 import jp.hazuki.yuzubrowser.utils.view.CustomCoordinatorLayout;
 import jp.hazuki.yuzubrowser.utils.view.MultiTouchGestureDetector;
@@ -301,7 +301,7 @@ public class BrowserActivity extends LongPressFixActivity implements WebBrowser,
     private SpeedDialHtml speedDialHtml;
     private FaviconAsyncManager mFaviconAsyncManager;
     private HardButtonActionManager mHardButtonManager;
-    private ArrayList<UserScript> mUserScriptList;
+    private UserScriptDispatcher mUserScriptDispatcher;
     private ArrayList<ResourceChecker> mResourceCheckerList;
     private AdBlockController adBlockController;
     private View mVideoLoadingProgressView;
@@ -327,7 +327,7 @@ public class BrowserActivity extends LongPressFixActivity implements WebBrowser,
     private final Runnable mSaveTabsRunnable = new Runnable() {
         @Override
         public void run() {
-            mTabManager.saveData();
+            mTabManager.saveDirtyData();
 
             int delay = AppData.auto_tab_save_delay.get();
             if (delay > 0)
@@ -539,6 +539,7 @@ public class BrowserActivity extends LongPressFixActivity implements WebBrowser,
         super.onPause();
         isResumed = false;
         dialogHandler.pause();
+        mTabManager.flush();
     }
 
     @Override
@@ -550,6 +551,7 @@ public class BrowserActivity extends LongPressFixActivity implements WebBrowser,
             adBlockController.onResume();
 
         mTabManager.saveData();
+        mTabManager.flush();
         mHandler.removeCallbacks(mSaveTabsRunnable);
         FaviconManager.getInstance(getApplicationContext()).save();
 
@@ -610,6 +612,7 @@ public class BrowserActivity extends LongPressFixActivity implements WebBrowser,
             mWebUploadHandler = null;
         }
         webFrameLayout.removeAllViews();
+        mTabManager.flush();
         mTabManager.destroy();
         if (mBrowserHistoryManager != null) {
             mBrowserHistoryManager.destroy();
@@ -1111,35 +1114,16 @@ public class BrowserActivity extends LongPressFixActivity implements WebBrowser,
 
     private void resetUserScript(boolean enable) {
         if (enable) {
-            mUserScriptList = new UserScriptDatabase(getApplicationContext()).getEnableJsDataList();
+            mUserScriptDispatcher = new UserScriptDispatcher(new UserScriptDatabase(getApplicationContext()).getEnableJsDataList());
         } else {
-            if (mUserScriptList != null)
-                mUserScriptList = null;
+            if (mUserScriptDispatcher != null)
+                mUserScriptDispatcher = null;
         }
     }
 
     private void applyUserScript(CustomWebView web, String url, boolean isStart) {
-        if (mUserScriptList != null) {
-            SCRIPT_LOOP:
-            for (UserScript script : mUserScriptList) {
-                if (isStart != script.isRunStart())
-                    continue;
-
-                if (script.getExclude() != null)
-                    for (Pattern pattern : script.getExclude()) {
-                        if (pattern.matcher(url).find())
-                            continue SCRIPT_LOOP;
-                    }
-
-                if (script.getInclude() != null)
-                    for (Pattern pattern : script.getInclude()) {
-                        if (pattern.matcher(url).find()) {
-                            web.evaluateJavascript(script.getRunnable(), null);
-
-                            continue SCRIPT_LOOP;
-                        }
-                    }
-            }
+        if (mUserScriptDispatcher != null) {
+            mUserScriptDispatcher.run(web, url, isStart);
         }
     }
 
@@ -2669,19 +2653,26 @@ public class BrowserActivity extends LongPressFixActivity implements WebBrowser,
                 }
             }
 
-            if (adBlockController != null) {
+            AdBlockController controller = adBlockController;
+            ArrayList<ResourceChecker> checkers = mResourceCheckerList;
+            if (controller == null && checkers == null)
+                return null;
+
+            RequestUrl url = new RequestUrl(request.getUrl());
+            if (controller != null) {
                 TabIndexData tabIndexData = mTabManager.getIndexData(view.getIdentityId());
-                Uri uri = null;
-                if (tabIndexData != null && tabIndexData.getOriginalUrl() != null)
-                    uri = Uri.parse(tabIndexData.getOriginalUrl());
+                RequestUrl pageUrl = null;
+                if (tabIndexData != null)
+                    pageUrl = tabIndexData.getOriginalRequestUrl();
 
-                if (adBlockController.isBlock(uri, request.getUrl())) {
-                    return adBlockController.createDummy(request.getUrl());
+                if (controller.isBlock(pageUrl, url)) {
+                    return controller.createDummy(request.getUrl());
                 }
             }
-            if (mResourceCheckerList != null) {
-                for (ResourceChecker checker : mResourceCheckerList) {
-                    switch (checker.check(request.getUrl())) {
+            if (checkers != null) {
+                for (ResourceChecker checker : checkers) {
+                    int result = checker.check(url);
+                    switch (result) {
                         case ResourceChecker.SHOULD_RUN:
                             return checker.getResource(getApplicationContext());
                         case ResourceChecker.SHOULD_BREAK:
@@ -2689,7 +2680,7 @@ public class BrowserActivity extends LongPressFixActivity implements WebBrowser,
                         case ResourceChecker.SHOULD_CONTINUE:
                             continue;
                         default:
-                            throw new RuntimeException("unknown : " + checker.check(request.getUrl()));
+                            throw new RuntimeException("unknown : " + result);
                     }
                 }
             }
@@ -3571,7 +3562,7 @@ public class BrowserActivity extends LongPressFixActivity implements WebBrowser,
                 }
                 break;
                 case SingleAction.TOGGLE_USERJS: {
-                    boolean to = mUserScriptList == null;
+                    boolean to = mUserScriptDispatcher == null;
                     Toast.makeText(getApplicationContext(), (to) ? R.string.toggle_enable : R.string.toggle_disable, Toast.LENGTH_SHORT).show();
                     resetUserScript(to);
                     MainTabData tab = mTabManager.get(target);
@@ -4373,7 +4364,7 @@ public class BrowserActivity extends LongPressFixActivity implements WebBrowser,
                         return res.getDrawable(R.drawable.ic_cookie_disable_24dp, getTheme());
                 }
                 case SingleAction.TOGGLE_USERJS: {
-                    if (mUserScriptList != null)
+                    if (mUserScriptDispatcher != null)
                         return res.getDrawable(R.drawable.ic_memory_white_24dp, getTheme());
                     else
                         return res.getDrawable(R.drawable.ic_memory_white_disable_24px, getTheme());
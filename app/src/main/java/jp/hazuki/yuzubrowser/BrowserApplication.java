@@ -26,6 +26,7 @@ import com.crashlytics.android.core.CrashlyticsCore;
 import java.io.File;
 
 import io.fabric.sdk.android.Fabric;
+import jp.hazuki.yuzubrowser.favicon.FaviconManager;
 import jp.hazuki.yuzubrowser.settings.data.AppData;
 import jp.hazuki.yuzubrowser.utils.AppUtils;
 import jp.hazuki.yuzubrowser.utils.CrashlyticsUtils;
@@ -59,6 +60,12 @@ public class BrowserApplication extends Application {
         ErrorReport.setDetailedLog(AppData.detailed_log.get());
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        FaviconManager.trimMemory(level);
+    }
+
     public static File getExternalUserDirectory() {
         return new File(Environment.getExternalStorageDirectory() + File.separator + "YuzuBrowser" + File.separator);
     }
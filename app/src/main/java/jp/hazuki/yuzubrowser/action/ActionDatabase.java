@@ -6,8 +6,10 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.text.TextUtils;
+import android.util.LongSparseArray;
 
 import java.io.File;
+import java.util.HashMap;
 
 import jp.hazuki.yuzubrowser.utils.Logger;
 
@@ -20,14 +22,50 @@ public class ActionDatabase {
     public static final int COLUMN_ID_INDEX = 0;
     public static final int COLUMN_ACTION_INDEX = 1;
 
+    /* database name -> decoded actions, shared by all the instances of the same database */
+    private static final HashMap<String, ActionCache> sCaches = new HashMap<>();
+
     private final SQLiteHelper mOpenHelper;
+    private final ActionCache mCache;
 
     public ActionDatabase(Context context, String name) {
         mOpenHelper = new SQLiteHelper(context, name);
+        mCache = getCache(name);
     }
 
     public ActionDatabase(Context context, File file) {
         mOpenHelper = new SQLiteHelper(context, file.getAbsolutePath());//before 2.1, this throws exception
+        mCache = getCache(file.getAbsolutePath());
+    }
+
+    private static ActionCache getCache(String name) {
+        synchronized (sCaches) {
+            ActionCache cache = sCaches.get(name);
+            if (cache == null) {
+                cache = new ActionCache();
+                sCaches.put(name, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Decodes all the actions at once, after this {@link #get(long)} does not touch the database.
+     */
+    public void load() {
+        synchronized (mCache) {
+            if (mCache.loaded) return;
+
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            Cursor cursor = db.query(TABLE_NAME, null, null, null, null, null, null);
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(COLUMN_ID_INDEX);
+                if (mCache.actions.indexOfKey(id) < 0)
+                    mCache.actions.put(id, decode(cursor.getString(COLUMN_ACTION_INDEX)));
+            }
+            cursor.close();
+            mCache.loaded = true;
+        }
     }
 
     public long add(Action action) {
@@ -38,7 +76,13 @@ public class ActionDatabase {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         ContentValues values = new ContentValues();
         values.put(COLUMN_ACTION, jsonstr);
-        return db.insert(TABLE_NAME, null, values);
+        long id = db.insert(TABLE_NAME, null, values);
+        if (id >= 0) {
+            synchronized (mCache) {
+                mCache.actions.put(id, decode(jsonstr));
+            }
+        }
+        return id;
     }
 
     public boolean update(long id, Action action) {
@@ -51,6 +95,9 @@ public class ActionDatabase {
         values.put(COLUMN_ACTION, jsonstr);
         db.update(TABLE_NAME, values, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
         //db.close();
+        synchronized (mCache) {
+            mCache.actions.put(id, decode(jsonstr));
+        }
         return true;
     }
 
@@ -58,24 +105,50 @@ public class ActionDatabase {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         db.delete(TABLE_NAME, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
         //db.close();
+        synchronized (mCache) {
+            mCache.actions.put(id, null);
+        }
     }
 
+    /**
+     * @return the decoded action, which is shared and must not be modified
+     */
     public Action get(long id) {
-        Action action = null;
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        Cursor cursor = db.query(TABLE_NAME, null, COLUMN_ID + " = ?", new String[]{String.valueOf(id)}, null, null, null);
-        if (cursor.moveToFirst()) {
-            action = new Action();
-            if (!action.fromJsonString(cursor.getString(COLUMN_ACTION_INDEX))) {
-                Logger.e(TAG, "action.fromJsonString failed");
-                action = null;
+        synchronized (mCache) {
+            int index = mCache.actions.indexOfKey(id);
+            if (index >= 0)
+                return mCache.actions.valueAt(index);
+            if (mCache.loaded)
+                return null;
+
+            Action action = null;
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            Cursor cursor = db.query(TABLE_NAME, null, COLUMN_ID + " = ?", new String[]{String.valueOf(id)}, null, null, null);
+            if (cursor.moveToFirst()) {
+                action = decode(cursor.getString(COLUMN_ACTION_INDEX));
             }
+            cursor.close();
+            //db.close();
+            mCache.actions.put(id, action);
+            return action;
+        }
+    }
+
+    private static Action decode(String jsonstr) {
+        Action action = new Action();
+        if (!action.fromJsonString(jsonstr)) {
+            Logger.e(TAG, "action.fromJsonString failed");
+            return null;
         }
-        cursor.close();
-        //db.close();
         return action;
     }
 
+    private static final class ActionCache {
+        /* a null value is a known missing or broken row */
+        final LongSparseArray<Action> actions = new LongSparseArray<>();
+        boolean loaded;
+    }
+
     private static final class SQLiteHelper extends SQLiteOpenHelper {
         private static final int DB_VERSION = 1;
 
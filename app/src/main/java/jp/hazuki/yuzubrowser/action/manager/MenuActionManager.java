@@ -31,8 +31,12 @@ public class MenuActionManager extends ListActionManager {
     }
 
     public static MenuActionManager getInstance(Context context) {
-        MenuActionManager manager = new MenuActionManager();
-        manager.load(context);
-        return manager;
+        if (sInstance == null) {
+            sInstance = new MenuActionManager();
+            sInstance.load(context);
+        }
+        return sInstance;
     }
+
+    private static MenuActionManager sInstance = null;
 }
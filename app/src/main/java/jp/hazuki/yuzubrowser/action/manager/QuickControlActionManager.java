@@ -36,8 +36,12 @@ public class QuickControlActionManager extends ListActionManager {
     }
 
     public static QuickControlActionManager getInstance(Context context) {
-        QuickControlActionManager manager = new QuickControlActionManager();
-        manager.load(context);
-        return manager;
+        if (sInstance == null) {
+            sInstance = new QuickControlActionManager();
+            sInstance.load(context);
+        }
+        return sInstance;
     }
+
+    private static QuickControlActionManager sInstance = null;
 }
@@ -18,28 +18,42 @@ package jp.hazuki.yuzubrowser.adblock;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.webkit.WebResourceResponse;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import jp.hazuki.yuzubrowser.utils.ErrorReport;
 import jp.hazuki.yuzubrowser.utils.IOUtils;
-import jp.hazuki.yuzubrowser.utils.fastmatch.FastMatcher;
 import jp.hazuki.yuzubrowser.utils.fastmatch.FastMatcherList;
+import jp.hazuki.yuzubrowser.utils.net.RequestUrl;
 
 public class AdBlockController {
     private static final EmptyInputStream DUMMY_TEXT = new EmptyInputStream();
+    private static final long READY_TIMEOUT = 500;
+    private static final long SAVE_INTERVAL = 5 * 60 * 1000;
+
+    private static final ThreadPoolExecutor loader = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
     private byte[] DUMMY_IMAGE;
 
+    private final Context appContext;
+    private final CountDownLatch ready = new CountDownLatch(1);
     private AdBlockManager manager;
-    private FastMatcherList blackList;
-    private FastMatcherList whiteList;
-    private FastMatcherList whitePageList;
+    private volatile MatcherSet matcherSet;
+    private volatile long nextSave;
+    private final AtomicBoolean saveQueued = new AtomicBoolean();
 
     public AdBlockController(Context context) {
-        manager = new AdBlockManager(context);
+        appContext = context.getApplicationContext();
 
         try {
             DUMMY_IMAGE = IOUtils.readByte(context.getResources().getAssets().open("blank.png"));
@@ -47,49 +61,95 @@ public class AdBlockController {
             ErrorReport.printAndWriteLog(e);
         }
 
+        nextSave = SystemClock.uptimeMillis() + SAVE_INTERVAL;
         update();
     }
 
     public void update() {
-        new Thread(new Runnable() {
+        loader.execute(new Runnable() {
             @Override
             public void run() {
-                blackList = manager.getFastMatcherCachedList(AdBlockManager.BLACK_TABLE_NAME);
-                whiteList = manager.getFastMatcherCachedList(AdBlockManager.WHITE_TABLE_NAME);
-                whitePageList = manager.getFastMatcherCachedList(AdBlockManager.WHITE_PAGE_TABLE_NAME);
+                // keep the hits of the lists being replaced
+                saveOrder.run();
+                AdBlockManager manager = getManager();
+                publish(new MatcherSet(
+                        manager.getFastMatcherCachedList(AdBlockManager.BLACK_TABLE_NAME),
+                        manager.getFastMatcherCachedList(AdBlockManager.WHITE_TABLE_NAME),
+                        manager.getFastMatcherCachedList(AdBlockManager.WHITE_PAGE_TABLE_NAME)));
             }
-        }).run();
+        });
     }
 
-    public boolean isBlock(Uri pageUri, Uri uri) {
-        if (whitePageList == null || whiteList == null || blackList == null) return false;
-        if (pageUri != null) {
-            for (FastMatcher matcher : whitePageList.getMatcherList())
-                if (matcher.match(pageUri))
-                    return false;
+    /**
+     * Requests arriving before the first list is loaded wait at most {@link #READY_TIMEOUT} ms,
+     * and are let through if it is still not ready.
+     */
+    public boolean isBlock(RequestUrl pageUrl, RequestUrl url) {
+        MatcherSet set = matcherSet;
+        if (set == null) {
+            try {
+                ready.await(READY_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            set = matcherSet;
+            if (set == null) return false;
         }
 
+        if (SystemClock.uptimeMillis() > nextSave && saveQueued.compareAndSet(false, true))
+            loader.execute(saveOrder);
 
-        for (FastMatcher matcher : whiteList.getMatcherList())
-            if (matcher.match(uri))
-                return false;
+        if (pageUrl != null && set.whitePageList.match(pageUrl))
+            return false;
 
-        for (FastMatcher matcher : blackList.getMatcherList())
-            if (matcher.match(uri))
-                return true;
+        return !set.whiteList.match(url) && set.blackList.match(url);
+    }
 
-        return false;
+    public boolean isReady() {
+        return matcherSet != null;
     }
 
     public void onResume() {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                manager.updateOrder(AdBlockManager.BLACK_TABLE_NAME, blackList);
-                manager.updateOrder(AdBlockManager.WHITE_TABLE_NAME, whiteList);
-                manager.updateOrder(AdBlockManager.WHITE_PAGE_TABLE_NAME, whitePageList);
-            }
-        }).run();
+        saveQueued.set(true);
+        loader.execute(saveOrder);
+    }
+
+    private final Runnable saveOrder = new Runnable() {
+        @Override
+        public void run() {
+            nextSave = SystemClock.uptimeMillis() + SAVE_INTERVAL;
+            saveQueued.set(false);
+
+            MatcherSet set = matcherSet;
+            if (set == null) return;
+            boolean hit = set.blackList.drainHits();
+            hit |= set.whiteList.drainHits();
+            hit |= set.whitePageList.drainHits();
+            if (!hit) return;
+
+            AdBlockManager manager = getManager();
+            MatcherSet sorted = new MatcherSet(
+                    manager.updateOrder(AdBlockManager.BLACK_TABLE_NAME, set.blackList),
+                    manager.updateOrder(AdBlockManager.WHITE_TABLE_NAME, set.whiteList),
+                    manager.updateOrder(AdBlockManager.WHITE_PAGE_TABLE_NAME, set.whitePageList));
+            // do not overwrite a list reloaded in the meantime
+            if (matcherSet == set)
+                publish(sorted);
+        }
+    };
+
+    private AdBlockManager getManager() {
+        if (manager == null)
+            manager = new AdBlockManager(appContext);
+        return manager;
+    }
+
+    private void publish(MatcherSet set) {
+        set.blackList.compile();
+        set.whiteList.compile();
+        set.whitePageList.compile();
+        matcherSet = set;
+        ready.countDown();
     }
 
     public WebResourceResponse createDummy(Uri uri) {
@@ -102,6 +162,18 @@ public class AdBlockController {
         }
     }
 
+    private static final class MatcherSet {
+        private final FastMatcherList blackList;
+        private final FastMatcherList whiteList;
+        private final FastMatcherList whitePageList;
+
+        private MatcherSet(FastMatcherList blackList, FastMatcherList whiteList, FastMatcherList whitePageList) {
+            this.blackList = blackList;
+            this.whiteList = whiteList;
+            this.whitePageList = whitePageList;
+        }
+    }
+
     private static final class EmptyInputStream extends InputStream {
         @Override
         public int read() throws IOException {
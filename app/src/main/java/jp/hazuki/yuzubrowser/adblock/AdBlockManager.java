@@ -174,13 +174,19 @@ public class AdBlockManager {
         db.delete(table, null, null);
     }
 
-    void updateOrder(String table, FastMatcherList list) {
-        if (list == null) return;
-        list.sort();
+    /**
+     * Saves hit counts and writes a cache sorted by frequency.
+     * The given list is not modified, the sorted copy is returned.
+     * Hits must have been drained with {@link FastMatcherList#drainHits()} on the same thread.
+     */
+    FastMatcherList updateOrder(String table, FastMatcherList list) {
+        if (list == null) return null;
+        FastMatcherList sorted = new FastMatcherList(list);
+        sorted.sort();
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         db.beginTransaction();
         try {
-            for (FastMatcher matcher : list.getMatcherList()) {
+            for (FastMatcher matcher : sorted.getMatcherList()) {
                 if (matcher.isUpdate()) {
                     ContentValues values = new ContentValues();
                     values.put(COLUMN_COUNT, matcher.getFrequency());
@@ -193,8 +199,8 @@ public class AdBlockManager {
         } finally {
             db.endTransaction();
         }
-        list.setDbTime(System.currentTimeMillis());
-        FastMatcherCache.save(appContext, table, list);
+        FastMatcherCache.save(appContext, table, sorted);
+        return sorted;
     }
 
     FastMatcherList getFastMatcherCachedList(String table) {
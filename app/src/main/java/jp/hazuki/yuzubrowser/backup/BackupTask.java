@@ -28,6 +28,7 @@ import java.net.URI;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import jp.hazuki.yuzubrowser.bookmark.BookmarkManager;
 import jp.hazuki.yuzubrowser.utils.ErrorReport;
 
 public class BackupTask extends AsyncTaskLoader<Boolean> {
@@ -42,6 +43,8 @@ public class BackupTask extends AsyncTaskLoader<Boolean> {
     @Override
     public Boolean loadInBackground() {
         BackupManager manager = new BackupManager(getContext());
+        // the bookmark journal is only valid next to the exact file it was written for
+        new BookmarkManager(getContext()).write();
         try {
             if (!dest.getParentFile().exists()) {
                 if (!dest.getParentFile().mkdirs()) {
@@ -31,9 +31,10 @@ public class BookmarkFolder extends BookmarkItem implements Serializable {
     public BookmarkFolder(List<MainTabData> list, long id) {
         super(null, id);
         this.list = new ArrayList<>(list.size());
+        long itemId = list.isEmpty() ? 0 : BookmarkIdGenerator.reserve(list.size());
         for (MainTabData tab : list)
             if (!TextUtils.isEmpty(tab.getUrl()))
-                this.list.add(new BookmarkSite((tab.getTitle() != null) ? tab.getTitle() : tab.getUrl(), tab.getUrl(), BookmarkIdGenerator.getNewId()));
+                this.list.add(new BookmarkSite((tab.getTitle() != null) ? tab.getTitle() : tab.getUrl(), tab.getUrl(), itemId++));
         this.parent = null;
     }
 
@@ -49,6 +49,7 @@ public abstract class BookmarkItem implements Serializable {
         long itemId;
         if (COLUMN_NAME_ID.equals(parser.getCurrentName()) && parser.nextToken() == JsonToken.VALUE_NUMBER_INT) {
             itemId = parser.getLongValue();
+            BookmarkIdGenerator.observe(itemId);
             parser.nextToken();
         } else {
             itemId = BookmarkIdGenerator.getNewId();
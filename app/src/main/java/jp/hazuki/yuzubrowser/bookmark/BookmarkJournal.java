@@ -0,0 +1,274 @@
+package jp.hazuki.yuzubrowser.bookmark;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import jp.hazuki.yuzubrowser.utils.ErrorReport;
+
+/**
+ * Edits made to the bookmark tree since the last full write, one json object per line.
+ * The first line records the length and time of the snapshot the edits apply to,
+ * so a journal left behind by a replaced or rewritten snapshot is ignored.
+ */
+class BookmarkJournal implements Serializable {
+    private static final String JSON_NAME_LENGTH = "len";
+    private static final String JSON_NAME_MODIFIED = "mod";
+    private static final String JSON_NAME_OP = "op";
+    private static final String JSON_NAME_ID = "id";
+    private static final String JSON_NAME_PARENT = "parent";
+    private static final String JSON_NAME_INDEX = "index";
+    private static final String JSON_NAME_TITLE = "title";
+    private static final String JSON_NAME_URL = "url";
+    private static final String JSON_NAME_ITEM = "item";
+
+    private static final int OP_ADD = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_MOVE = 3;
+    private static final int OP_UPDATE = 4;
+
+    private final File mFile;
+    private final File mSnapshot;
+    private final JsonFactory mFactory = new JsonFactory();
+    private final ArrayList<String> mPending = new ArrayList<>();
+    private int mSize;
+
+    BookmarkJournal(File file, File snapshot) {
+        mFile = file;
+        mSnapshot = snapshot;
+    }
+
+    /**
+     * @return records written and waiting to be written
+     */
+    int size() {
+        return mSize + mPending.size();
+    }
+
+    boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+
+    void add(BookmarkFolder parent, int index, BookmarkItem item) {
+        try {
+            StringWriter writer = new StringWriter();
+            try (JsonGenerator generator = begin(writer, OP_ADD)) {
+                generator.writeNumberField(JSON_NAME_PARENT, parent.getId());
+                generator.writeNumberField(JSON_NAME_INDEX, index);
+                generator.writeFieldName(JSON_NAME_ITEM);
+                item.write(generator);
+                generator.writeEndObject();
+            }
+            mPending.add(writer.toString());
+        } catch (IOException e) {
+            ErrorReport.printAndWriteLog(e);
+        }
+    }
+
+    void remove(long id) {
+        try {
+            StringWriter writer = new StringWriter();
+            try (JsonGenerator generator = begin(writer, OP_REMOVE)) {
+                generator.writeNumberField(JSON_NAME_ID, id);
+                generator.writeEndObject();
+            }
+            mPending.add(writer.toString());
+        } catch (IOException e) {
+            ErrorReport.printAndWriteLog(e);
+        }
+    }
+
+    void move(long id, BookmarkFolder parent, int index) {
+        try {
+            StringWriter writer = new StringWriter();
+            try (JsonGenerator generator = begin(writer, OP_MOVE)) {
+                generator.writeNumberField(JSON_NAME_ID, id);
+                generator.writeNumberField(JSON_NAME_PARENT, parent.getId());
+                generator.writeNumberField(JSON_NAME_INDEX, index);
+                generator.writeEndObject();
+            }
+            mPending.add(writer.toString());
+        } catch (IOException e) {
+            ErrorReport.printAndWriteLog(e);
+        }
+    }
+
+    void update(BookmarkItem item) {
+        try {
+            StringWriter writer = new StringWriter();
+            try (JsonGenerator generator = begin(writer, OP_UPDATE)) {
+                generator.writeNumberField(JSON_NAME_ID, item.getId());
+                generator.writeStringField(JSON_NAME_TITLE, item.title);
+                if (item instanceof BookmarkSite)
+                    generator.writeStringField(JSON_NAME_URL, ((BookmarkSite) item).url);
+                generator.writeEndObject();
+            }
+            mPending.add(writer.toString());
+        } catch (IOException e) {
+            ErrorReport.printAndWriteLog(e);
+        }
+    }
+
+    private JsonGenerator begin(Writer writer, int op) throws IOException {
+        JsonGenerator generator = mFactory.createGenerator(writer);
+        generator.writeStartObject();
+        generator.writeNumberField(JSON_NAME_OP, op);
+        return generator;
+    }
+
+    /**
+     * Appends the pending records to the file.
+     */
+    boolean flush() {
+        if (mPending.isEmpty()) return true;
+
+        boolean header = !mFile.exists();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mFile, true), StandardCharsets.UTF_8))) {
+            if (header) {
+                try (JsonGenerator generator = mFactory.createGenerator(writer)) {
+                    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                    generator.writeStartObject();
+                    generator.writeNumberField(JSON_NAME_LENGTH, mSnapshot.length());
+                    generator.writeNumberField(JSON_NAME_MODIFIED, mSnapshot.lastModified());
+                    generator.writeEndObject();
+                }
+                writer.write('\n');
+            }
+            for (String record : mPending) {
+                writer.write(record);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            ErrorReport.printAndWriteLog(e);
+            return false;
+        }
+        mSize += mPending.size();
+        mPending.clear();
+        return true;
+    }
+
+    /**
+     * Drops the journal once a full snapshot has been written.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    void clear() {
+        mFile.delete();
+        mPending.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Applies the records to the tree just read from the snapshot.
+     * A record cut by a crash ends the replay.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    void replay(BookmarkManager manager) {
+        mPending.clear();
+        mSize = 0;
+        if (!mFile.exists()) return;
+
+        try (JsonParser parser = mFactory.createParser(mFile)) {
+            if (!readHeader(parser)) {
+                mFile.delete();
+                return;
+            }
+
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                if (!readRecord(parser, manager)) break;
+                mSize++;
+            }
+        } catch (IOException e) {
+            ErrorReport.printAndWriteLog(e);
+        }
+    }
+
+    private boolean readHeader(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) return false;
+        long length = -1;
+        long modified = -1;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if (JSON_NAME_LENGTH.equals(name))
+                length = parser.getLongValue();
+            else if (JSON_NAME_MODIFIED.equals(name))
+                modified = parser.getLongValue();
+            else
+                parser.skipChildren();
+        }
+        return length == mSnapshot.length() && modified == mSnapshot.lastModified();
+    }
+
+    private boolean readRecord(JsonParser parser, BookmarkManager manager) throws IOException {
+        int op = 0;
+        long id = -1;
+        long parent = -1;
+        int index = -1;
+        String title = null;
+        String url = null;
+        BookmarkItem item = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            switch (name) {
+                case JSON_NAME_OP:
+                    op = parser.getIntValue();
+                    break;
+                case JSON_NAME_ID:
+                    id = parser.getLongValue();
+                    break;
+                case JSON_NAME_PARENT:
+                    parent = parser.getLongValue();
+                    break;
+                case JSON_NAME_INDEX:
+                    index = parser.getIntValue();
+                    break;
+                case JSON_NAME_TITLE:
+                    title = parser.getValueAsString();
+                    break;
+                case JSON_NAME_URL:
+                    url = parser.getValueAsString();
+                    break;
+                case JSON_NAME_ITEM: {
+                    BookmarkFolder folder = manager.getFolder(parent);
+                    item = folder.read(parser, folder);
+                    if (item == null) return false;
+                    break;
+                }
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        if (parser.getCurrentToken() != JsonToken.END_OBJECT) return false;
+
+        switch (op) {
+            case OP_ADD:
+                if (item != null)
+                    manager.applyAdd(parent, index, item);
+                break;
+            case OP_REMOVE:
+                manager.applyRemove(id);
+                break;
+            case OP_MOVE:
+                manager.applyMove(id, parent, index);
+                break;
+            case OP_UPDATE:
+                manager.applyUpdate(id, title, url);
+                break;
+        }
+        return true;
+    }
+}
@@ -15,19 +15,31 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collection;
+import java.util.HashMap;
 
 import jp.hazuki.yuzubrowser.R;
+import jp.hazuki.yuzubrowser.search.LocalSuggestIndex;
 import jp.hazuki.yuzubrowser.utils.ErrorReport;
 
+/**
+ * Bookmark tree with an id index.
+ * Edits go through this class and are journaled, {@link #save()} appends them to the journal
+ * and {@link #write()} replaces the whole file.
+ */
 public class BookmarkManager implements Serializable {
+    private static final int JOURNAL_COMPACT_SIZE = 256;
+
     private final File mFile;
+    private final BookmarkJournal mJournal;
     private BookmarkFolder mRoot = new BookmarkFolder(null, null, -1);
-    private List<BookmarkItem> mItems = new ArrayList<>();
+    /* id -> item and id -> folder containing it */
+    private final HashMap<Long, BookmarkItem> mIndex = new HashMap<>();
+    private final HashMap<Long, BookmarkFolder> mParents = new HashMap<>();
 
     public BookmarkManager(Context context) {
         mFile = new File(context.getDir("bookmark1", Context.MODE_PRIVATE), "bookmark1.dat");
+        mJournal = new BookmarkJournal(new File(mFile.getParentFile(), "bookmark1.journal"), mFile);
         load();
         mRoot.title = context.getString(R.string.bookmark);
     }
@@ -37,11 +49,66 @@ public class BookmarkManager implements Serializable {
     }
 
     public void add(BookmarkItem item) {
-        mRoot.add(item);
+        add(mRoot, item);
+    }
+
+    public void add(BookmarkFolder folder, BookmarkItem item) {
+        folder.add(item);
+        if (item instanceof BookmarkFolder)
+            ((BookmarkFolder) item).parent = folder;
+        index(folder, item);
+        mJournal.add(folder, folder.list.size() - 1, item);
+    }
+
+    public void remove(BookmarkFolder folder, int index) {
+        BookmarkItem item = folder.list.remove(index);
+        unindex(item);
+        mJournal.remove(item.getId());
+    }
+
+    public void removeAll(BookmarkFolder folder, Collection<BookmarkItem> items) {
+        for (BookmarkItem item : items) {
+            if (folder.list.remove(item)) {
+                unindex(item);
+                mJournal.remove(item.getId());
+            }
+        }
+    }
+
+    /**
+     * Moves the items at the end of another folder.
+     */
+    public void moveAll(BookmarkFolder from, BookmarkFolder to, Collection<BookmarkItem> items) {
+        for (BookmarkItem item : items) {
+            if (from.list.remove(item)) {
+                to.add(item);
+                if (item instanceof BookmarkFolder)
+                    ((BookmarkFolder) item).parent = to;
+                mParents.put(item.getId(), to);
+                mJournal.move(item.getId(), to, to.list.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Moves an item inside its folder.
+     */
+    public void move(BookmarkFolder folder, int from, int to) {
+        BookmarkItem item = folder.list.remove(from);
+        folder.list.add(to, item);
+        mJournal.move(item.getId(), folder, to);
+    }
+
+    /**
+     * Records a change of title or url made to the item.
+     */
+    public void update(BookmarkItem item) {
+        mJournal.update(item);
     }
 
     public void setRoot(BookmarkFolder root) {
         mRoot = root;
+        reindex();
     }
 
     public void setRootTitle(String title) {
@@ -54,56 +121,150 @@ public class BookmarkManager implements Serializable {
 
     public boolean load() {
         mRoot.clear();
+        mIndex.clear();
+        mParents.clear();
 
-        if (!mFile.exists() || mFile.isDirectory()) return true;
-
-        try (InputStream is = new BufferedInputStream(new FileInputStream(mFile))) {
+        if (mFile.exists() && !mFile.isDirectory()) {
+            try (InputStream is = new BufferedInputStream(new FileInputStream(mFile))) {
 
-            JsonFactory factory = new JsonFactory();
-            JsonParser parser = factory.createParser(is);
-            mRoot.readForRoot(parser);
-            parser.close();
-            return true;
-        } catch (IOException e) {
-            ErrorReport.printAndWriteLog(e);
+                JsonFactory factory = new JsonFactory();
+                JsonParser parser = factory.createParser(is);
+                mRoot.readForRoot(parser);
+                parser.close();
+            } catch (IOException e) {
+                ErrorReport.printAndWriteLog(e);
+                return false;
+            }
         }
-        return false;
+
+        reindex();
+        mJournal.replay(this);
+        return true;
     }
 
+    /**
+     * Persists the edits made since the last call, rewriting the whole file only when the journal got long.
+     */
+    public boolean save() {
+        if (!mFile.exists() || mJournal.size() >= JOURNAL_COMPACT_SIZE)
+            return write();
+        boolean saved = mJournal.flush();
+        LocalSuggestIndex.onBookmarkChanged(mRoot);
+        return saved;
+    }
+
+    /**
+     * Replaces the file with the whole tree, and drops the journal.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
     public boolean write() {
-        if (!mFile.exists()) {
+        if (!mFile.getParentFile().exists()) {
             mFile.getParentFile().mkdirs();
         }
 
-        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(mFile))) {
+        File tmp = new File(mFile.getParentFile(), mFile.getName() + ".tmp");
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp))) {
 
             JsonFactory factory = new JsonFactory();
             JsonGenerator generator = factory.createGenerator(os);
             mRoot.writeForRoot(generator);
             generator.close();
-            return true;
         } catch (IOException e) {
             ErrorReport.printAndWriteLog(e);
+            tmp.delete();
+            return false;
+        }
+
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            return false;
         }
-        return false;
+        mJournal.clear();
+        // items may have been added to folders directly, e.g. by the html importer
+        reindex();
+        LocalSuggestIndex.onBookmarkChanged(mRoot);
+        return true;
     }
 
     public BookmarkItem get(long id) {
         if (id < 0) return null;
-        return get(id, mRoot);
-    }
-
-    private BookmarkItem get(long id, BookmarkFolder root) {
-        for (BookmarkItem item : root.list) {
-            if (item.getId() == id) {
-                return item;
-            } else if (item instanceof BookmarkFolder) {
-                BookmarkItem inner = get(id, (BookmarkFolder) item);
-                if (inner != null) {
-                    return inner;
-                }
-            }
+        return mIndex.get(id);
+    }
+
+    BookmarkFolder getFolder(long id) {
+        if (id == mRoot.getId()) return mRoot;
+        BookmarkItem item = mIndex.get(id);
+        if (item instanceof BookmarkFolder) return (BookmarkFolder) item;
+        // detached folder, whatever is read into it is dropped
+        return new BookmarkFolder(null, null, -1);
+    }
+
+    void applyAdd(long parentId, int index, BookmarkItem item) {
+        if (mIndex.containsKey(item.getId())) return;
+        BookmarkFolder parent = getFolder(parentId);
+        if (parent != mRoot && !mIndex.containsKey(parentId)) return;
+        if (index >= 0 && index <= parent.list.size())
+            parent.list.add(index, item);
+        else
+            parent.list.add(item);
+        index(parent, item);
+    }
+
+    void applyRemove(long id) {
+        BookmarkItem item = mIndex.get(id);
+        BookmarkFolder parent = mParents.get(id);
+        if (item == null || parent == null) return;
+        parent.list.remove(item);
+        unindex(item);
+    }
+
+    void applyMove(long id, long parentId, int index) {
+        BookmarkItem item = mIndex.get(id);
+        BookmarkFolder from = mParents.get(id);
+        BookmarkFolder to = getFolder(parentId);
+        if (item == null || from == null || (to != mRoot && !mIndex.containsKey(parentId))) return;
+        from.list.remove(item);
+        if (index >= 0 && index <= to.list.size())
+            to.list.add(index, item);
+        else
+            to.list.add(item);
+        if (item instanceof BookmarkFolder)
+            ((BookmarkFolder) item).parent = to;
+        mParents.put(id, to);
+    }
+
+    void applyUpdate(long id, String title, String url) {
+        BookmarkItem item = mIndex.get(id);
+        if (item == null) return;
+        item.title = title;
+        if (item instanceof BookmarkSite)
+            ((BookmarkSite) item).url = url;
+    }
+
+    private void reindex() {
+        mIndex.clear();
+        mParents.clear();
+        for (BookmarkItem item : mRoot.list)
+            index(mRoot, item);
+    }
+
+    private void index(BookmarkFolder parent, BookmarkItem item) {
+        mIndex.put(item.getId(), item);
+        mParents.put(item.getId(), parent);
+        if (item instanceof BookmarkFolder) {
+            BookmarkFolder folder = (BookmarkFolder) item;
+            folder.parent = parent;
+            for (BookmarkItem child : folder.list)
+                index(folder, child);
+        }
+    }
+
+    private void unindex(BookmarkItem item) {
+        mIndex.remove(item.getId());
+        mParents.remove(item.getId());
+        if (item instanceof BookmarkFolder) {
+            for (BookmarkItem child : ((BookmarkFolder) item).list)
+                unindex(child);
         }
-        return null;
     }
 }
@@ -5,18 +5,21 @@ import android.content.Context;
 import android.os.Handler;
 import android.widget.Toast;
 
-import org.xmlpull.v1.XmlPullParserException;
-
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 
 import jp.hazuki.yuzubrowser.R;
 import jp.hazuki.yuzubrowser.bookmark.BookmarkFolder;
 import jp.hazuki.yuzubrowser.bookmark.BookmarkManager;
 
 public class BookmarkHtmlImportTask extends AsyncTaskLoader<Boolean> {
+    /**
+     * Sent to the handler while importing, arg1 is the progress in percent.
+     */
+    public static final int MESSAGE_PROGRESS = 1;
 
     private Context context;
     private File html;
@@ -35,11 +38,31 @@ public class BookmarkHtmlImportTask extends AsyncTaskLoader<Boolean> {
 
     @Override
     public Boolean loadInBackground() {
-        try (FileReader fileReader = new FileReader(html);
-             BufferedReader reader = new BufferedReader(fileReader)) {
+        try (final FileInputStream inputStream = new FileInputStream(html);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
 
+            final long length = Math.max(html.length(), 1);
             NetscapeBookmarkParser parser = new NetscapeBookmarkParser(folder);
-            parser.parse(reader);
+            parser.setOnProgressListener(new NetscapeBookmarkParser.OnProgressListener() {
+                private int lastProgress = -1;
+
+                @Override
+                public boolean onProgress() {
+                    if (isLoadInBackgroundCanceled()) return false;
+                    try {
+                        int progress = (int) (inputStream.getChannel().position() * 100 / length);
+                        if (progress != lastProgress) {
+                            lastProgress = progress;
+                            handler.obtainMessage(MESSAGE_PROGRESS, Math.min(progress, 100), 0).sendToTarget();
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    return true;
+                }
+            });
+            if (!parser.parse(reader))
+                return Boolean.FALSE;
             manager.write();
             return Boolean.TRUE;
 
@@ -50,7 +73,7 @@ public class BookmarkHtmlImportTask extends AsyncTaskLoader<Boolean> {
                     Toast.makeText(context, R.string.not_bookmark_file, Toast.LENGTH_SHORT).show();
                 }
             });
-        } catch (XmlPullParserException | IOException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
         return Boolean.FALSE;
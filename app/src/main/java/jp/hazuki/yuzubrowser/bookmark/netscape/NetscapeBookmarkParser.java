@@ -15,89 +15,279 @@
  */
 package jp.hazuki.yuzubrowser.bookmark.netscape;
 
-import android.util.Xml;
-
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
-
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.Locale;
 
 import jp.hazuki.yuzubrowser.bookmark.BookmarkFolder;
 import jp.hazuki.yuzubrowser.bookmark.BookmarkSite;
 import jp.hazuki.yuzubrowser.bookmark.util.BookmarkIdGenerator;
 
+/**
+ * Reads a Netscape bookmark file tag by tag, adding folders and sites to the tree as they appear.
+ * Only the current tag and text are kept in memory.
+ */
 public class NetscapeBookmarkParser {
+    private static final int PROGRESS_INTERVAL = 256;
 
     private BookmarkFolder parentFolder;
-    private int hierarchy;
+    /* folder of the last H3, entered only if a DL follows it */
+    private BookmarkFolder pendingFolder;
+    /* parents to go back to at each open DL's end */
+    private final ArrayDeque<BookmarkFolder> parents = new ArrayDeque<>();
+    private int count;
+    private OnProgressListener listener;
+
+    private final StringBuilder tag = new StringBuilder();
+    private final StringBuilder text = new StringBuilder();
 
     public NetscapeBookmarkParser(BookmarkFolder rootFolder) {
         parentFolder = rootFolder;
     }
 
-    public void parse(BufferedReader reader) throws XmlPullParserException, NetscapeBookmarkException, IOException {
+    public void setOnProgressListener(OnProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return false if the listener canceled the import
+     */
+    public boolean parse(BufferedReader reader) throws NetscapeBookmarkException, IOException {
         String docType = reader.readLine();
 
         if (docType == null)
             throw new NetscapeBookmarkException();
 
-        if (!"<!doctype netscape-bookmark-file-1>".equals(docType.toLowerCase()))
+        if (!"<!doctype netscape-bookmark-file-1>".equals(docType.trim().toLowerCase(Locale.ENGLISH)))
             throw new NetscapeBookmarkException();
 
-        StringBuilder builder = new StringBuilder(8192);
-        String string;
+        pendingFolder = null;
+        parents.clear();
+        count = 0;
 
-        while ((string = reader.readLine()) != null) {
-            builder.append(string);
+        int c = reader.read();
+        while (c != -1) {
+            if (c == '<') {
+                c = readTag(reader);
+                if (listener != null && count >= PROGRESS_INTERVAL) {
+                    count = 0;
+                    if (!listener.onProgress())
+                        return false;
+                }
+            } else {
+                c = reader.read();
+            }
         }
-        builder.append('\n');
-
-        XmlPullParser parser = createParser();
-        parser.setInput(new StringReader(builder.toString()));
+        return true;
+    }
 
-        hierarchy = 0;
+    /**
+     * Handles the tag whose '<' was just read.
+     *
+     * @return the next character after the tag, or after the text of a folder or site
+     */
+    private int readTag(BufferedReader reader) throws IOException {
+        tag.setLength(0);
+        int c = reader.read();
+        if (c == '!') {
+            return skipDeclaration(reader);
+        }
 
-        int eventType = parser.getEventType();
-        while (eventType != XmlPullParser.END_DOCUMENT) {
-            if (eventType == XmlPullParser.START_TAG) {
-                startTag(parser.getName().toLowerCase(), parser);
-            } else if (eventType == XmlPullParser.END_TAG) {
-                endTag(parser.getName().toLowerCase(), parser);
+        // '>' may appear in quoted attribute values
+        int quote = 0;
+        int last = 0;
+        while (c != -1) {
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+            } else if ((c == '"' || c == '\'') && last == '=') {
+                quote = c;
+            } else if (c == '>') {
+                break;
             }
-            eventType = parser.next();
+            tag.append((char) c);
+            if (!Character.isWhitespace(c))
+                last = c;
+            c = reader.read();
         }
-    }
+        if (c == -1) return -1;
 
-    private void startTag(String tag, XmlPullParser parser) throws IOException, XmlPullParserException {
-        if ("h3".equals(tag)) {
-            hierarchy++;
-            BookmarkFolder folder = new BookmarkFolder(parser.nextText(), parentFolder, BookmarkIdGenerator.getNewId());
+        String name = getTagName();
+        if ("h3".equals(name)) {
+            c = readText(reader);
+            BookmarkFolder folder = new BookmarkFolder(getText(), parentFolder, BookmarkIdGenerator.getNewId());
             parentFolder.add(folder);
-            parentFolder = folder;
-        } else if ("a".equals(tag)) {
-            String url = parser.getAttributeValue(null, "HREF");
+            pendingFolder = folder;
+            count++;
+            return c;
+        } else if ("a".equals(name)) {
+            pendingFolder = null;
+            String url = getAttribute("href");
+            c = readText(reader);
             if (url != null) {
-                BookmarkSite site = new BookmarkSite(parser.nextText(), url, BookmarkIdGenerator.getNewId());
+                BookmarkSite site = new BookmarkSite(getText(), url, BookmarkIdGenerator.getNewId());
                 parentFolder.add(site);
+                count++;
+            }
+            return c;
+        } else if ("dl".equals(name)) {
+            parents.push(parentFolder);
+            if (pendingFolder != null) {
+                parentFolder = pendingFolder;
+                pendingFolder = null;
             }
+        } else if ("/dl".equals(name)) {
+            pendingFolder = null;
+            // an unbalanced end stays in the current folder
+            if (!parents.isEmpty())
+                parentFolder = parents.pop();
         }
+        return reader.read();
     }
 
-    private void endTag(String tag, XmlPullParser parser) {
-        if ("dl".equals(tag)) {
-            if (--hierarchy >= 0)
-                parentFolder = parentFolder.parent;
+    private int skipDeclaration(BufferedReader reader) throws IOException {
+        int c = reader.read();
+        if (c == '-') {
+            // comment, ends with "-->"
+            int dashes = 0;
+            while ((c = reader.read()) != -1) {
+                if (c == '>' && dashes >= 2) break;
+                dashes = c == '-' ? dashes + 1 : 0;
+            }
+        } else {
+            while (c != -1 && c != '>')
+                c = reader.read();
+        }
+        return c == -1 ? -1 : reader.read();
+    }
+
+    private int readText(BufferedReader reader) throws IOException {
+        text.setLength(0);
+        int c;
+        while ((c = reader.read()) != -1 && c != '<')
+            text.append((char) c);
+        return c;
+    }
+
+    private String getTagName() {
+        int end = tag.length() > 0 && tag.charAt(0) == '/' ? 1 : 0;
+        while (end < tag.length() && !Character.isWhitespace(tag.charAt(end)) && tag.charAt(end) != '/')
+            end++;
+        return tag.substring(0, end).toLowerCase(Locale.ENGLISH);
+    }
+
+    private String getAttribute(String attrName) {
+        int length = tag.length();
+        int i = 0;
+        while (i < length && !Character.isWhitespace(tag.charAt(i)))
+            i++;
+
+        while (i < length) {
+            while (i < length && Character.isWhitespace(tag.charAt(i)))
+                i++;
+            int nameStart = i;
+            while (i < length && tag.charAt(i) != '=' && !Character.isWhitespace(tag.charAt(i)))
+                i++;
+            String name = tag.substring(nameStart, i);
+            while (i < length && Character.isWhitespace(tag.charAt(i)))
+                i++;
+            if (i >= length || tag.charAt(i) != '=') {
+                if (name.isEmpty()) i++;
+                continue;
+            }
+            i++;
+            while (i < length && Character.isWhitespace(tag.charAt(i)))
+                i++;
+
+            int valueStart;
+            int valueEnd;
+            if (i < length && (tag.charAt(i) == '"' || tag.charAt(i) == '\'')) {
+                char quote = tag.charAt(i);
+                valueStart = ++i;
+                while (i < length && tag.charAt(i) != quote)
+                    i++;
+                valueEnd = i++;
+            } else {
+                valueStart = i;
+                while (i < length && !Character.isWhitespace(tag.charAt(i)))
+                    i++;
+                valueEnd = i;
+            }
+            if (attrName.equalsIgnoreCase(name))
+                return decodeEntities(tag.substring(valueStart, valueEnd));
+        }
+        return null;
+    }
+
+    private String getText() {
+        return decodeEntities(text.toString().trim());
+    }
+
+    static String decodeEntities(String str) {
+        int amp = str.indexOf('&');
+        if (amp < 0) return str;
+
+        StringBuilder builder = new StringBuilder(str.length());
+        builder.append(str, 0, amp);
+        int i = amp;
+        while (i < str.length()) {
+            char c = str.charAt(i);
+            int end;
+            if (c != '&' || (end = str.indexOf(';', i)) < 0 || end - i > 10) {
+                builder.append(c);
+                i++;
+                continue;
+            }
+            String entity = str.substring(i + 1, end);
+            int decoded = decodeEntity(entity);
+            if (decoded < 0) {
+                builder.append(c);
+                i++;
+            } else {
+                builder.appendCodePoint(decoded);
+                i = end + 1;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static int decodeEntity(String entity) {
+        switch (entity) {
+            case "amp":
+                return '&';
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "quot":
+                return '"';
+            case "apos":
+                return '\'';
+            case "nbsp":
+                return ' ';
+        }
+        if (entity.length() > 1 && entity.charAt(0) == '#') {
+            try {
+                int code;
+                if (entity.charAt(1) == 'x' || entity.charAt(1) == 'X')
+                    code = Integer.parseInt(entity.substring(2), 16);
+                else
+                    code = Integer.parseInt(entity.substring(1));
+                if (Character.isValidCodePoint(code))
+                    return code;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
         }
+        return -1;
     }
 
-    private XmlPullParser createParser() throws XmlPullParserException {
-        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-        factory.setValidating(false);
-        factory.setFeature(Xml.FEATURE_RELAXED, true);
-        factory.setNamespaceAware(true);
-        return factory.newPullParser();
+    public interface OnProgressListener {
+        /**
+         * Called every few hundred items.
+         *
+         * @return false to cancel the import
+         */
+        boolean onProgress();
     }
 }
@@ -16,48 +16,55 @@
 
 package jp.hazuki.yuzubrowser.bookmark.util;
 
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ids follow the clock in milliseconds, but never wait for it:
+ * when ids are taken faster than the clock advances, they run ahead of it.
+ * Ids read from storage are reported through {@link #observe(long)}
+ * so that new ids are always above every persisted one.
+ */
 public final class BookmarkIdGenerator {
-    private static BookmarkIdGenerator generator;
+    private static final BookmarkIdGenerator generator = new BookmarkIdGenerator();
+
+    private final AtomicLong lastId = new AtomicLong();
 
-    private long lastId = getNow();
+    public long createId() {
+        return reserveIds(1);
+    }
 
-    public synchronized long createId() {
+    /**
+     * Reserves {@code count} consecutive ids.
+     *
+     * @return the first id of the range
+     */
+    public long reserveIds(int count) {
+        if (count < 1) throw new IllegalArgumentException("count must be positive");
         while (true) {
-            long newId = getNow();
-
-            if (newId / 1000 == lastId / 1000) {
-                if (lastId % 1000 < 999) {
-                    return ++lastId;
-                }
-
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                continue;
-            } else if (newId < lastId) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                continue;
-            }
-
-            return lastId = newId;
+            long last = lastId.get();
+            long first = Math.max(last + 1, System.currentTimeMillis());
+            if (lastId.compareAndSet(last, first + count - 1))
+                return first;
         }
     }
 
-    private static long getNow() {
-        long time = System.currentTimeMillis() / 1000;
-        return time * 1000;
+    public void observeId(long id) {
+        while (true) {
+            long last = lastId.get();
+            if (id <= last || lastId.compareAndSet(last, id))
+                return;
+        }
     }
 
     public static long getNewId() {
-        if (generator == null) {
-            generator = new BookmarkIdGenerator();
-        }
         return generator.createId();
     }
+
+    public static long reserve(int count) {
+        return generator.reserveIds(count);
+    }
+
+    public static void observe(long id) {
+        generator.observeId(id);
+    }
 }
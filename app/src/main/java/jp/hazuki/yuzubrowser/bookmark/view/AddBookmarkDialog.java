@@ -101,9 +101,11 @@ public abstract class AddBookmarkDialog<S extends BookmarkItem, T> implements On
 
                 S item = makeItem(mItem, title.toString(), url.toString());
                 if (item != null)
-                    mParent.add(item);
+                    mManager.add(mParent, item);
+                else
+                    mManager.update(mItem);
 
-                if (mManager.write()) {
+                if (mManager.save()) {
                     Toast.makeText(mDialog.getContext(), R.string.succeed, Toast.LENGTH_SHORT).show();
                     if (mOnClickListener != null)
                         mOnClickListener.onClick(mDialog, DialogInterface.BUTTON_POSITIVE);
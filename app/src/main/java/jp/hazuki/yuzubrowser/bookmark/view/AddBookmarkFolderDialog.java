@@ -65,16 +65,16 @@ public class AddBookmarkFolderDialog {
 
                 if (mItem == null) {
                     BookmarkFolder item = new BookmarkFolder(title.toString(), mParent, BookmarkIdGenerator.getNewId());
-                    mParent.add(item);
+                    mManager.add(mParent, item);
                 } else {
-                    if (mItem.parent == null) {
-                        mItem.parent = mParent;
-                        mParent.add(mItem);
-                    }
                     mItem.title = title.toString();
+                    if (mItem.parent == null)
+                        mManager.add(mParent, mItem);
+                    else
+                        mManager.update(mItem);
                 }
 
-                if (mManager.write()) {
+                if (mManager.save()) {
                     Toast.makeText(mDialog.getContext(), R.string.succeed, Toast.LENGTH_SHORT).show();
                     if (mOnClickListener != null)
                         mOnClickListener.onClick(mDialog, DialogInterface.BUTTON_POSITIVE);
@@ -374,10 +374,9 @@ public class BookmarkFragment extends Fragment implements BookmarkItemAdapter.On
                         .setOnFolderSelectedListener(new BookmarkFoldersDialog.OnFolderSelectedListener() {
                             @Override
                             public boolean onFolderSelected(DialogInterface dialog, BookmarkFolder folder) {
-                                mCurrentFolder.list.remove(index);
-                                folder.add(item);
+                                mManager.moveAll(mCurrentFolder, folder, Collections.singletonList(item));
 
-                                mManager.write();
+                                mManager.save();
                                 adapter.notifyDataSetChanged();
                                 return false;
                             }
@@ -386,15 +385,15 @@ public class BookmarkFragment extends Fragment implements BookmarkItemAdapter.On
                 break;
             case R.id.moveUp:
                 if (index > 0) {
-                    Collections.swap(mCurrentFolder.list, index - 1, index);
-                    mManager.write();
+                    mManager.move(mCurrentFolder, index, index - 1);
+                    mManager.save();
                     adapter.notifyDataSetChanged();
                 }
                 break;
             case R.id.moveDown:
                 if (index < mCurrentFolder.list.size() - 1) {
-                    Collections.swap(mCurrentFolder.list, index + 1, index);
-                    mManager.write();
+                    mManager.move(mCurrentFolder, index, index + 1);
+                    mManager.save();
                     adapter.notifyDataSetChanged();
                 }
                 break;
@@ -405,8 +404,8 @@ public class BookmarkFragment extends Fragment implements BookmarkItemAdapter.On
                         .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
                             @Override
                             public void onClick(DialogInterface dialog, int which) {
-                                mCurrentFolder.list.remove(index);
-                                mManager.write();
+                                mManager.remove(mCurrentFolder, index);
+                                mManager.save();
                                 adapter.notifyDataSetChanged();
                             }
                         })
@@ -442,10 +441,9 @@ public class BookmarkFragment extends Fragment implements BookmarkItemAdapter.On
                         .setOnFolderSelectedListener(new BookmarkFoldersDialog.OnFolderSelectedListener() {
                             @Override
                             public boolean onFolderSelected(DialogInterface dialog, BookmarkFolder folder) {
-                                mCurrentFolder.list.removeAll(bookmarkItems);
-                                folder.addAll(bookmarkItems);
+                                mManager.moveAll(mCurrentFolder, folder, bookmarkItems);
 
-                                mManager.write();
+                                mManager.save();
                                 adapter.notifyDataSetChanged();
                                 return false;
                             }
@@ -461,8 +459,8 @@ public class BookmarkFragment extends Fragment implements BookmarkItemAdapter.On
                             public void onClick(DialogInterface dialog, int which) {
                                 List<BookmarkItem> selectedList = getSelectedBookmark(adapter.getSelectedItems());
 
-                                mCurrentFolder.list.removeAll(selectedList);
-                                mManager.write();
+                                mManager.removeAll(mCurrentFolder, selectedList);
+                                mManager.save();
 
                                 adapter.setMultiSelectMode(false);
                                 adapter.notifyDataSetChanged();
@@ -521,10 +519,9 @@ public class BookmarkFragment extends Fragment implements BookmarkItemAdapter.On
                         .setOnFolderSelectedListener(new BookmarkFoldersDialog.OnFolderSelectedListener() {
                             @Override
                             public boolean onFolderSelected(DialogInterface dialog, BookmarkFolder folder) {
-                                mCurrentFolder.list.removeAll(bookmarkItems);
-                                folder.addAll(bookmarkItems);
+                                mManager.moveAll(mCurrentFolder, folder, bookmarkItems);
 
-                                mManager.write();
+                                mManager.save();
                                 mode.finish();
                                 return false;
                             }
@@ -540,8 +537,8 @@ public class BookmarkFragment extends Fragment implements BookmarkItemAdapter.On
                             public void onClick(DialogInterface dialog, int which) {
                                 List<BookmarkItem> selectedList = getSelectedBookmark(adapter.getSelectedItems());
 
-                                mCurrentFolder.list.removeAll(selectedList);
-                                mManager.write();
+                                mManager.removeAll(mCurrentFolder, selectedList);
+                                mManager.save();
 
                                 mode.finish();
                             }
@@ -577,13 +574,16 @@ public class BookmarkFragment extends Fragment implements BookmarkItemAdapter.On
 
         @Override
         public boolean onMove(RecyclerView recyclerView, RecyclerView.ViewHolder viewHolder, RecyclerView.ViewHolder target) {
-            adapter.move(viewHolder.getAdapterPosition(), target.getAdapterPosition());
+            int from = viewHolder.getAdapterPosition();
+            int to = target.getAdapterPosition();
+            mManager.move(mCurrentFolder, from, to);
+            adapter.notifyItemMoved(from, to);
             return true;
         }
 
         @Override
         public void onMoved(RecyclerView recyclerView, RecyclerView.ViewHolder viewHolder, int fromPos, RecyclerView.ViewHolder target, int toPos, int x, int y) {
-            mManager.write();
+            mManager.save();
         }
 
         @Override
@@ -16,10 +16,12 @@
 
 package jp.hazuki.yuzubrowser.debug;
 
+import android.app.AlertDialog;
 import android.content.Intent;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.app.ListFragment;
+import android.util.SparseIntArray;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
@@ -28,6 +30,7 @@ import android.widget.Toast;
 import jp.hazuki.yuzubrowser.BuildConfig;
 import jp.hazuki.yuzubrowser.R;
 import jp.hazuki.yuzubrowser.action.view.ActionStringActivity;
+import jp.hazuki.yuzubrowser.favicon.FaviconManager;
 import jp.hazuki.yuzubrowser.utils.app.ThemeActivity;
 
 public class DebugActivity extends ThemeActivity {
@@ -47,7 +50,7 @@ public class DebugActivity extends ThemeActivity {
         @Override
         public void onActivityCreated(@Nullable Bundle savedInstanceState) {
             super.onActivityCreated(savedInstanceState);
-            String[] list = {"file list", "activity list", "action json string", "action list json string", "environment"};
+            String[] list = {"file list", "activity list", "action json string", "action list json string", "environment", "favicon cache"};
             ArrayAdapter<String> adapter = new ArrayAdapter<>(getActivity(), android.R.layout.simple_list_item_1, list);
             setListAdapter(adapter);
         }
@@ -80,7 +83,32 @@ public class DebugActivity extends ThemeActivity {
                 case 4:
                     startActivity(new Intent(getActivity(), EnvironmentActivity.class));
                     break;
+                case 5:
+                    new AlertDialog.Builder(getActivity())
+                            .setTitle("Favicon cache")
+                            .setMessage(getFaviconCacheStats())
+                            .setPositiveButton(android.R.string.ok, null)
+                            .show();
+                    break;
+            }
+        }
+
+        private String getFaviconCacheStats() {
+            FaviconManager manager = FaviconManager.getInstance(getActivity());
+            StringBuilder builder = new StringBuilder();
+            builder.append("memory: ").append(manager.getRamCacheSize()).append(" bytes\n")
+                    .append("memory ").append(manager.getRamCacheStats()).append('\n')
+                    .append("disk ").append(manager.getDiskCacheStats()).append('\n');
+
+            SparseIntArray counts = manager.getTrimCounts();
+            SparseIntArray evictions = manager.getTrimEvictions();
+            for (int i = 0; counts.size() > i; i++) {
+                int level = counts.keyAt(i);
+                builder.append("\ntrim level ").append(level).append(": ")
+                        .append(counts.valueAt(i)).append(" times, ")
+                        .append(evictions.get(level)).append(" icons evicted");
             }
+            return builder.toString();
         }
     }
 }
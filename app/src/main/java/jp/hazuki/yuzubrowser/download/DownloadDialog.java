@@ -239,6 +239,8 @@ public class DownloadDialog {
                 Toast.makeText(context, context.getString(R.string.failed), Toast.LENGTH_SHORT).show();
             }
         } else {
+            // chosen by hand, goes before the quick saves
+            mInfo.setPriority(DownloadRequestInfo.PRIORITY_HIGH);
             DownloadService.startDownloadService(mContext, mInfo);
         }
     }
@@ -10,6 +10,8 @@ public class DownloadInfo implements Serializable {
     public static final int STATE_DOWNLOADING = 0;
     public static final int STATE_DOWNLOADED = 1;
     public static final int STATE_CANCELED = 2;
+    public static final int STATE_QUEUED = 3;
+    public static final int STATE_PAUSED = 4;
     public static final int STATE_UNKNOWN_ERROR = 100;
 
     protected long id = -1;
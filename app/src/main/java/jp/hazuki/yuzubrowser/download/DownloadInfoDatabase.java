@@ -19,21 +19,39 @@ package jp.hazuki.yuzubrowser.download;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import jp.hazuki.yuzubrowser.utils.database.CursorLoadable;
 
 public class DownloadInfoDatabase extends SQLiteOpenHelper implements CursorLoadable {
     private static final String DB_NAME = "downloadinfolist1.db";
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 3;
     private static final String TABLE_NAME = "main_table1";
+    private static final String SEGMENT_TABLE_NAME = "segment_table1";
 
     public static final String COLUMN_ID = "_id";
     public static final String COLUMN_URL = "url";
     public static final String COLUMN_FILEPATH = "filepath";
     public static final String COLUMN_START_TIME = "start_time";
     public static final String COLUMN_STATE = "state";
+    public static final String COLUMN_MAX_LENGTH = "max_length";
+    public static final String COLUMN_VALIDATOR = "validator";
+    public static final String COLUMN_REFERER = "referer";
+    public static final String COLUMN_USER_AGENT = "user_agent";
+    public static final String COLUMN_DEFAULT_EXT = "default_ext";
+    public static final String COLUMN_PRIORITY = "priority";
+
+    private static final String COLUMN_DOWNLOAD_ID = "download_id";
+    private static final String COLUMN_SEGMENT_START = "range_start";
+    private static final String COLUMN_SEGMENT_END = "range_end";
+    private static final String COLUMN_SEGMENT_CURRENT = "range_current";
 
     public static final int COLUMN_ID_INDEX = 0;
     public static final int COLUMN_URL_INDEX = 1;
@@ -61,13 +79,46 @@ public class DownloadInfoDatabase extends SQLiteOpenHelper implements CursorLoad
                 ", " + COLUMN_FILEPATH + " TEXT NOT NULL" +
                 ", " + COLUMN_START_TIME + " INTEGER DEFAULT (datetime('now','localtime'))" +
                 ", " + COLUMN_STATE + " INTEGER DEFAULT " + DownloadInfo.STATE_DOWNLOADING +
+                ", " + COLUMN_MAX_LENGTH + " INTEGER DEFAULT -1" +
+                ", " + COLUMN_VALIDATOR + " TEXT" +
+                ", " + COLUMN_REFERER + " TEXT" +
+                ", " + COLUMN_USER_AGENT + " TEXT" +
+                ", " + COLUMN_DEFAULT_EXT + " TEXT" +
+                ", " + COLUMN_PRIORITY + " INTEGER DEFAULT 0" +
                 ")");
+        createSegmentTable(db);
+    }
+
+    private static void createSegmentTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + SEGMENT_TABLE_NAME + " (" +
+                COLUMN_DOWNLOAD_ID + " INTEGER NOT NULL" +
+                ", " + COLUMN_SEGMENT_START + " INTEGER NOT NULL" +
+                ", " + COLUMN_SEGMENT_END + " INTEGER NOT NULL" +
+                ", " + COLUMN_SEGMENT_CURRENT + " INTEGER NOT NULL" +
+                ")");
+        db.execSQL("CREATE INDEX " + SEGMENT_TABLE_NAME + "_index ON " + SEGMENT_TABLE_NAME + "(" + COLUMN_DOWNLOAD_ID + ")");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
-        onCreate(db);
+        switch (oldVersion) {
+            case 1:
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_MAX_LENGTH + " INTEGER DEFAULT -1");
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_VALIDATOR + " TEXT");
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_REFERER + " TEXT");
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_USER_AGENT + " TEXT");
+                createSegmentTable(db);
+                /* no break */
+            case 2:
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_DEFAULT_EXT + " TEXT");
+                db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_PRIORITY + " INTEGER DEFAULT 0");
+                break;
+            default:
+                db.execSQL("DROP TABLE IF EXISTS " + SEGMENT_TABLE_NAME);
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+                onCreate(db);
+                break;
+        }
     }
 
     public long insert(DownloadInfo info) {
@@ -77,9 +128,19 @@ public class DownloadInfoDatabase extends SQLiteOpenHelper implements CursorLoad
         if (id >= 0)
             values.put(COLUMN_ID, id);
         values.put(COLUMN_URL, info.getUrl());
-        values.put(COLUMN_FILEPATH, info.getFile().getAbsolutePath());
+        // empty until the response names the file
+        values.put(COLUMN_FILEPATH, info.getFile() != null ? info.getFile().getAbsolutePath() : "");
         values.put(COLUMN_START_TIME, info.getStartTime());
         values.put(COLUMN_STATE, info.getState());
+        if (info instanceof DownloadRequestInfo) {
+            DownloadRequestInfo request = (DownloadRequestInfo) info;
+            values.put(COLUMN_MAX_LENGTH, request.getMaxLength());
+            values.put(COLUMN_VALIDATOR, request.getValidator());
+            values.put(COLUMN_REFERER, request.getReferer());
+            values.put(COLUMN_USER_AGENT, request.getUserAgent());
+            values.put(COLUMN_DEFAULT_EXT, request.getDefaultExt());
+            values.put(COLUMN_PRIORITY, request.getPriority());
+        }
         id = db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
         info.setId(id);
         //db.close();
@@ -99,15 +160,111 @@ public class DownloadInfoDatabase extends SQLiteOpenHelper implements CursorLoad
             throw new IllegalArgumentException("id must be greater than or equal to 0");
         SQLiteDatabase db = getWritableDatabase();
         db.delete(TABLE_NAME, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+        deleteSegments(id);
         //db.close();
     }
 
     public void deleteAllHistory() {
         SQLiteDatabase db = getWritableDatabase();
-        db.delete(TABLE_NAME, COLUMN_STATE + " <> " + DownloadInfo.STATE_DOWNLOADING, null);
+        db.delete(TABLE_NAME, COLUMN_STATE + " NOT IN (" + DownloadInfo.STATE_DOWNLOADING + ", " + DownloadInfo.STATE_QUEUED + ")", null);
+        db.delete(SEGMENT_TABLE_NAME, COLUMN_DOWNLOAD_ID + " NOT IN (SELECT " + COLUMN_ID + " FROM " + TABLE_NAME + ")", null);
         //db.close();
     }
 
+    /**
+     * Rebuilds the request of a download, to resume it.
+     *
+     * @return the request, or null if the id is unknown
+     */
+    public DownloadRequestInfo getRequestInfo(long id) {
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor c = db.query(TABLE_NAME, null, COLUMN_ID + " = ?", new String[]{String.valueOf(id)}, null, null, null);
+        try {
+            if (!c.moveToFirst()) return null;
+            return getRequestInfo(c);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return the waiting downloads, in the order they should start
+     */
+    public List<DownloadRequestInfo> getQueuedRequestInfo() {
+        SQLiteDatabase db = getReadableDatabase();
+        List<DownloadRequestInfo> list = new ArrayList<>();
+        Cursor c = db.query(TABLE_NAME, null, COLUMN_STATE + " = " + DownloadInfo.STATE_QUEUED, null, null, null,
+                COLUMN_PRIORITY + " DESC, " + COLUMN_ID);
+        while (c.moveToNext()) {
+            list.add(getRequestInfo(c));
+        }
+        c.close();
+        return list;
+    }
+
+    private static DownloadRequestInfo getRequestInfo(Cursor c) {
+        String path = c.getString(COLUMN_FILEPATH_INDEX);
+        DownloadRequestInfo info = new DownloadRequestInfo(
+                c.getString(COLUMN_URL_INDEX),
+                TextUtils.isEmpty(path) ? null : new File(path),
+                c.getString(c.getColumnIndex(COLUMN_REFERER)),
+                c.getString(c.getColumnIndex(COLUMN_USER_AGENT)),
+                -1, true);
+        info.setId(c.getLong(COLUMN_ID_INDEX));
+        info.setStartTime(c.getLong(COLUMN_START_TIME_INDEX));
+        info.setState(c.getInt(COLUMN_STATE_INDEX));
+        info.setMaxLength(c.getLong(c.getColumnIndex(COLUMN_MAX_LENGTH)));
+        info.setValidator(c.getString(c.getColumnIndex(COLUMN_VALIDATOR)));
+        info.setDefaultExt(c.getString(c.getColumnIndex(COLUMN_DEFAULT_EXT)));
+        info.setPriority(c.getInt(c.getColumnIndex(COLUMN_PRIORITY)));
+        return info;
+    }
+
+    public List<DownloadSegment> getSegments(long id) {
+        SQLiteDatabase db = getReadableDatabase();
+        List<DownloadSegment> segments = new ArrayList<>();
+        Cursor c = db.query(SEGMENT_TABLE_NAME,
+                new String[]{COLUMN_SEGMENT_START, COLUMN_SEGMENT_END, COLUMN_SEGMENT_CURRENT},
+                COLUMN_DOWNLOAD_ID + " = ?", new String[]{String.valueOf(id)}, null, null, COLUMN_SEGMENT_START);
+        while (c.moveToNext()) {
+            segments.add(new DownloadSegment(c.getLong(0), c.getLong(1), c.getLong(2)));
+        }
+        c.close();
+        return segments;
+    }
+
+    public boolean hasSegments(long id) {
+        SQLiteDatabase db = getReadableDatabase();
+        return DatabaseUtils.queryNumEntries(db, SEGMENT_TABLE_NAME, COLUMN_DOWNLOAD_ID + " = ?", new String[]{String.valueOf(id)}) > 0;
+    }
+
+    /**
+     * Replaces the saved progress of a download.
+     */
+    public void saveSegments(long id, List<DownloadSegment> segments) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(SEGMENT_TABLE_NAME, COLUMN_DOWNLOAD_ID + " = ?", new String[]{String.valueOf(id)});
+            ContentValues values = new ContentValues();
+            for (DownloadSegment segment : segments) {
+                values.put(COLUMN_DOWNLOAD_ID, id);
+                values.put(COLUMN_SEGMENT_START, segment.start);
+                values.put(COLUMN_SEGMENT_END, segment.end);
+                values.put(COLUMN_SEGMENT_CURRENT, segment.current);
+                db.insert(SEGMENT_TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void deleteSegments(long id) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete(SEGMENT_TABLE_NAME, COLUMN_DOWNLOAD_ID + " = ?", new String[]{String.valueOf(id)});
+    }
+
     public void fixData() {
         SQLiteDatabase db = getWritableDatabase();
         ContentValues values = new ContentValues();
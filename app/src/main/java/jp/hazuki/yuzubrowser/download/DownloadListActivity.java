@@ -124,6 +124,14 @@ public class DownloadListActivity extends ThemeActivity implements LoaderCallbac
                         });
                         break;
                     case DownloadInfo.STATE_DOWNLOADING:
+                    case DownloadInfo.STATE_QUEUED:
+                        menu.add(R.string.pause_download).setOnMenuItemClickListener(new OnMenuItemClickListener() {
+                            @Override
+                            public boolean onMenuItemClick(MenuItem item) {
+                                DownloadService.pauseDownload(mServiceBindHelper.getBinder(), mActivityMessenger, id);
+                                return false;
+                            }
+                        });
                         menu.add(R.string.cancel_download).setOnMenuItemClickListener(new OnMenuItemClickListener() {
                             @Override
                             public boolean onMenuItemClick(MenuItem item) {
@@ -132,6 +140,19 @@ public class DownloadListActivity extends ThemeActivity implements LoaderCallbac
                             }
                         });
                         break;
+                    case DownloadInfo.STATE_CANCELED:
+                    case DownloadInfo.STATE_UNKNOWN_ERROR:
+                    case DownloadInfo.STATE_PAUSED:
+                        if (cursor.getInt(DownloadInfoDatabase.COLUMN_STATE_INDEX) == DownloadInfo.STATE_PAUSED || mDb.hasSegments(id)) {
+                            menu.add(R.string.resume_download).setOnMenuItemClickListener(new OnMenuItemClickListener() {
+                                @Override
+                                public boolean onMenuItemClick(MenuItem item) {
+                                    DownloadService.resumeDownload(getApplicationContext(), id);
+                                    return false;
+                                }
+                            });
+                        }
+                        break;
                 }
 
                 menu.add(R.string.open_url).setOnMenuItemClickListener(new OnMenuItemClickListener() {
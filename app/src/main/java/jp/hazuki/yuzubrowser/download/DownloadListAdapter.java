@@ -3,8 +3,10 @@ package jp.hazuki.yuzubrowser.download;
 import android.content.Context;
 import android.database.Cursor;
 import android.support.v4.widget.ResourceCursorAdapter;
+import android.text.TextUtils;
 import android.util.LongSparseArray;
 import android.view.View;
+import android.webkit.URLUtil;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
@@ -30,8 +32,11 @@ public class DownloadListAdapter extends ResourceCursorAdapter {
 
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
-        ((TextView) view.findViewById(R.id.urlTextView)).setText(cursor.getString(DownloadInfoDatabase.COLUMN_URL_INDEX));
-        ((TextView) view.findViewById(R.id.filenameTextView)).setText(new File(cursor.getString(DownloadInfoDatabase.COLUMN_FILEPATH_INDEX)).getName());
+        String url = cursor.getString(DownloadInfoDatabase.COLUMN_URL_INDEX);
+        String path = cursor.getString(DownloadInfoDatabase.COLUMN_FILEPATH_INDEX);
+        ((TextView) view.findViewById(R.id.urlTextView)).setText(url);
+        // queued downloads are named by their response
+        ((TextView) view.findViewById(R.id.filenameTextView)).setText(TextUtils.isEmpty(path) ? URLUtil.guessFileName(url, null, null) : new File(path).getName());
 
         TextView statusTextView = (TextView) view.findViewById(R.id.statusTextView);
         ProgressBar progressBar = (ProgressBar) view.findViewById(R.id.progressBar);
@@ -45,6 +50,14 @@ public class DownloadListAdapter extends ResourceCursorAdapter {
                 statusTextView.setText(mContext.getText(R.string.download_cancel));
                 progressBar.setVisibility(View.GONE);
                 break;
+            case DownloadInfo.STATE_QUEUED:
+                statusTextView.setText(mContext.getText(R.string.download_queued));
+                progressBar.setVisibility(View.GONE);
+                break;
+            case DownloadInfo.STATE_PAUSED:
+                statusTextView.setText(mContext.getText(R.string.download_paused));
+                progressBar.setVisibility(View.GONE);
+                break;
             case DownloadInfo.STATE_DOWNLOADING: {
                 long id = cursor.getLong(DownloadInfoDatabase.COLUMN_ID_INDEX);
                 DownloadRequestInfo info = mDownloadingList.get(id);
@@ -52,8 +65,8 @@ public class DownloadListAdapter extends ResourceCursorAdapter {
                     statusTextView.setText(info.getNotificationString(context));
 
                     progressBar.setVisibility(View.VISIBLE);
-                    progressBar.setProgress(info.getCurrentLength());
-                    progressBar.setMax(info.getMaxLength());
+                    progressBar.setMax(DownloadRequestInfo.PROGRESS_MAX);
+                    progressBar.setProgress(info.getProgress());
                     progressBar.setIndeterminate(info.getMaxLength() <= 0);
                     //mDownloadingList.remove(info);
                 } else {
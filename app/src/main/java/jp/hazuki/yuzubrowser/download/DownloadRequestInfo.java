@@ -22,15 +22,23 @@ import android.text.format.Formatter;
 import java.io.File;
 
 public class DownloadRequestInfo extends DownloadInfo {
-    private static final long serialVersionUID = 3601107888371011910L;
+    private static final long serialVersionUID = 3601107888371011911L;
+
+    /* scale of the progress bars, lengths do not fit in an int */
+    public static final int PROGRESS_MAX = 1000;
+
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
 
     private long default_contentlength;
     private String referer;
-    private int max_length;
-    private int current_length;
+    private long max_length = -1;
+    private long current_length;
+    private String validator;
     private String userAgent;
     private String mDefaultExt;
     private boolean solvedFileName;
+    private int priority = PRIORITY_NORMAL;
 
     public DownloadRequestInfo() {
     }
@@ -70,22 +78,45 @@ public class DownloadRequestInfo extends DownloadInfo {
         return userAgent;
     }
 
-    public int getMaxLength() {
+    public void setUserAgent(String userAgent) {
+        this.userAgent = userAgent;
+    }
+
+    public long getMaxLength() {
         return max_length;
     }
 
-    public void setMaxLength(int max_length) {
+    public void setMaxLength(long max_length) {
         this.max_length = max_length;
     }
 
-    public int getCurrentLength() {
+    public long getCurrentLength() {
         return current_length;
     }
 
-    public void setCurrentLength(int current_length) {
+    public void setCurrentLength(long current_length) {
         this.current_length = current_length;
     }
 
+    /**
+     * @return progress out of {@link #PROGRESS_MAX}, 0 if the length is unknown
+     */
+    public int getProgress() {
+        if (max_length <= 0) return 0;
+        return (int) (PROGRESS_MAX * current_length / max_length);
+    }
+
+    /**
+     * @return ETag or Last-Modified of the response, sent back as If-Range when resuming
+     */
+    public String getValidator() {
+        return validator;
+    }
+
+    public void setValidator(String validator) {
+        this.validator = validator;
+    }
+
     public String getNotificationString(Context context) {
         if (max_length > 0) {
             return (Formatter.formatFileSize(context, current_length) +
@@ -111,4 +142,15 @@ public class DownloadRequestInfo extends DownloadInfo {
     public boolean isSolvedFileName() {
         return solvedFileName;
     }
+
+    /**
+     * @return the rank in the download queue, higher ones start first
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
 }
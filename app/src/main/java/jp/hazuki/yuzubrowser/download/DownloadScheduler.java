@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 Hazuki
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.hazuki.yuzubrowser.download;
+
+import android.net.Uri;
+import android.os.PowerManager.WakeLock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jp.hazuki.yuzubrowser.settings.data.AppData;
+
+/**
+ * Runs the downloads of the service a few at a time, and fewer still per host.
+ * The others wait by priority, then in the order they came.
+ * One wake lock is held while anything runs.
+ */
+final class DownloadScheduler {
+
+    interface Task extends Runnable {
+        DownloadRequestInfo getDownloadRequestInfo();
+    }
+
+    interface OnIdleListener {
+        void onIdle();
+    }
+
+    private final WakeLock mWakeLock;
+    private final OnIdleListener mListener;
+    /* never holds more threads than the running limit */
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+
+    /* guarded by this */
+    private final PriorityQueue<Entry> mQueue = new PriorityQueue<>();
+    private final List<Entry> mRunning = new ArrayList<>();
+    private long mSequence;
+
+    DownloadScheduler(WakeLock wakeLock, OnIdleListener listener) {
+        mWakeLock = wakeLock;
+        mWakeLock.setReferenceCounted(false);
+        mListener = listener;
+    }
+
+    synchronized void enqueue(Task task) {
+        mQueue.add(new Entry(task, mSequence++));
+        schedule();
+    }
+
+    /**
+     * Takes a task out of the queue before it starts.
+     *
+     * @return false if the task is already running or gone
+     */
+    synchronized boolean dequeue(Task task) {
+        for (Entry entry : mQueue) {
+            if (entry.task == task) {
+                mQueue.remove(entry);
+                notifyIfIdle();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the running or waiting task of the download, or null
+     */
+    synchronized Task find(long id) {
+        for (Entry entry : mRunning) {
+            if (entry.task.getDownloadRequestInfo().getId() == id)
+                return entry.task;
+        }
+        for (Entry entry : mQueue) {
+            if (entry.task.getDownloadRequestInfo().getId() == id)
+                return entry.task;
+        }
+        return null;
+    }
+
+    synchronized List<Task> getRunningTasks() {
+        List<Task> list = new ArrayList<>(mRunning.size());
+        for (Entry entry : mRunning) {
+            list.add(entry.task);
+        }
+        return list;
+    }
+
+    synchronized boolean isIdle() {
+        return mRunning.isEmpty() && mQueue.isEmpty();
+    }
+
+    private void schedule() {
+        int max = Math.max(1, AppData.download_max_parallel.get());
+        int maxPerHost = Math.max(1, AppData.download_max_per_host.get());
+
+        List<Entry> skipped = null;
+        Entry entry;
+        while (mRunning.size() < max && (entry = mQueue.poll()) != null) {
+            if (entry.host != null && countRunning(entry.host) >= maxPerHost) {
+                if (skipped == null)
+                    skipped = new ArrayList<>();
+                skipped.add(entry);
+            } else {
+                start(entry);
+            }
+        }
+        if (skipped != null)
+            mQueue.addAll(skipped);
+    }
+
+    private int countRunning(String host) {
+        int count = 0;
+        for (Entry entry : mRunning) {
+            if (host.equals(entry.host))
+                count++;
+        }
+        return count;
+    }
+
+    private void start(final Entry entry) {
+        if (mRunning.isEmpty())
+            mWakeLock.acquire();
+        mRunning.add(entry);
+        mExecutor.execute(() -> {
+            try {
+                entry.task.run();
+            } finally {
+                finish(entry);
+            }
+        });
+    }
+
+    private synchronized void finish(Entry entry) {
+        mRunning.remove(entry);
+        schedule();
+        if (mRunning.isEmpty())
+            mWakeLock.release();
+        notifyIfIdle();
+    }
+
+    private void notifyIfIdle() {
+        if (mRunning.isEmpty() && mQueue.isEmpty())
+            mListener.onIdle();
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        final Task task;
+        final String host;
+        final int priority;
+        final long sequence;
+
+        Entry(Task task, long sequence) {
+            this.task = task;
+            this.sequence = sequence;
+            DownloadRequestInfo info = task.getDownloadRequestInfo();
+            priority = info.getPriority();
+            // data: urls have no host and no limit
+            host = Uri.parse(info.getUrl()).getHost();
+        }
+
+        @Override
+        public int compareTo(Entry another) {
+            if (priority != another.priority)
+                return priority > another.priority ? -1 : 1;
+            return Long.compare(sequence, another.sequence);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017 Hazuki
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.hazuki.yuzubrowser.download;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Byte range of a download fetched by one connection.
+ */
+class DownloadSegment {
+    final long start;
+    /* exclusive, -1 until the end of a body of unknown length */
+    volatile long end;
+    /* next byte to write, written by the transferring thread only */
+    volatile long current;
+
+    DownloadSegment(long start, long end, long current) {
+        this.start = start;
+        this.end = end;
+        this.current = current;
+    }
+
+    boolean isFinished() {
+        return end >= 0 && current >= end;
+    }
+
+    String getRangeHeader() {
+        return end >= 0 ? "bytes=" + current + "-" + (end - 1) : "bytes=" + current + "-";
+    }
+
+    /**
+     * Splits a body into equal ranges, a body of unknown length is one open range.
+     */
+    static List<DownloadSegment> split(long length, int count) {
+        List<DownloadSegment> segments = new ArrayList<>(count);
+        if (length < 0 || count <= 1) {
+            segments.add(new DownloadSegment(0, length, 0));
+            return segments;
+        }
+        long size = length / count;
+        for (int i = 0; count > i; i++) {
+            long start = size * i;
+            long end = i == count - 1 ? length : start + size;
+            segments.add(new DownloadSegment(start, end, start));
+        }
+        return segments;
+    }
+
+    static long getDownloadedLength(List<DownloadSegment> segments) {
+        long length = 0;
+        for (DownloadSegment segment : segments)
+            length += segment.current - segment.start;
+        return length;
+    }
+}
@@ -28,9 +28,9 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.PowerManager;
-import android.os.PowerManager.WakeLock;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.text.TextUtils;
 import android.webkit.CookieManager;
@@ -38,13 +38,11 @@ import android.webkit.WebSettings;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 import jp.hazuki.yuzubrowser.Constants;
@@ -62,15 +60,20 @@ import jp.hazuki.yuzubrowser.utils.net.HttpResponseData;
 public class DownloadService extends Service {
     public static final String TAG = "DownloadService";
     public static final String EXTRA_DOWNLOAD_INFO = "jp.hazuki.yuzubrowser.download.DownloadService.extra.EXTRA_DOWNLOAD_INFO";
+    public static final String EXTRA_RESUME_ID = "jp.hazuki.yuzubrowser.download.DownloadService.extra.EXTRA_RESUME_ID";
     public static final int NOTIFICATION_INTERVAL = 1000;
+    private static final int SEGMENT_SAVE_INTERVAL = 10000;
+    /* a stalled connection fails after this, and is retried by its segment */
+    private static final int CONNECT_TIMEOUT = 30000;
+    private static final int READ_TIMEOUT = 30000;
 
     private static final List<Messenger> mObservers = new ArrayList<>();
     private Messenger mMessenger;
     private Handler mHandler;
     private DownloadInfoDatabase mDb;
     private NotificationManager mNotificationManager;
-    private PowerManager mPowerManager;
-    private static final List<DownloadThread> mThreadList = new LinkedList<>();
+    private DownloadScheduler mScheduler;
+    private boolean mQueueRestored;
 
     public static final int REGISTER_OBSERVER = 0;
     public static final int UNREGISTER_OBSERVER = 1;
@@ -78,11 +81,17 @@ public class DownloadService extends Service {
     public static final int UPDATE_STATE = 3;
     public static final int GET_DOWNLOAD_INFO = 4;
     public static final int CANCEL_DOWNLOAD = 5;
+    public static final int PAUSE_DOWNLOAD = 6;
 
     private static class ServiceHandler extends Handler {
+        private final DownloadScheduler mScheduler;
+
+        ServiceHandler(DownloadScheduler scheduler) {
+            mScheduler = scheduler;
+        }
+
         @Override
         public void handleMessage(Message msg) {
-            SWITCH:
             switch (msg.what) {
                 case REGISTER_OBSERVER:
                     mObservers.add(msg.replyTo);
@@ -106,10 +115,8 @@ public class DownloadService extends Service {
                 break;
                 case GET_DOWNLOAD_INFO: {
                     List<DownloadRequestInfo> list = new ArrayList<>();
-                    synchronized (mThreadList) {
-                        for (DownloadThread thread : mThreadList) {
-                            list.add(thread.getDownloadRequestInfo());
-                        }
+                    for (DownloadScheduler.Task task : mScheduler.getRunningTasks()) {
+                        list.add(task.getDownloadRequestInfo());
                     }
 
                     Iterator<Messenger> it = mObservers.iterator();
@@ -124,16 +131,16 @@ public class DownloadService extends Service {
                     }
                 }
                 break;
-                case CANCEL_DOWNLOAD: {
+                case CANCEL_DOWNLOAD:
+                case PAUSE_DOWNLOAD: {
                     long id = (Long) msg.obj;
-                    synchronized (mThreadList) {
-                        for (DownloadThread thread : mThreadList) {
-                            if (id == thread.getDownloadRequestInfo().getId()) {
-                                thread.abort();
-                                break SWITCH;
-                            }
-                        }
+                    DownloadTask task = (DownloadTask) mScheduler.find(id);
+                    if (task == null) {
                         Logger.e(TAG, "id not found:" + id);
+                    } else if (msg.what == PAUSE_DOWNLOAD) {
+                        task.pause();
+                    } else {
+                        task.abort();
                     }
                 }
                 break;
@@ -189,14 +196,27 @@ public class DownloadService extends Service {
         }
     }
 
+    public static void pauseDownload(Messenger serviceMessenger, Messenger activityMessenger, long id) {
+        Message msg = Message.obtain(null, PAUSE_DOWNLOAD);
+        msg.replyTo = activityMessenger;
+        msg.obj = id;
+        try {
+            serviceMessenger.send(msg);
+        } catch (RemoteException e) {
+            ErrorReport.printAndWriteLog(e);
+        }
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
-        mMessenger = new Messenger(new ServiceHandler());
         mHandler = new Handler();
         mDb = DownloadInfoDatabase.getInstance(getApplicationContext());
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        mPowerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        mScheduler = new DownloadScheduler(powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG),
+                () -> mHandler.post(this::stopIfIdle));
+        mMessenger = new Messenger(new ServiceHandler(mScheduler));
 
         mDb.fixData();
         startForeground(1, getNotify());
@@ -214,23 +234,74 @@ public class DownloadService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        synchronized (mThreadList) {
-            for (DownloadThread thread : mThreadList) {
-                thread.forceAbort();
-            }
+        // the waiting ones stay queued in the database
+        for (DownloadScheduler.Task task : mScheduler.getRunningTasks()) {
+            ((DownloadTask) task).forceAbort();
         }
         stopForeground(true);
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (!mQueueRestored) {
+            mQueueRestored = true;
+            for (DownloadRequestInfo info : mDb.getQueuedRequestInfo()) {
+                mScheduler.enqueue(new DownloadTask(info, true));
+            }
+        }
+
         if (intent != null) {
             DownloadRequestInfo info = (DownloadRequestInfo) intent.getSerializableExtra(EXTRA_DOWNLOAD_INFO);
             if (info != null) {
-                new DownloadThread(info).start();
+                enqueue(info, false);
+            }
+
+            long resumeId = intent.getLongExtra(EXTRA_RESUME_ID, -1);
+            if (resumeId >= 0 && mScheduler.find(resumeId) == null) {
+                info = mDb.getRequestInfo(resumeId);
+                if (info != null)
+                    enqueue(info, true);
             }
         }
-        return START_NOT_STICKY;
+
+        if (mScheduler.isIdle()) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        // restarted after the process is killed, to go on with the queue
+        return START_STICKY;
+    }
+
+    private void enqueue(DownloadRequestInfo info, boolean resume) {
+        info.setState(DownloadInfo.STATE_QUEUED);
+        if (mDb.insert(info) < 0) {
+            showToast("DownloadInfoDatabase#insert failed");
+            return;
+        }
+        mScheduler.enqueue(new DownloadTask(info, resume));
+        sendState(info);
+    }
+
+    private void stopIfIdle() {
+        if (mScheduler.isIdle())
+            stopSelf();
+    }
+
+    private void sendState(DownloadRequestInfo info) {
+        try {
+            mMessenger.send(Message.obtain(null, UPDATE_STATE, info));
+        } catch (RemoteException e) {
+            ErrorReport.printAndWriteLog(e);
+        }
+    }
+
+    private void showToast(final String str) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(getApplicationContext(), str, Toast.LENGTH_LONG).show();
+            }
+        });
     }
 
     @Override
@@ -248,14 +319,29 @@ public class DownloadService extends Service {
         }
     }
 
-    private class DownloadThread extends Thread {
-        private static final int DOWNLOAD_BUFFER_SIZE = 1024 * 10;
+    /**
+     * Continues an interrupted download from the progress saved in the database.
+     */
+    public static void resumeDownload(Context context, long id) {
+        Intent intent = new Intent(context, DownloadService.class);
+        intent.putExtra(DownloadService.EXTRA_RESUME_ID, id);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.startForegroundService(intent);
+        } else {
+            context.startService(intent);
+        }
+    }
+
+    private class DownloadTask implements DownloadScheduler.Task {
         private final DownloadRequestInfo mData;
-        private boolean mAbort = false;
-        private boolean mForceAbort = false;
+        private final boolean mResume;
+        private volatile boolean mAbort = false;
+        private volatile boolean mForceAbort = false;
+        private volatile boolean mPause = false;
 
-        DownloadThread(DownloadRequestInfo data) {
+        DownloadTask(DownloadRequestInfo data, boolean resume) {
             mData = data;
+            mResume = resume;
         }
 
         void forceAbort() {
@@ -266,9 +352,25 @@ public class DownloadService extends Service {
         void abort() {
             mForceAbort = false;
             mAbort = true;
+            if (mScheduler.dequeue(this))
+                onDequeued(DownloadInfo.STATE_CANCELED);
+        }
+
+        void pause() {
+            mPause = true;
+            mAbort = true;
+            if (mScheduler.dequeue(this))
+                onDequeued(DownloadInfo.STATE_PAUSED);
+        }
+
+        private void onDequeued(int state) {
+            mData.setState(state);
+            mDb.updateState(mData);
+            sendState(mData);
         }
 
-        DownloadRequestInfo getDownloadRequestInfo() {
+        @Override
+        public DownloadRequestInfo getDownloadRequestInfo() {
             return mData;
         }
 
@@ -276,35 +378,26 @@ public class DownloadService extends Service {
         public void run() {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
-            synchronized (mThreadList) {
-                mThreadList.add(this);
-            }
-
-            WakeLock wakelock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "DownloadThread");
-            wakelock.acquire();
-
+            mData.setState(DownloadInfo.STATE_DOWNLOADING);
             if (mData.getUrl().startsWith("data:")) {
                 base64Download();
             } else {
                 normalDownload();
             }
 
-            wakelock.release();
-
-            synchronized (mThreadList) {
-                mThreadList.remove(this);
-                if (mThreadList.isEmpty()) {
-                    stopSelf();
-                }
+            if (mData.getState() == DownloadInfo.STATE_DOWNLOADING) {
+                // gave up before the transfer started
+                mData.setState(DownloadInfo.STATE_UNKNOWN_ERROR);
+                mDb.updateState(mData);
+                sendState(mData);
             }
         }
 
-        private void normalDownload() {
+        private HttpClientBuilder createHttpClient() {
             HttpClientBuilder httpClient = HttpClientBuilder.createInstance(mData.getUrl());
-            if (httpClient == null) {
-                showToast("HttpClientBuilder is null");
-                return;
-            }
+            if (httpClient == null) return null;
+
+            httpClient.setTimeout(CONNECT_TIMEOUT, READ_TIMEOUT);
 
             String cookie = CookieManager.getInstance().getCookie(mData.getUrl());
             if (!TextUtils.isEmpty(cookie)) {
@@ -316,13 +409,40 @@ public class DownloadService extends Service {
                 httpClient.setHeader("Referer", referer);
             }
 
-            httpClient.setHeader("Connection", "close");
-
             if (TextUtils.isEmpty(mData.getUserAgent())) {
                 httpClient.setHeader("User-Agent", WebSettings.getDefaultUserAgent(getApplicationContext()));
             } else {
                 httpClient.setHeader("User-Agent", mData.getUserAgent());
             }
+            return httpClient;
+        }
+
+        private void normalDownload() {
+            List<DownloadSegment> segments = null;
+            DownloadSegment first = null;
+            if (mResume) {
+                segments = mDb.getSegments(mData.getId());
+                for (DownloadSegment segment : segments) {
+                    if (!segment.isFinished()) {
+                        first = segment;
+                        break;
+                    }
+                }
+                if (first == null || mData.getFile() == null || !mData.getFile().exists())
+                    segments = null;
+            }
+
+            HttpClientBuilder httpClient = createHttpClient();
+            if (httpClient == null) {
+                showToast("HttpClientBuilder is null");
+                return;
+            }
+
+            if (segments != null) {
+                httpClient.setHeader("Range", first.getRangeHeader());
+                if (mData.getValidator() != null)
+                    httpClient.setHeader("If-Range", mData.getValidator());
+            }
 
             NotificationCompat.Builder notification =
                     new NotificationCompat.Builder(getApplicationContext(), Constants.notification.CHANNEL_DOWNLOAD_NOTIFY);
@@ -349,28 +469,48 @@ public class DownloadService extends Service {
                 return;
             }
 
-            File file = mData.getFile();
+            boolean resumed = segments != null && response.getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+            if (!resumed) {
+                // a new download, or the file changed on the server: the response is the whole body
+                File file = mData.getFile();
 
-            if (file == null) {
-                file = HttpUtils.getFileName(mData.getUrl(), mData.getDefaultExt(), response.getHeaderFields());
-                mData.setFile(file);
-            }
+                if (file == null) {
+                    file = HttpUtils.getFileName(mData.getUrl(), mData.getDefaultExt(), response.getHeaderFields());
+                    mData.setFile(file);
+                }
 
-            mData.setFile(FileUtils.replaceProhibitionWord(mData.getFile()));
+                mData.setFile(FileUtils.replaceProhibitionWord(mData.getFile()));
+
+                long length = response.getContentLength();
+                mData.setMaxLength(length);
+                mData.setValidator(getValidator(response));
+                int count = 1;
+                if (length >= SegmentedDownloader.MIN_SEGMENT_SIZE * 2 && "bytes".equalsIgnoreCase(response.getHeaderField("Accept-Ranges")))
+                    count = (int) Math.min(SegmentedDownloader.MAX_CONNECTIONS, length / SegmentedDownloader.MIN_SEGMENT_SIZE);
+                segments = DownloadSegment.split(length, count);
+                first = segments.get(0);
+            }
 
+            File file = mData.getFile();
             if (file.getParentFile() != null) {
                 //noinspection ResultOfMethodCallIgnored
                 file.getParentFile().mkdirs();
             }
 
+            mData.setState(DownloadInfo.STATE_DOWNLOADING);
             long id = mDb.insert(mData);
             if (id < 0) {
                 showToast("DownloadInfoDatabase#insert failed");
+                httpClient.destroy();
                 return;
             }
 
-            try (OutputStream outputStream = new FileOutputStream(file);
-                 InputStream inputStream = response.getInputStream()) {
+            try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+                if (!resumed) {
+                    output.setLength(0);
+                    if (mData.getMaxLength() > 0)
+                        output.setLength(mData.getMaxLength());
+                }
 
                 notification.setSmallIcon(android.R.drawable.stat_sys_download);
                 notification.setOngoing(true);
@@ -380,58 +520,64 @@ public class DownloadService extends Service {
                 notification.setContentIntent(PendingIntent.getActivity(getApplicationContext(), 0, new Intent(getApplicationContext(), DownloadListActivity.class), 0));
                 mNotificationManager.notify((int) id, notification.build());//long to int
 
-                int max = (int) response.getContentLength();
-                mData.setMaxLength(max);
-                int progress = 0;
-                int n;
-                byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
-                long old_sec = System.currentTimeMillis();
-                long new_sec = old_sec;
+                SegmentedDownloader downloader = new SegmentedDownloader(output.getChannel(), segments, this::createHttpClient, mData.getValidator());
+                downloader.start(first, httpClient, response);
 
-                while ((n = inputStream.read(buffer)) >= 0) {
-                    if (mAbort) break;
+                // the segment threads only count bytes, the progress is sampled here
+                int lastProgress = -1;
+                String lastText = null;
+                long lastSave = SystemClock.elapsedRealtime();
+                while (!downloader.await(NOTIFICATION_INTERVAL)) {
+                    if (mAbort) downloader.abort();
 
-                    outputStream.write(buffer, 0, n);
-                    progress += n;
-
-                    if (new_sec > old_sec + NOTIFICATION_INTERVAL) {
-                        notification.setProgress(max, progress, (max <= 0));
-                        notification.setContentText(mData.getNotificationString(getApplicationContext()));
-                        mNotificationManager.notify((int) id, notification.build());//long to int
-                        mData.setCurrentLength(progress);
-
-                        try {
-                            mMessenger.send(Message.obtain(null, UPDATE_PROGRESS, mData));
-                        } catch (RemoteException e) {
-                            ErrorReport.printAndWriteLog(e);
-                        }
+                    long now = SystemClock.elapsedRealtime();
+                    if (now - lastSave >= SEGMENT_SAVE_INTERVAL) {
+                        mDb.saveSegments(id, segments);
+                        lastSave = now;
+                    }
 
-                        old_sec = new_sec;
+                    mData.setCurrentLength(DownloadSegment.getDownloadedLength(segments));
+                    int progress = mData.getProgress();
+                    String text = mData.getNotificationString(getApplicationContext());
+                    if (progress == lastProgress && text.equals(lastText)) continue;
+                    lastProgress = progress;
+                    lastText = text;
+
+                    notification.setProgress(DownloadRequestInfo.PROGRESS_MAX, progress, (mData.getMaxLength() <= 0));
+                    notification.setContentText(text);
+                    mNotificationManager.notify((int) id, notification.build());//long to int
+
+                    try {
+                        mMessenger.send(Message.obtain(null, UPDATE_PROGRESS, mData));
+                    } catch (RemoteException e) {
+                        ErrorReport.printAndWriteLog(e);
                     }
-                    new_sec = System.currentTimeMillis();//busy?
                 }
 
-                outputStream.flush();
-
-                if (!mAbort)
+                if (!mAbort && downloader.isSucceeded()) {
+                    if (mData.getMaxLength() < 0)
+                        output.setLength(DownloadSegment.getDownloadedLength(segments));
                     mData.setState(DownloadInfo.STATE_DOWNLOADED);
-                else if (mForceAbort)
-                    mData.setState(DownloadInfo.STATE_UNKNOWN_ERROR);
-                else
-                    mData.setState(DownloadInfo.STATE_CANCELED);
+                    mDb.deleteSegments(id);
+                } else {
+                    // kept, so that the download can be resumed
+                    mDb.saveSegments(id, segments);
+                    if (mAbort && mPause)
+                        mData.setState(DownloadInfo.STATE_PAUSED);
+                    else if (mAbort && !mForceAbort)
+                        mData.setState(DownloadInfo.STATE_CANCELED);
+                    else
+                        mData.setState(DownloadInfo.STATE_UNKNOWN_ERROR);
+                }
 
                 mDb.updateState(mData);
-
-                try {
-                    mMessenger.send(Message.obtain(null, UPDATE_STATE, mData));
-                } catch (RemoteException e) {
-                    ErrorReport.printAndWriteLog(e);
-                }
+                sendState(mData);
             } catch (IOException e) {
                 ErrorReport.printAndWriteLog(e);
             } finally {
                 switch (mData.getState()) {
                     case DownloadInfo.STATE_CANCELED:
+                    case DownloadInfo.STATE_PAUSED:
                         mNotificationManager.cancel((int) id);
                         break;
                     case DownloadInfo.STATE_DOWNLOADED: {
@@ -469,6 +615,14 @@ public class DownloadService extends Service {
             }
         }
 
+        private String getValidator(HttpResponseData response) {
+            String etag = response.getHeaderField("ETag");
+            // weak tags are not allowed in If-Range
+            if (etag != null && !etag.startsWith("W/"))
+                return etag;
+            return response.getHeaderField("Last-Modified");
+        }
+
         private void base64Download() {
             DownloadUtils.Base64Image image = DownloadUtils.decodeBase64Image(mData.getUrl());
             if (!image.isValid()) return;
@@ -512,20 +666,7 @@ public class DownloadService extends Service {
             }
 
             mDb.updateState(mData);
-            synchronized (mThreadList) {
-                if (mThreadList.isEmpty()) {
-                    stopSelf();
-                }
-            }
-        }
-
-        private void showToast(final String str) {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    Toast.makeText(getApplicationContext(), str, Toast.LENGTH_LONG).show();
-                }
-            });
+            sendState(mData);
         }
     }
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2017 Hazuki
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.hazuki.yuzubrowser.download;
+
+import android.os.Process;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jp.hazuki.yuzubrowser.utils.ErrorReport;
+import jp.hazuki.yuzubrowser.utils.net.HttpClientBuilder;
+import jp.hazuki.yuzubrowser.utils.net.HttpResponseData;
+
+/**
+ * Writes the body of a download into its file, one connection per unfinished segment.
+ * A dropped connection is opened again with a Range request from where its segment stopped.
+ * Aborting closes the open connections, so that reads blocked on a stalled socket return at once.
+ */
+class SegmentedDownloader {
+    static final int MAX_CONNECTIONS = 4;
+    /* bodies are only split into segments at least that large */
+    static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final int RETRY_COUNT = 3;
+    private static final long RETRY_DELAY = 1000;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    interface ClientFactory {
+        /**
+         * @return a client with the headers of the download set, or null
+         */
+        HttpClientBuilder create();
+    }
+
+    private final FileChannel mChannel;
+    private final List<DownloadSegment> mSegments;
+    private final ClientFactory mFactory;
+    private final String mValidator;
+    /* connections of the running segments */
+    private final HashSet<HttpClientBuilder> mClients = new HashSet<>();
+    private CountDownLatch mLatch;
+    private volatile boolean mAbort;
+    private volatile boolean mFailed;
+
+    SegmentedDownloader(FileChannel channel, List<DownloadSegment> segments, ClientFactory factory, String validator) {
+        mChannel = channel;
+        mSegments = segments;
+        mFactory = factory;
+        mValidator = validator;
+    }
+
+    /**
+     * Starts a thread per unfinished segment.
+     * The response already received is read by the segment it was requested for.
+     */
+    void start(DownloadSegment first, HttpClientBuilder client, HttpResponseData response) {
+        int count = 0;
+        for (DownloadSegment segment : mSegments)
+            if (!segment.isFinished())
+                count++;
+        mLatch = new CountDownLatch(count);
+
+        for (final DownloadSegment segment : mSegments) {
+            if (segment.isFinished()) continue;
+            if (segment == first) {
+                startThread(segment, client, response);
+            } else {
+                startThread(segment, null, null);
+            }
+        }
+        if (first.isFinished()) {
+            client.destroy();
+        }
+    }
+
+    private void startThread(final DownloadSegment segment, final HttpClientBuilder client, final HttpResponseData response) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                transfer(segment, client, response);
+            }
+        }, "DownloadSegment").start();
+    }
+
+    /**
+     * @return true if every thread is done
+     */
+    boolean await(long millis) {
+        try {
+            return mLatch.await(millis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    void abort() {
+        synchronized (mClients) {
+            mAbort = true;
+            for (HttpClientBuilder client : mClients)
+                client.destroy();
+            mClients.clear();
+        }
+    }
+
+    /**
+     * @return false if aborted, the client is then left to the caller to destroy
+     */
+    private boolean register(HttpClientBuilder client) {
+        synchronized (mClients) {
+            if (mAbort) return false;
+            mClients.add(client);
+            return true;
+        }
+    }
+
+    private void release(HttpClientBuilder client) {
+        synchronized (mClients) {
+            mClients.remove(client);
+        }
+        client.destroy();
+    }
+
+    boolean isSucceeded() {
+        if (mFailed) return false;
+        for (DownloadSegment segment : mSegments)
+            if (!segment.isFinished())
+                return false;
+        return true;
+    }
+
+    private void transfer(DownloadSegment segment, HttpClientBuilder client, HttpResponseData response) {
+        try {
+            if (client != null && !register(client)) return;
+
+            byte[] buffer = null;
+            int retry = 0;
+            while (!mAbort && !segment.isFinished()) {
+                if (response == null) {
+                    client = mFactory.create();
+                    if (client == null) {
+                        mFailed = true;
+                        return;
+                    }
+                    if (!register(client)) return;
+                    client.setHeader("Range", segment.getRangeHeader());
+                    if (mValidator != null)
+                        client.setHeader("If-Range", mValidator);
+                    response = client.connect();
+                    if (response != null && response.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                        // the file changed on the server, or it does not serve ranges after all
+                        mFailed = true;
+                        return;
+                    }
+                }
+
+                if (response != null) {
+                    long before = segment.current;
+                    if (buffer == null)
+                        buffer = new byte[BUFFER_SIZE];
+                    try (InputStream inputStream = response.getInputStream()) {
+                        copy(segment, inputStream, buffer);
+                    } catch (IOException e) {
+                        // closed by abort(), or a read timeout to retry
+                        if (!mAbort)
+                            ErrorReport.printAndWriteLog(e);
+                    } finally {
+                        release(client);
+                    }
+                    if (segment.current > before)
+                        retry = 0;
+                } else {
+                    release(client);
+                }
+                client = null;
+                response = null;
+
+                if (mAbort || segment.isFinished()) break;
+                if (++retry > RETRY_COUNT) {
+                    mFailed = true;
+                    return;
+                }
+                try {
+                    Thread.sleep(RETRY_DELAY * retry);
+                } catch (InterruptedException e) {
+                    mFailed = true;
+                    return;
+                }
+            }
+        } finally {
+            if (client != null)
+                release(client);
+            mLatch.countDown();
+        }
+    }
+
+    /**
+     * Large reads straight into the array the channel writes from.
+     * Channels#newChannel and FileChannel#transferFrom were slower here, they go through 8KB steps for a socket stream.
+     */
+    private void copy(DownloadSegment segment, InputStream inputStream, byte[] buffer) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long position = segment.current;
+        while (!mAbort) {
+            int length = buffer.length;
+            if (segment.end >= 0) {
+                long left = segment.end - position;
+                if (left <= 0) break;
+                if (left < length) length = (int) left;
+            }
+
+            int n = inputStream.read(buffer, 0, length);
+            if (n < 0) {
+                if (segment.end < 0)
+                    segment.end = position;
+                break;
+            }
+
+            byteBuffer.clear();
+            byteBuffer.limit(n);
+            while (byteBuffer.hasRemaining())
+                position += mChannel.write(byteBuffer, position);
+            segment.current = position;
+        }
+    }
+}
@@ -18,38 +18,118 @@ package jp.hazuki.yuzubrowser.favicon;
 
 import android.graphics.Bitmap;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
-class FaviconCache extends LinkedHashMap<Long, Bitmap> {
+/**
+ * LRU of decoded favicons bounded by the bytes the bitmaps allocate.
+ * The listener is called outside of the cache lock.
+ */
+class FaviconCache {
 
+    private final LinkedHashMap<Long, Bitmap> mMap = new LinkedHashMap<>(64, 0.75f, true);
     private final OnIconCacheOverFlowListener mListener;
+    private final CacheStats mStats = new CacheStats();
+    private int mMaxSize;
     private int mSize;
 
-    FaviconCache(int cacheSize, OnIconCacheOverFlowListener listener) {
-        super(cacheSize, 0.75f, true);
-        mSize = cacheSize;
+    FaviconCache(int maxSize, OnIconCacheOverFlowListener listener) {
+        mMaxSize = maxSize;
         mListener = listener;
     }
 
-    @Override
-    protected boolean removeEldestEntry(Map.Entry<Long, Bitmap> eldest) {
-        boolean result = size() > mSize;
-        if (result) {
-            mListener.onCacheOverflow(eldest.getKey());
+    Bitmap get(Long key) {
+        Bitmap bitmap;
+        synchronized (this) {
+            bitmap = mMap.get(key);
+        }
+        if (bitmap != null)
+            mStats.hit();
+        else
+            mStats.miss();
+        return bitmap;
+    }
+
+    synchronized boolean containsKey(Long key) {
+        return mMap.containsKey(key);
+    }
+
+    void put(Long key, Bitmap value) {
+        if (value == null) return;
+        int size = sizeOf(value);
+        List<Long> evicted;
+        synchronized (this) {
+            if (size > mMaxSize) return;
+            Bitmap old = mMap.put(key, value);
+            mSize += size;
+            if (old != null)
+                mSize -= sizeOf(old);
+            evicted = trim(mMaxSize);
+        }
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Evicts the least recently used icons until the cache holds at most {@code maxSize} bytes.
+     *
+     * @return number of icons evicted
+     */
+    int trimToSize(int maxSize) {
+        List<Long> evicted;
+        synchronized (this) {
+            evicted = trim(maxSize);
+        }
+        notifyEvicted(evicted);
+        return evicted != null ? evicted.size() : 0;
+    }
+
+    synchronized void clear() {
+        mMap.clear();
+        mSize = 0;
+    }
+
+    synchronized void setSize(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+    synchronized int getSize() {
+        return mSize;
+    }
+
+    CacheStats getStats() {
+        return mStats;
+    }
+
+    private List<Long> trim(int maxSize) {
+        List<Long> evicted = null;
+        Iterator<Map.Entry<Long, Bitmap>> itr = mMap.entrySet().iterator();
+        while (mSize > maxSize && itr.hasNext()) {
+            Map.Entry<Long, Bitmap> eldest = itr.next();
+            mSize -= sizeOf(eldest.getValue());
+            itr.remove();
+            if (evicted == null)
+                evicted = new ArrayList<>();
+            evicted.add(eldest.getKey());
         }
-        return result;
+        return evicted;
     }
 
-    @Override
-    public Bitmap put(Long key, Bitmap value) {
-        if (value != null)
-            return super.put(key, value);
-        return null;
+    private void notifyEvicted(List<Long> evicted) {
+        if (evicted == null) return;
+        mStats.evict(evicted.size());
+        for (Long key : evicted)
+            mListener.onCacheOverflow(key);
     }
 
-    void setSize(int size) {
-        mSize = size;
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getAllocationByteCount();
     }
 
     interface OnIconCacheOverFlowListener {
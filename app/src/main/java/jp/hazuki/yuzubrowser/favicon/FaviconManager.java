@@ -16,11 +16,13 @@
 
 package jp.hazuki.yuzubrowser.favicon;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.text.TextUtils;
+import android.util.SparseIntArray;
 
 import com.crashlytics.android.Crashlytics;
 
@@ -47,6 +49,10 @@ public class FaviconManager implements FaviconCache.OnIconCacheOverFlowListener,
     private final FaviconCacheIndex diskCacheIndex;
     private final FaviconCache ramCache;
     private final Map<String, Long> ramCacheIndex;
+    private final CacheStats diskStats = new CacheStats();
+    /* onTrimMemory level -> calls, and icons evicted by them */
+    private final SparseIntArray trimCounts = new SparseIntArray();
+    private final SparseIntArray trimEvictions = new SparseIntArray();
 
     private static FaviconManager faviconManager;
 
@@ -66,6 +72,15 @@ public class FaviconManager implements FaviconCache.OnIconCacheOverFlowListener,
         }
     }
 
+    /**
+     * Shrinks the memory cache of the current instance, if any, for {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public static void trimMemory(int level) {
+        FaviconManager manager = faviconManager;
+        if (manager != null)
+            manager.onTrimMemory(level);
+    }
+
     public void save() {
         try {
             diskCache.flush();
@@ -113,22 +128,28 @@ public class FaviconManager implements FaviconCache.OnIconCacheOverFlowListener,
 
         url = getNormalUrl(url);
 
+        Long hash;
         synchronized (ramCacheIndex) {
-            Long icon = ramCacheIndex.get(url);
-            if (icon != null) {
-                return ramCache.get(icon);
-            }
+            hash = ramCacheIndex.get(url);
+        }
+        if (hash != null) {
+            Bitmap icon = ramCache.get(hash);
+            if (icon != null) return icon;
+        } else {
+            ramCache.getStats().miss();
         }
 
         FaviconCacheIndex.Result result = diskCacheIndex.get(url);
         if (result.exists) {
             Bitmap icon = getFromDiskCache(Gochiusearch.getHashString(result.hash));
             if (icon != null) {
+                diskStats.hit();
                 ramCache.put(result.hash, icon);
                 synchronized (ramCacheIndex) {
                     ramCacheIndex.put(url, result.hash);
                 }
             } else {
+                diskStats.miss();
                 try {
                     diskCacheIndex.remove(result.hash);
                 } catch (SQLiteException e) {
@@ -138,6 +159,7 @@ public class FaviconManager implements FaviconCache.OnIconCacheOverFlowListener,
             return icon;
         }
 
+        diskStats.miss();
         return null;
     }
 
@@ -148,9 +170,10 @@ public class FaviconManager implements FaviconCache.OnIconCacheOverFlowListener,
 
         synchronized (ramCacheIndex) {
             Long icon = ramCacheIndex.get(url);
-            if (icon != null) {
+            Bitmap bitmap = icon != null ? ramCache.get(icon) : null;
+            if (bitmap != null) {
                 ByteArrayOutputStream os = new ByteArrayOutputStream();
-                ramCache.get(icon).compress(Bitmap.CompressFormat.PNG, 100, os);
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
                 return os.toByteArray();
             }
         }
@@ -163,6 +186,55 @@ public class FaviconManager implements FaviconCache.OnIconCacheOverFlowListener,
         return null;
     }
 
+    public void onTrimMemory(int level) {
+        int evicted = 0;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            evicted = ramCache.trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            evicted = ramCache.trimToSize(ramCache.getMaxSize() / 2);
+        }
+
+        synchronized (trimCounts) {
+            trimCounts.put(level, trimCounts.get(level) + 1);
+            trimEvictions.put(level, trimEvictions.get(level) + evicted);
+        }
+    }
+
+    /**
+     * @return copy of the number of {@link #onTrimMemory(int)} calls by level
+     */
+    public SparseIntArray getTrimCounts() {
+        synchronized (trimCounts) {
+            return trimCounts.clone();
+        }
+    }
+
+    /**
+     * @return copy of the number of icons evicted from memory by {@link #onTrimMemory(int)}, by level
+     */
+    public SparseIntArray getTrimEvictions() {
+        synchronized (trimCounts) {
+            return trimEvictions.clone();
+        }
+    }
+
+    public CacheStats getRamCacheStats() {
+        return ramCache.getStats();
+    }
+
+    public CacheStats getDiskCacheStats() {
+        return diskStats;
+    }
+
+    /**
+     * @return bytes allocated by the icons held in memory
+     */
+    public int getRamCacheSize() {
+        return ramCache.getSize();
+    }
+
     public void destroy() {
         ramCache.clear();
         ramCacheIndex.clear();
@@ -292,6 +364,7 @@ public class FaviconManager implements FaviconCache.OnIconCacheOverFlowListener,
 
     @Override
     public void onTrim(String key) {
+        diskStats.evict(1);
         diskCacheIndex.remove(Gochiusearch.parseHashString(key));
     }
 }
@@ -34,6 +34,7 @@ public abstract class GestureManager {
     }
 
     public boolean load() {
+        mDatabase.load();
         return mLibrary.load();
     }
 
@@ -2,13 +2,18 @@ package jp.hazuki.yuzubrowser.history;
 
 import android.content.Context;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import jp.hazuki.yuzubrowser.utils.ErrorReport;
 import jp.hazuki.yuzubrowser.utils.Logger;
 
 public class BrowserHistoryAsyncManager {
     private static final int ADD_URL = 1;
     private static final int UPDATE_TITLE = 2;
+    /* how long to wait for the rest of a redirect chain or title change before writing */
+    private static final long BATCH_WINDOW = 200;
     private final MyThread mThread;
     private final BrowserHistoryManager mHistoryManager;
 
@@ -38,6 +43,7 @@ public class BrowserHistoryAsyncManager {
         public final int what;
         public final String url;
         public final Object obj;
+        public final long time = System.currentTimeMillis();
 
         public MyMessage(int what, String url, Object obj) {
             this.what = what;
@@ -55,6 +61,7 @@ public class BrowserHistoryAsyncManager {
     private static class MyThread extends Thread {
         private final BrowserHistoryManager mHistoryManager;
         private final LinkedBlockingQueue<MyMessage> mMessageQueue = new LinkedBlockingQueue<>();
+        private final ArrayList<MyMessage> mBatch = new ArrayList<>();
 
         MyThread(BrowserHistoryManager manager) {
             mHistoryManager = manager;
@@ -66,28 +73,47 @@ public class BrowserHistoryAsyncManager {
             setPriority(MIN_PRIORITY);
             try {
                 while (true) {
-                    handleMessage(mMessageQueue.take());
+                    mBatch.add(mMessageQueue.take());
+                    try {
+                        Thread.sleep(BATCH_WINDOW);
+                    } finally {
+                        mMessageQueue.drainTo(mBatch);
+                        handleMessages(mBatch);
+                        mBatch.clear();
+                    }
                 }
             } catch (InterruptedException e) {
                 Logger.i("history", "thread stop");
             }
         }
 
-        private void handleMessage(MyMessage msg) {
-            switch (msg.what) {
-                case ADD_URL:
-                    mHistoryManager.add(msg.url);
-                    break;
-                case UPDATE_TITLE:
-                    mHistoryManager.update(msg.url, (String) msg.obj);
-                    break;
+        private void handleMessages(ArrayList<MyMessage> messages) {
+            LinkedHashMap<String, BrowserHistoryManager.Visit> visits = new LinkedHashMap<>();
+            for (MyMessage msg : messages) {
+                BrowserHistoryManager.Visit visit = visits.get(msg.url);
+                if (visit == null) {
+                    visit = new BrowserHistoryManager.Visit(msg.url);
+                    visits.put(msg.url, visit);
+                }
+                switch (msg.what) {
+                    case ADD_URL:
+                        visit.time = msg.time;
+                        break;
+                    case UPDATE_TITLE:
+                        visit.title = (String) msg.obj;
+                        visit.hasTitle = true;
+                        break;
+                }
+            }
+            try {
+                mHistoryManager.apply(visits.values());
+            } catch (RuntimeException e) {
+                ErrorReport.printAndWriteLog(e);
             }
         }
 
         public void sendMessage(MyMessage msg) {
             mMessageQueue.add(msg);
         }
-
-
     }
 }
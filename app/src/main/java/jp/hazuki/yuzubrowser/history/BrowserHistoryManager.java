@@ -16,27 +16,33 @@
 
 package jp.hazuki.yuzubrowser.history;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
 
+import jp.hazuki.yuzubrowser.search.LocalSuggestIndex;
 import jp.hazuki.yuzubrowser.settings.data.AppData;
 import jp.hazuki.yuzubrowser.utils.database.CursorLoadable;
 
 public class BrowserHistoryManager implements CursorLoadable {
     private static final String DB_NAME = "webhistory1.db";
-    private static final int DB_VERSION = 3;
+    private static final int DB_VERSION = 5;
     private static final String TABLE_NAME = "main_table1";
+    private static final String SEARCH_TABLE_NAME = "main_table1_search";
 
     public static final String COLUMN_ID = "_id";
     public static final String COLUMN_URL = "url";
     public static final String COLUMN_TITLE = "title";
     public static final String COLUMN_TIME = "time";
+    public static final String COLUMN_VISITS = "visits";
 
     public static final int COLUMN_ID_INDEX = 0;
     public static final int COLUMN_URL_INDEX = 1;
@@ -70,49 +76,88 @@ public class BrowserHistoryManager implements CursorLoadable {
                     " LIMIT -1 OFFSET " + max_count + ")");
     }
 
-    public void add(String url) {
-        if (!checkUrl(url)) return;
-
+    /**
+     * Writes visits and titles in one transaction.
+     * A new url is inserted with its title, a known one gets the new time, and the title only if it changed.
+     */
+    void apply(Collection<Visit> visits) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        Cursor c = db.query(TABLE_NAME, new String[]{COLUMN_ID}, COLUMN_URL + " = ?", new String[]{url}, null, null, null, "1");
-        if (c.moveToFirst()) {
-            ContentValues values = new ContentValues();
-            values.put(COLUMN_TIME, System.currentTimeMillis());
-            db.update(TABLE_NAME, values, COLUMN_ID + " = " + c.getLong(0), null);
-        } else {
-            ContentValues values = new ContentValues();
-            values.put(COLUMN_URL, url);
-            values.put(COLUMN_TIME, System.currentTimeMillis());
-            db.insert(TABLE_NAME, null, values);
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_NAME +
+                "(" + COLUMN_URL + ", " + COLUMN_TITLE + ", " + COLUMN_TIME + ") VALUES (?, ?, ?)");
+        SQLiteStatement updateTime = db.compileStatement("UPDATE " + TABLE_NAME +
+                " SET " + COLUMN_TIME + " = ?, " + COLUMN_VISITS + " = " + COLUMN_VISITS + " + 1 WHERE " + COLUMN_URL + " = ?");
+        SQLiteStatement updateTitle = db.compileStatement("UPDATE " + TABLE_NAME +
+                " SET " + COLUMN_TITLE + " = ? WHERE " + COLUMN_URL + " = ? AND " + COLUMN_TITLE + " IS NOT ?");
+        db.beginTransaction();
+        try {
+            for (Visit visit : visits) {
+                if (!checkUrl(visit.url)) continue;
+
+                boolean inserted = false;
+                if (visit.time > 0) {
+                    insert.bindString(1, visit.url);
+                    bindStringOrNull(insert, 2, visit.title);
+                    insert.bindLong(3, visit.time);
+                    inserted = insert.executeInsert() != -1;
+                    if (!inserted) {
+                        updateTime.bindLong(1, visit.time);
+                        updateTime.bindString(2, visit.url);
+                        updateTime.executeUpdateDelete();
+                    }
+                }
+                if (!inserted && visit.hasTitle) {
+                    bindStringOrNull(updateTitle, 1, visit.title);
+                    updateTitle.bindString(2, visit.url);
+                    bindStringOrNull(updateTitle, 3, visit.title);
+                    updateTitle.executeUpdateDelete();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            updateTime.close();
+            updateTitle.close();
         }
-        c.close();
-    }
 
-    public void update(String url, String title) {
-        if (!checkUrl(url)) return;
+        for (Visit visit : visits) {
+            if (checkUrl(visit.url))
+                LocalSuggestIndex.onVisited(visit.url, visit.hasTitle ? visit.title : null, visit.time);
+        }
+    }
 
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_TITLE, title);
-        db.update(TABLE_NAME, values, COLUMN_URL + " = ?", new String[]{url});
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value != null)
+            statement.bindString(index, value);
+        else
+            statement.bindNull(index);
     }
 
     public void delete(String url) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         db.delete(TABLE_NAME, COLUMN_URL + " = ?", new String[]{url});
+        LocalSuggestIndex.onHistoryDeleted(url);
     }
 
     public void deleteWithSearch(String query) {
-        query = query.replace("%", "$%").replace("_", "$_");
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        db.delete(TABLE_NAME, COLUMN_TITLE + " LIKE '%' || ? || '%' OR "
-                        + COLUMN_URL + " LIKE '%' || ? || '%' ESCAPE '$'",
-                new String[]{query, query});
+        String match = toMatchQuery(query);
+        if (match != null) {
+            db.delete(TABLE_NAME, COLUMN_ID + " IN (SELECT docid FROM " + SEARCH_TABLE_NAME +
+                    " WHERE " + SEARCH_TABLE_NAME + " MATCH ?)", new String[]{match});
+        } else {
+            query = query.replace("%", "$%").replace("_", "$_");
+            db.delete(TABLE_NAME, COLUMN_TITLE + " LIKE '%' || ? || '%' OR "
+                            + COLUMN_URL + " LIKE '%' || ? || '%' ESCAPE '$'",
+                    new String[]{query, query});
+        }
+        LocalSuggestIndex.invalidate();
     }
 
     public void deleteAll() {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         db.delete(TABLE_NAME, null, null);
+        LocalSuggestIndex.onHistoryDeleted(null);
     }
 
     public String[] getHistoryArray(int limit) {
@@ -146,14 +191,27 @@ public class BrowserHistoryManager implements CursorLoadable {
         return histories;
     }
 
+    /**
+     * Words of the query are matched as prefixes of the words of titles and urls through the search index.
+     * Queries with non-ASCII characters, which the index does not split into words, fall back to a substring scan.
+     */
     public ArrayList<BrowserHistory> search(String query, int offset, int limit) {
-        query = query.replace("%", "$%").replace("_", "$_");
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
         ArrayList<BrowserHistory> histories = new ArrayList<>();
-        Cursor c = db.query(TABLE_NAME, null,
-                COLUMN_TITLE + " LIKE '%' || ? || '%' OR "
-                        + COLUMN_URL + " LIKE '%' || ? || '%' ESCAPE '$'",
-                new String[]{query, query}, null, null, COLUMN_TIME + " DESC", offset + ", " + limit);
+        String match = toMatchQuery(query);
+        Cursor c;
+        if (match != null) {
+            c = db.rawQuery("SELECT " + TABLE_NAME + ".* FROM " + TABLE_NAME +
+                    " JOIN (SELECT docid FROM " + SEARCH_TABLE_NAME + " WHERE " + SEARCH_TABLE_NAME + " MATCH ?) AS found" +
+                    " ON " + TABLE_NAME + "." + COLUMN_ID + " = found.docid" +
+                    " ORDER BY " + COLUMN_TIME + " DESC LIMIT " + limit + " OFFSET " + offset, new String[]{match});
+        } else {
+            query = query.replace("%", "$%").replace("_", "$_");
+            c = db.query(TABLE_NAME, null,
+                    COLUMN_TITLE + " LIKE '%' || ? || '%' OR "
+                            + COLUMN_URL + " LIKE '%' || ? || '%' ESCAPE '$'",
+                    new String[]{query, query}, null, null, COLUMN_TIME + " DESC", offset + ", " + limit);
+        }
         while (c.moveToNext()) {
             histories.add(new BrowserHistory(
                     c.getLong(COLUMN_ID_INDEX),
@@ -165,6 +223,27 @@ public class BrowserHistoryManager implements CursorLoadable {
         return histories;
     }
 
+    /**
+     * @return the words of the query as prefix terms, or null if the search index cannot answer it
+     */
+    static String toMatchQuery(String query) {
+        StringBuilder builder = new StringBuilder(query.length() + 8);
+        int start = -1;
+        for (int i = 0; query.length() >= i; i++) {
+            char c = i < query.length() ? query.charAt(i) : ' ';
+            if (c >= 0x80) return null;
+            if (Character.isLetterOrDigit(c)) {
+                if (start < 0) start = i;
+            } else if (start >= 0) {
+                if (builder.length() > 0) builder.append(' ');
+                // lower case, so that OR is not read as an operator
+                builder.append(query.substring(start, i).toLowerCase(Locale.ENGLISH)).append('*');
+                start = -1;
+            }
+        }
+        return builder.length() > 0 ? builder.toString() : null;
+    }
+
     private static boolean checkUrl(String url) {
         return (!TextUtils.isEmpty(url) && !url.regionMatches(true, 0, "about:", 0, 6) && !url.regionMatches(true, 0, "yuzu:", 0, 5) && !url.regionMatches(true, 0, "data:", 0, 5));
     }
@@ -175,6 +254,21 @@ public class BrowserHistoryManager implements CursorLoadable {
         return db.query(TABLE_NAME, null, null, null, null, null, COLUMN_TIME + " DESC");
     }
 
+    /**
+     * Visit and title changes of one url, merged before they are written.
+     */
+    static final class Visit {
+        final String url;
+        /* last visit, 0 if only the title changed */
+        long time;
+        String title;
+        boolean hasTitle;
+
+        Visit(String url) {
+            this.url = url;
+        }
+    }
+
     private static final class MyOpenHelper extends SQLiteOpenHelper {
         public MyOpenHelper(Context context) {
             super(context, DB_NAME, null, DB_VERSION);
@@ -189,14 +283,42 @@ public class BrowserHistoryManager implements CursorLoadable {
                         ", " + COLUMN_URL + " TEXT NOT NULL" +
                         ", " + COLUMN_TITLE + " TEXT" +
                         ", " + COLUMN_TIME + " INTEGER DEFAULT (datetime('now','localtime'))" +
+                        ", " + COLUMN_VISITS + " INTEGER NOT NULL DEFAULT 1" +
                         ")");
                 db.execSQL("CREATE UNIQUE INDEX url_index_1 ON " + TABLE_NAME + "(" + COLUMN_URL + ")");
+                createSearchIndex(db);
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
         }
 
+        /**
+         * Full text index over url and title, reading its content from the main table.
+         * Triggers keep it in sync, updates of the time alone do not touch it.
+         */
+        private static void createSearchIndex(SQLiteDatabase db) {
+            String columns = COLUMN_URL + ", " + COLUMN_TITLE;
+            try {
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + SEARCH_TABLE_NAME + " USING fts4(" +
+                        "content=\"" + TABLE_NAME + "\", " + columns + ", prefix=\"2,3\", tokenize=unicode61)");
+            } catch (SQLiteException e) {
+                // unicode61 is not built in everywhere
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + SEARCH_TABLE_NAME + " USING fts4(" +
+                        "content=\"" + TABLE_NAME + "\", " + columns + ", prefix=\"2,3\")");
+            }
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_bu BEFORE UPDATE OF " + columns + " ON " + TABLE_NAME +
+                    " BEGIN DELETE FROM " + SEARCH_TABLE_NAME + " WHERE docid = old." + COLUMN_ID + "; END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_bd BEFORE DELETE ON " + TABLE_NAME +
+                    " BEGIN DELETE FROM " + SEARCH_TABLE_NAME + " WHERE docid = old." + COLUMN_ID + "; END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_au AFTER UPDATE OF " + columns + " ON " + TABLE_NAME +
+                    " BEGIN INSERT INTO " + SEARCH_TABLE_NAME + "(docid, " + columns + ") VALUES (new." + COLUMN_ID +
+                    ", new." + COLUMN_URL + ", new." + COLUMN_TITLE + "); END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_ai AFTER INSERT ON " + TABLE_NAME +
+                    " BEGIN INSERT INTO " + SEARCH_TABLE_NAME + "(docid, " + columns + ") VALUES (new." + COLUMN_ID +
+                    ", new." + COLUMN_URL + ", new." + COLUMN_TITLE + "); END");
+        }
+
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             switch (oldVersion) {
@@ -222,11 +344,31 @@ public class BrowserHistoryManager implements CursorLoadable {
                         db.endTransaction();
                     }
                     break;
+                case 3:
+                    break;
+                case 4:
+                    addVisitsColumn(db);
+                    return;
                 default:
+                    db.execSQL("DROP TABLE IF EXISTS " + SEARCH_TABLE_NAME);
                     db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
                     onCreate(db);
-                    break;
+                    return;
             }
+
+            db.beginTransaction();
+            try {
+                addVisitsColumn(db);
+                createSearchIndex(db);
+                db.execSQL("INSERT INTO " + SEARCH_TABLE_NAME + "(" + SEARCH_TABLE_NAME + ") VALUES ('rebuild')");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        private static void addVisitsColumn(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_VISITS + " INTEGER NOT NULL DEFAULT 1");
         }
     }
 }
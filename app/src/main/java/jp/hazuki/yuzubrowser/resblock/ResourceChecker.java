@@ -1,7 +1,6 @@
 package jp.hazuki.yuzubrowser.resblock;
 
 import android.content.Context;
-import android.net.Uri;
 import android.webkit.WebResourceResponse;
 
 import com.fasterxml.jackson.core.JsonParser;
@@ -11,6 +10,7 @@ import java.io.IOException;
 
 import jp.hazuki.yuzubrowser.resblock.checker.NormalChecker;
 import jp.hazuki.yuzubrowser.utils.matcher.AbstractPatternChecker;
+import jp.hazuki.yuzubrowser.utils.net.RequestUrl;
 
 public abstract class ResourceChecker extends AbstractPatternChecker<ResourceData> {
     protected static final int NORMAL_CHECKER = 0;
@@ -27,7 +27,7 @@ public abstract class ResourceChecker extends AbstractPatternChecker<ResourceDat
         super(ResourceData.newInstance(parser));
     }
 
-    public abstract int check(Uri url);
+    public abstract int check(RequestUrl url);
 
     public WebResourceResponse getResource(Context context) {
         return getAction().getResource(context);
@@ -1,7 +1,6 @@
 package jp.hazuki.yuzubrowser.resblock.checker;
 
 import android.content.Context;
-import android.net.Uri;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
@@ -11,6 +10,7 @@ import java.io.IOException;
 
 import jp.hazuki.yuzubrowser.resblock.ResourceChecker;
 import jp.hazuki.yuzubrowser.resblock.ResourceData;
+import jp.hazuki.yuzubrowser.utils.net.RequestUrl;
 
 public class NormalChecker extends ResourceChecker {
     private static final String FIELD_URL = "0";
@@ -63,8 +63,8 @@ public class NormalChecker extends ResourceChecker {
     }
 
     @Override
-    public int check(Uri url) {
-        if (!url.toString().contains(mUrl))
+    public int check(RequestUrl url) {
+        if (!url.getUrl().contains(mUrl))
             return SHOULD_CONTINUE;
         if (mIsWhite)
             return SHOULD_BREAK;
@@ -0,0 +1,679 @@
+/*
+ * Copyright (C) 2017 Hazuki
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.hazuki.yuzubrowser.search;
+
+import android.app.SearchManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jp.hazuki.yuzubrowser.bookmark.BookmarkFolder;
+import jp.hazuki.yuzubrowser.bookmark.BookmarkItem;
+import jp.hazuki.yuzubrowser.bookmark.BookmarkManager;
+import jp.hazuki.yuzubrowser.bookmark.BookmarkSite;
+import jp.hazuki.yuzubrowser.history.BrowserHistory;
+import jp.hazuki.yuzubrowser.history.BrowserHistoryManager;
+import jp.hazuki.yuzubrowser.search.suggest.Suggestion;
+import jp.hazuki.yuzubrowser.utils.ErrorReport;
+
+/**
+ * In memory index of the best ranked history, bookmarks and search queries used for local suggestions.
+ * It is read once in the background on the first query, then kept up to date by the classes writing the sources.
+ * Results are ranked by frecency: the number of visits weighted by how recent the last one is.
+ * Only the {@link #MAX_ENTRIES} best ranked entries and the bookmarks are kept, once others are left out
+ * queries which find too few results also search the databases.
+ */
+public final class LocalSuggestIndex {
+    /* entries kept in memory besides the bookmarks */
+    private static final int MAX_ENTRIES = 5000;
+    /* changed entries above which the ranking is rebuilt rather than edited */
+    private static final int MAX_PARTIAL_UPDATE = 64;
+    /* a bookmark counts as that many visits */
+    private static final int BOOKMARK_VISITS = 10;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private static final int STATE_EMPTY = 0;
+    private static final int STATE_BUILDING = 1;
+    private static final int STATE_READY = 2;
+
+    private static volatile LocalSuggestIndex sInstance;
+
+    private final Context mContext;
+    private final SQLiteOpenHelper mSearchHistory;
+    private final ThreadPoolExecutor mLoader = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    /* everything below is guarded by this */
+    private Table mTable;
+    private int mState = STATE_EMPTY;
+    /* changes made while the table is read, applied once it is in place */
+    private ArrayList<Runnable> mPending;
+    private boolean mRebuild;
+
+    LocalSuggestIndex(Context context, SQLiteOpenHelper searchHistory) {
+        mContext = context;
+        mSearchHistory = searchHistory;
+        sInstance = this;
+    }
+
+    public static void onVisited(String url, String title, long time) {
+        LocalSuggestIndex index = sInstance;
+        if (index != null)
+            index.post(() -> index.mTable.visit(url, title, time));
+    }
+
+    /**
+     * @param url deleted url, or null if the whole history was deleted
+     */
+    public static void onHistoryDeleted(String url) {
+        LocalSuggestIndex index = sInstance;
+        if (index != null)
+            index.post(() -> index.mTable.deleteVisits(url));
+    }
+
+    /**
+     * @param root the bookmarks as they are saved, read right away so they may be edited afterwards
+     */
+    public static void onBookmarkChanged(BookmarkFolder root) {
+        LocalSuggestIndex index = sInstance;
+        if (index != null) {
+            ArrayList<BookmarkSite> sites = new ArrayList<>();
+            collectSites(root, sites);
+            index.post(() -> index.mTable.setBookmarks(sites));
+        }
+    }
+
+    /**
+     * Drops the index after changes which cannot be followed one by one, it is read again on the next query.
+     */
+    public static void invalidate() {
+        LocalSuggestIndex index = sInstance;
+        if (index != null)
+            index.reset();
+    }
+
+    void onSearched(String query, long time, int count) {
+        post(() -> mTable.search(query, time, count));
+    }
+
+    /**
+     * @param query deleted query, or null if all of them were deleted
+     */
+    void onSearchDeleted(String query) {
+        post(() -> mTable.deleteSearches(query));
+    }
+
+    private synchronized void post(Runnable op) {
+        switch (mState) {
+            case STATE_READY:
+                op.run();
+                break;
+            case STATE_BUILDING:
+                mPending.add(op);
+                break;
+        }
+    }
+
+    private synchronized void reset() {
+        if (mState == STATE_BUILDING) {
+            mRebuild = true;
+        } else {
+            mTable = null;
+            mState = STATE_EMPTY;
+        }
+    }
+
+    /**
+     * @return suggestions best first, or null if the index is not read yet
+     */
+    List<Suggestion> query(String query, int limit) {
+        List<Suggestion> suggestions;
+        boolean complete;
+        synchronized (this) {
+            if (mState != STATE_READY) {
+                if (mState == STATE_EMPTY)
+                    build();
+                return null;
+            }
+            suggestions = mTable.query(query, limit, System.currentTimeMillis());
+            complete = mTable.isComplete();
+        }
+
+        // the databases are read without holding up the changes
+        if (!complete && suggestions.size() < limit && !query.trim().isEmpty())
+            readMore(query.trim(), limit, suggestions);
+        return suggestions;
+    }
+
+    /**
+     * Adds the matching urls and queries from the databases, for the entries left out of the index.
+     */
+    private void readMore(String query, int limit, List<Suggestion> suggestions) {
+        HashSet<String> words = new HashSet<>();
+        for (Suggestion suggestion : suggestions)
+            words.add(suggestion.word);
+
+        try {
+            for (BrowserHistory history : BrowserHistoryManager.getInstance(mContext).search(query, 0, limit)) {
+                if (suggestions.size() >= limit) return;
+                if (history.getUrl() != null && words.add(history.getUrl()))
+                    suggestions.add(new Suggestion(history.getUrl(), false));
+            }
+
+            String dbQuery = query.replace("%", "$%").replace("_", "$_");
+            try (Cursor c = mSearchHistory.getReadableDatabase().query(SuggestProvider.TABLE_NAME,
+                    new String[]{SearchManager.SUGGEST_COLUMN_QUERY},
+                    SearchManager.SUGGEST_COLUMN_QUERY + " LIKE '%' || ? || '%' ESCAPE '$'", new String[]{dbQuery},
+                    null, null, SuggestProvider.COLUMN_TIME + " DESC", Integer.toString(limit))) {
+                while (suggestions.size() < limit && c.moveToNext()) {
+                    String word = c.getString(0);
+                    if (word != null && words.add(word))
+                        suggestions.add(new Suggestion(word, true));
+                }
+            }
+        } catch (RuntimeException e) {
+            ErrorReport.printAndWriteLog(e);
+        }
+    }
+
+    private void build() {
+        mState = STATE_BUILDING;
+        mPending = new ArrayList<>();
+        mLoader.execute(this::load);
+    }
+
+    private void load() {
+        Table table = new Table(MAX_ENTRIES);
+        try {
+            // bookmarks first, so that they are never left out while the history is read
+            readBookmarks(table);
+            readHistory(table);
+            readSearchHistory(table);
+            table.trim(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            ErrorReport.printAndWriteLog(e);
+            table = null;
+        }
+
+        synchronized (this) {
+            if (mRebuild) {
+                mRebuild = false;
+                mPending = new ArrayList<>();
+                mLoader.execute(this::load);
+                return;
+            }
+            if (table == null) {
+                mState = STATE_EMPTY;
+            } else {
+                mTable = table;
+                mState = STATE_READY;
+                for (Runnable op : mPending)
+                    op.run();
+            }
+            mPending = null;
+        }
+    }
+
+    private void readHistory(Table table) {
+        long now = System.currentTimeMillis();
+        try (Cursor c = BrowserHistoryManager.getInstance(mContext).getLoadableCursor()) {
+            int urlIndex = c.getColumnIndex(BrowserHistoryManager.COLUMN_URL);
+            int titleIndex = c.getColumnIndex(BrowserHistoryManager.COLUMN_TITLE);
+            int timeIndex = c.getColumnIndex(BrowserHistoryManager.COLUMN_TIME);
+            int visitsIndex = c.getColumnIndex(BrowserHistoryManager.COLUMN_VISITS);
+            while (c.moveToNext()) {
+                String url = c.getString(urlIndex);
+                if (url == null) continue;
+                Entry entry = table.obtain(url, true);
+                entry.visits = visitsIndex >= 0 ? c.getInt(visitsIndex) : 1;
+                entry.time = c.getLong(timeIndex);
+                table.setTitle(entry, c.getString(titleIndex));
+                table.bound(now);
+            }
+        }
+    }
+
+    private void readSearchHistory(Table table) {
+        long now = System.currentTimeMillis();
+        try (Cursor c = mSearchHistory.getReadableDatabase().query(SuggestProvider.TABLE_NAME,
+                new String[]{SearchManager.SUGGEST_COLUMN_QUERY, SuggestProvider.COLUMN_TIME, SuggestProvider.COLUMN_COUNT},
+                null, null, null, null, null)) {
+            while (c.moveToNext()) {
+                String query = c.getString(0);
+                if (query != null) {
+                    table.search(query, c.getLong(1), c.getInt(2));
+                    table.bound(now);
+                }
+            }
+        }
+    }
+
+    private void readBookmarks(Table table) {
+        ArrayList<BookmarkSite> sites = new ArrayList<>();
+        collectSites(new BookmarkManager(mContext).getRoot(), sites);
+        table.setBookmarks(sites);
+    }
+
+    private static void collectSites(BookmarkFolder folder, ArrayList<BookmarkSite> sites) {
+        for (BookmarkItem item : folder.list) {
+            if (item instanceof BookmarkSite) {
+                if (((BookmarkSite) item).url != null)
+                    sites.add((BookmarkSite) item);
+            } else if (item instanceof BookmarkFolder) {
+                collectSites((BookmarkFolder) item, sites);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static final class Table {
+        private final int maxEntries;
+        /* suggested word -> entry */
+        private final HashMap<String, Entry> entries = new HashMap<>();
+        private final ArrayList<Entry> bookmarks = new ArrayList<>();
+        /* all the entries best first */
+        private final ArrayList<Entry> ranked = new ArrayList<>();
+        /* entries whose score changed since they were ranked */
+        private final ArrayList<Entry> changed = new ArrayList<>();
+        private boolean rankAll;
+        private long rankTime;
+        /* false once entries were left out */
+        private boolean complete = true;
+        /* entries the last query looked at */
+        private int scanned;
+
+        /**
+         * @param maxEntries entries kept besides the bookmarks, a few more may be kept between two rankings
+         */
+        Table(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        /**
+         * @return suggestions best first
+         */
+        List<Suggestion> query(String query, int limit, long now) {
+            String text = query.trim().toLowerCase(Locale.getDefault());
+            if (text.contains("://") || text.startsWith("www."))
+                text = toUrlKey(text);
+            List<Suggestion> suggestions = new ArrayList<>(limit);
+            if (text.isEmpty()) return suggestions;
+
+            String[] words = text.split("\\s+");
+            String probe = words[0];
+            for (String word : words)
+                if (word.length() > probe.length())
+                    probe = word;
+
+            Entry[] top = new Entry[limit];
+            long[] scores = new long[limit];
+            int count = collect(text, probe.equals(text) ? null : probe, words, now, top, scores);
+            for (int i = 0; count > i; i++)
+                suggestions.add(new Suggestion(top[i].word, top[i].searches > 0));
+            return suggestions;
+        }
+
+        /**
+         * Walks the entries best ranked first, scores those with a word starting with the text or
+         * its longest word, and keeps the best ones sorted.
+         * Stops once none of the remaining entries can beat the kept ones.
+         *
+         * @param probe longest word of the text, or null if it is the text itself
+         * @return number of entries kept
+         */
+        private int collect(String text, String probe, String[] words, long now, Entry[] top, long[] scores) {
+            int count = 0;
+            scanned = 0;
+            for (Entry entry : getRanked(now)) {
+                // scores only go down with time, and the key bonus at most doubles them
+                if (count == top.length && scores[count - 1] >= entry.rank * 2) break;
+                scanned++;
+
+                if (!entry.hasTokenPrefix(text) && (probe == null || !entry.hasTokenPrefix(probe)))
+                    continue;
+                if (!entry.matches(words)) continue;
+                long score = entry.score(now);
+                if (score <= 0) continue;
+                if (entry.key.startsWith(words[0]))
+                    score *= 2;
+
+                if (count == top.length) {
+                    if (scores[count - 1] >= score) continue;
+                    count--;
+                }
+                int i = count;
+                for (; i > 0 && scores[i - 1] < score; i--) {
+                    top[i] = top[i - 1];
+                    scores[i] = scores[i - 1];
+                }
+                top[i] = entry;
+                scores[i] = score;
+                count++;
+            }
+            return count;
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        @VisibleForTesting
+        int getScanned() {
+            return scanned;
+        }
+
+        @VisibleForTesting
+        int size() {
+            return entries.size();
+        }
+
+        Entry obtain(String word, boolean url) {
+            Entry entry = entries.get(word);
+            if (entry == null) {
+                entry = new Entry(word, url ? toUrlKey(word) : word.toLowerCase(Locale.getDefault()));
+                entries.put(word, entry);
+            }
+            changed(entry);
+            return entry;
+        }
+
+        void setTitle(Entry entry, String title) {
+            if (title != null)
+                entry.title = title.toLowerCase(Locale.getDefault());
+        }
+
+        /**
+         * An url which was left out of the index comes back with the visits made since, until it is read again.
+         */
+        void visit(String url, String title, long time) {
+            // a title for a page which is no longer in the history, or no longer indexed
+            if (time <= 0 && !entries.containsKey(url)) return;
+            Entry entry = obtain(url, true);
+            if (time > 0) {
+                entry.visits++;
+                if (time > entry.time)
+                    entry.time = time;
+            }
+            setTitle(entry, title);
+        }
+
+        void deleteVisits(String url) {
+            ArrayList<Entry> unused = new ArrayList<>();
+            if (url == null) {
+                rankAll = true;
+                for (Entry entry : entries.values()) {
+                    entry.visits = 0;
+                    if (entry.isUnused())
+                        unused.add(entry);
+                }
+            } else {
+                Entry entry = entries.get(url);
+                if (entry != null) {
+                    entry.visits = 0;
+                    changed(entry);
+                    if (entry.isUnused())
+                        unused.add(entry);
+                }
+            }
+            remove(unused);
+        }
+
+        void search(String query, long time, int count) {
+            Entry entry = obtain(query, false);
+            entry.searches = count;
+            entry.time = time;
+        }
+
+        void deleteSearches(String query) {
+            ArrayList<Entry> unused = new ArrayList<>();
+            if (query == null) {
+                rankAll = true;
+                for (Entry entry : entries.values()) {
+                    entry.searches = 0;
+                    if (entry.isUnused())
+                        unused.add(entry);
+                }
+            } else {
+                Entry entry = entries.get(query);
+                if (entry != null) {
+                    entry.searches = 0;
+                    changed(entry);
+                    if (entry.isUnused())
+                        unused.add(entry);
+                }
+            }
+            remove(unused);
+        }
+
+        void setBookmarks(List<BookmarkSite> sites) {
+            ArrayList<Entry> old = new ArrayList<>(bookmarks);
+            for (Entry entry : old) {
+                entry.bookmarked = false;
+                changed(entry);
+            }
+            bookmarks.clear();
+            for (BookmarkSite site : sites) {
+                Entry entry = obtain(site.url, true);
+                if (entry.title == null)
+                    setTitle(entry, site.title);
+                entry.bookmarked = true;
+                bookmarks.add(entry);
+            }
+
+            ArrayList<Entry> unused = new ArrayList<>();
+            for (Entry entry : old)
+                if (entry.isUnused() && !entry.removed)
+                    unused.add(entry);
+            remove(unused);
+        }
+
+        /**
+         * Leaves out the entries past maxEntries once there are twice too many, while the sources are read.
+         */
+        void bound(long now) {
+            if (entries.size() > maxEntries * 2)
+                trim(now);
+        }
+
+        /**
+         * Leaves out the worst ranked entries past maxEntries, bookmarks are always kept.
+         */
+        void trim(long now) {
+            getRanked(now);
+            if (ranked.size() > maxEntries)
+                cut();
+        }
+
+        /**
+         * @return all the entries best first
+         */
+        List<Entry> getRanked(long now) {
+            if (rankAll || changed.size() > MAX_PARTIAL_UPDATE || now - rankTime > DAY) {
+                for (Entry entry : changed) {
+                    entry.changed = false;
+                    if (!entry.ranked) {
+                        entry.ranked = true;
+                        ranked.add(entry);
+                    }
+                }
+                changed.clear();
+
+                int size = 0;
+                for (int i = 0; i < ranked.size(); i++) {
+                    Entry entry = ranked.get(i);
+                    if (entry.removed) {
+                        entry.ranked = false;
+                        continue;
+                    }
+                    entry.rank = entry.score(now);
+                    ranked.set(size++, entry);
+                }
+                ranked.subList(size, ranked.size()).clear();
+                // the list is mostly sorted already, which the merge sort goes through quickly
+                Collections.sort(ranked, RANK_ORDER);
+                rankAll = false;
+                rankTime = now;
+            } else if (!changed.isEmpty()) {
+                for (Entry entry : changed) {
+                    entry.changed = false;
+                    if (entry.ranked) {
+                        ranked.remove(entry);
+                        entry.ranked = false;
+                    }
+                    if (entry.removed) continue;
+
+                    entry.rank = entry.score(now);
+                    int index = Collections.binarySearch(ranked, entry, RANK_ORDER);
+                    ranked.add(index < 0 ? -index - 1 : index, entry);
+                    entry.ranked = true;
+                }
+                changed.clear();
+            }
+
+            // left out in batches, not at each new entry
+            if (ranked.size() > maxEntries + MAX_PARTIAL_UPDATE)
+                cut();
+            return ranked;
+        }
+
+        private void changed(Entry entry) {
+            if (!entry.changed) {
+                entry.changed = true;
+                changed.add(entry);
+            }
+        }
+
+        /* the ranking has to be up to date */
+        private void cut() {
+            int size = maxEntries;
+            for (int i = maxEntries; i < ranked.size(); i++) {
+                Entry entry = ranked.get(i);
+                if (entry.bookmarked) {
+                    ranked.set(size++, entry);
+                } else {
+                    entries.remove(entry.word);
+                    entry.removed = true;
+                    entry.ranked = false;
+                    complete = false;
+                }
+            }
+            ranked.subList(size, ranked.size()).clear();
+        }
+
+        /**
+         * Forgets the entries which have no visit, search nor bookmark left.
+         */
+        private void remove(List<Entry> unused) {
+            for (Entry entry : unused) {
+                entries.remove(entry.word);
+                entry.removed = true;
+                changed(entry);
+            }
+        }
+    }
+
+    private static final Comparator<Entry> RANK_ORDER = (a, b) -> Long.compare(b.rank, a.rank);
+
+    private static final class Entry {
+        /* url or query given back as the suggestion */
+        final String word;
+        /* lower case word without the scheme and www. */
+        final String key;
+        /* lower case title */
+        String title;
+        int visits;
+        int searches;
+        boolean bookmarked;
+        long time;
+        /* score when the entry was last ranked */
+        long rank;
+        boolean ranked;
+        boolean changed;
+        boolean removed;
+
+        Entry(String word, String key) {
+            this.word = word;
+            this.key = key;
+        }
+
+        /**
+         * @return true if the key or the title has a word starting with the prefix, or the key starts with it
+         */
+        boolean hasTokenPrefix(String prefix) {
+            return hasWordPrefix(key, prefix) || (title != null && hasWordPrefix(title, prefix));
+        }
+
+        private static boolean hasWordPrefix(String text, String prefix) {
+            for (int i = text.indexOf(prefix); i >= 0; i = text.indexOf(prefix, i + 1)) {
+                if (i == 0 || !Character.isLetterOrDigit(text.charAt(i - 1)))
+                    return true;
+            }
+            return false;
+        }
+
+        boolean isUnused() {
+            return visits == 0 && searches == 0 && !bookmarked;
+        }
+
+        boolean matches(String[] words) {
+            for (String word : words)
+                if (!key.contains(word) && (title == null || !title.contains(word)))
+                    return false;
+            return true;
+        }
+
+        long score(long now) {
+            long frequency = visits + searches + (bookmarked ? BOOKMARK_VISITS : 0);
+            if (frequency == 0) return 0;
+            long age = (now - time) / DAY;
+            int weight;
+            if (age <= 4)
+                weight = 100;
+            else if (age <= 14)
+                weight = 70;
+            else if (age <= 31)
+                weight = 50;
+            else if (age <= 90)
+                weight = 30;
+            else
+                weight = 10;
+            return frequency * weight;
+        }
+    }
+
+    static String toUrlKey(String url) {
+        String key = url.toLowerCase(Locale.ENGLISH);
+        int scheme = key.indexOf("://");
+        if (scheme >= 0)
+            key = key.substring(scheme + 3);
+        if (key.startsWith("www."))
+            key = key.substring(4);
+        return key;
+    }
+}
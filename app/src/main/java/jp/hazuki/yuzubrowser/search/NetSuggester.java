@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2017 Hazuki
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.hazuki.yuzubrowser.search;
+
+import android.os.CancellationSignal;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import jp.hazuki.yuzubrowser.search.suggest.ISuggest;
+import jp.hazuki.yuzubrowser.search.suggest.Suggestion;
+import jp.hazuki.yuzubrowser.utils.ErrorReport;
+
+/**
+ * Network suggestions of one engine, with a cache of the recent queries.
+ * Each request waits a little before connecting and is dropped if a newer one comes in meanwhile,
+ * a request already connected is aborted by the next one.
+ * Dropped and failed requests get the cached results of the longest prefix, filtered by the query.
+ * Cached results expire, empty ones sooner: an empty result may be a transient answer of the server,
+ * and it is also taken as the answer to every longer query.
+ */
+final class NetSuggester {
+    private static final int CACHE_SIZE = 64;
+    private static final long CACHE_TTL = 10 * 60 * 1000;
+    private static final long EMPTY_CACHE_TTL = 30 * 1000;
+    private static final long DEBOUNCE = 100;
+    private static final int TIMEOUT = 2000;
+
+    private final ISuggest mEngine;
+    private final JsonFactory mJsonFactory;
+    private final long mTtl;
+    private final long mEmptyTtl;
+    /* guarded by itself */
+    private final LinkedHashMap<String, CacheEntry> mCache = new LinkedHashMap<String, CacheEntry>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /* guards the two fields below */
+    private final Object mLock = new Object();
+    private long mGeneration;
+    private HttpURLConnection mConnection;
+
+    NetSuggester(ISuggest engine, JsonFactory jsonFactory) {
+        this(engine, jsonFactory, CACHE_TTL, EMPTY_CACHE_TTL);
+    }
+
+    /**
+     * @param ttl      time in ms the results of a query are reused
+     * @param emptyTtl time in ms an empty result is reused, for the query and the longer ones
+     */
+    NetSuggester(ISuggest engine, JsonFactory jsonFactory, long ttl, long emptyTtl) {
+        mEngine = engine;
+        mJsonFactory = jsonFactory;
+        mTtl = ttl;
+        mEmptyTtl = emptyTtl;
+    }
+
+    /**
+     * @return suggestions which the caller may modify, or null if none could be fetched
+     */
+    List<Suggestion> get(String query, CancellationSignal signal) throws UnknownHostException {
+        List<Suggestion> cached = getCached(query);
+        if (cached != null)
+            return new ArrayList<>(cached);
+        cached = getFromPrefix(query);
+        // nothing for a prefix a moment ago, so nothing for the query either
+        if (cached != null && cached.isEmpty())
+            return cached;
+
+        long generation = supersede();
+        if (!waitDebounce(generation, signal))
+            return cached;
+
+        HttpURLConnection connection = null;
+        JsonParser parser = null;
+        try {
+            connection = (HttpURLConnection) mEngine.getUrl(query).openConnection();
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setRequestMethod("GET");
+            if (!register(generation, connection))
+                return cached;
+            if (signal != null)
+                signal.setOnCancelListener(connection::disconnect);
+
+            connection.connect();
+            if (connection.getResponseCode() == 200) {
+                parser = mJsonFactory.createParser(connection.getInputStream());
+                List<Suggestion> list = mEngine.getSuggestions(parser);
+                if (list != null) {
+                    putCached(query, list);
+                    return list;
+                }
+            }
+        } catch (UnknownHostException e) {
+            if (!isSuperseded(generation, signal))
+                throw e;
+        } catch (IOException | IllegalStateException | ArrayIndexOutOfBoundsException e) {
+            // ArrayIndexOutOfBoundsException - workaround for OkHttp
+            // aborted requests end here too, they are not worth a log
+            if (!isSuperseded(generation, signal))
+                ErrorReport.printAndWriteLog(e);
+        } finally {
+            if (signal != null)
+                signal.setOnCancelListener(null);
+            if (parser != null)
+                try {
+                    parser.close();
+                } catch (IOException e) {
+                    ErrorReport.printAndWriteLog(e);
+                }
+            unregister(generation);
+            if (connection != null)
+                connection.disconnect();
+        }
+        return cached;
+    }
+
+    /**
+     * @return the cached suggestions of the longest prefix which still match the query, or null if no prefix is cached
+     */
+    private List<Suggestion> getFromPrefix(String query) {
+        String lower = query.toLowerCase(Locale.getDefault());
+        for (int i = query.length() - 1; i > 0; i--) {
+            List<Suggestion> list = getCached(query.substring(0, i));
+            if (list == null) continue;
+
+            List<Suggestion> filtered = new ArrayList<>();
+            for (Suggestion suggestion : list) {
+                if (suggestion.word != null && suggestion.word.toLowerCase(Locale.getDefault()).startsWith(lower))
+                    filtered.add(suggestion);
+            }
+            if (list.isEmpty() || !filtered.isEmpty())
+                return filtered;
+        }
+        return null;
+    }
+
+    /**
+     * @return results of the query still fresh, or null
+     */
+    private List<Suggestion> getCached(String query) {
+        synchronized (mCache) {
+            CacheEntry entry = mCache.get(query);
+            if (entry == null) return null;
+            if (now() - entry.time >= (entry.list.isEmpty() ? mEmptyTtl : mTtl)) {
+                mCache.remove(query);
+                return null;
+            }
+            return entry.list;
+        }
+    }
+
+    private void putCached(String query, List<Suggestion> list) {
+        CacheEntry entry = new CacheEntry(new ArrayList<>(list), now());
+        synchronized (mCache) {
+            mCache.put(query, entry);
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private long supersede() {
+        synchronized (mLock) {
+            if (mConnection != null) {
+                mConnection.disconnect();
+                mConnection = null;
+            }
+            mLock.notifyAll();
+            return ++mGeneration;
+        }
+    }
+
+    /**
+     * @return false if the request was superseded or cancelled while waiting
+     */
+    private boolean waitDebounce(long generation, CancellationSignal signal) {
+        long end = now() + DEBOUNCE;
+        synchronized (mLock) {
+            long left;
+            while (!isSuperseded(generation, signal) && (left = end - now()) > 0) {
+                try {
+                    mLock.wait(left);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return !isSuperseded(generation, signal);
+        }
+    }
+
+    private boolean register(long generation, HttpURLConnection connection) {
+        synchronized (mLock) {
+            if (mGeneration != generation) return false;
+            mConnection = connection;
+            return true;
+        }
+    }
+
+    private void unregister(long generation) {
+        synchronized (mLock) {
+            if (mGeneration == generation)
+                mConnection = null;
+        }
+    }
+
+    private boolean isSuperseded(long generation, CancellationSignal signal) {
+        synchronized (mLock) {
+            return mGeneration != generation || (signal != null && signal.isCanceled());
+        }
+    }
+
+    private static final class CacheEntry {
+        final List<Suggestion> list;
+        final long time;
+
+        CacheEntry(List<Suggestion> list, long time) {
+            this.list = list;
+            this.time = time;
+        }
+    }
+}
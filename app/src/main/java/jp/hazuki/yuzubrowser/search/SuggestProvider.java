@@ -26,16 +26,13 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
 import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParser;
 
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.List;
@@ -46,7 +43,6 @@ import jp.hazuki.yuzubrowser.search.suggest.SuggestDuckDuckGo;
 import jp.hazuki.yuzubrowser.search.suggest.SuggestGoogle;
 import jp.hazuki.yuzubrowser.search.suggest.Suggestion;
 import jp.hazuki.yuzubrowser.settings.data.AppData;
-import jp.hazuki.yuzubrowser.utils.ErrorReport;
 import jp.hazuki.yuzubrowser.utils.Logger;
 
 public class SuggestProvider extends ContentProvider {
@@ -95,26 +91,40 @@ public class SuggestProvider extends ContentProvider {
             SUGGEST_HISTORY,
     };
 
+    private static final String QUERY_SELECTION = SearchManager.SUGGEST_COLUMN_QUERY + " = ?";
+
     private static final String DB_NAME = "searchsuggest.db";
-    private static final int DB_VERSION = 1;
-    private static final String TABLE_NAME = "main_table1";
+    private static final int DB_VERSION = 2;
+    static final String TABLE_NAME = "main_table1";
+    static final String COLUMN_TIME = "time";
+    static final String COLUMN_COUNT = "count";
+
+    private static final int LOCAL_LIMIT = 50;
+    private static final int BOTH_LOCAL_LIMIT = 3;
 
     private final JsonFactory mJsonFactory = new JsonFactory();
     private DatabaseHelper mOpenHelper;
+    private LocalSuggestIndex mLocalIndex;
 
     private int mSuggestType;
-    private ISuggest mSuggestEngine;
+    private NetSuggester mSuggester;
 
     @Override
     public boolean onCreate() {
         mOpenHelper = new DatabaseHelper(getContext());
+        mLocalIndex = new LocalSuggestIndex(getContext(), mOpenHelper);
         mSuggestType = AppData.search_suggest_engine.get();
-        mSuggestEngine = getSuggestEngine(mSuggestType);
+        mSuggester = new NetSuggester(getSuggestEngine(mSuggestType), mJsonFactory);
         return true;
     }
 
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
         int type = sUriMatcher.match(uri);
         if (type == UriMatcher.NO_MATCH) {
             Logger.e(TAG, "UriMatcher.NO_MATCH");
@@ -126,38 +136,39 @@ public class SuggestProvider extends ContentProvider {
         switch (type) {
             case TYPE_NET_ALL:
             case TYPE_NET:
-                return queryNet(query);
+                return queryNet(query, cancellationSignal);
             case TYPE_LOCAL_ALL:
             case TYPE_LOCAL:
                 return queryLocal(query);
             case TYPE_NORMAL_ALL:
             case TYPE_NORMAL:
-                return queryBoth(query);
+                return queryBoth(query, cancellationSignal);
         }
         return null;
     }
 
-    private Cursor queryBoth(String query) {
+    private Cursor queryBoth(String query, CancellationSignal signal) {
         if (TextUtils.isEmpty(query)) {
             return queryLocal(query);
         }
 
         try {
-            List<Suggestion> net = getSuggests(query);
+            List<Suggestion> net = getSuggests(query, signal);
             if (net != null) {
-                String dbQuery = query.replace("%", "$%").replace("_", "$_");
-                List<Suggestion> suggestions = new ArrayList<>();
-
-                SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-                Cursor c = db.query(TABLE_NAME, null, SearchManager.SUGGEST_COLUMN_QUERY + " LIKE '%' || ? || '%' ESCAPE '$'", new String[]{dbQuery}, null, null, BaseColumns._ID + " DESC", "3");
-                int COL_QUERY = c.getColumnIndex(SearchManager.SUGGEST_COLUMN_QUERY);
-                while (c.moveToNext()) {
-                    Suggestion suggestion = new Suggestion(c.getString(COL_QUERY), true);
-
-                    suggestions.add(suggestion);
-                    net.remove(suggestion);
+                List<Suggestion> suggestions = mLocalIndex.query(query, BOTH_LOCAL_LIMIT);
+                if (suggestions == null) {
+                    String dbQuery = query.replace("%", "$%").replace("_", "$_");
+                    suggestions = new ArrayList<>();
+
+                    SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+                    Cursor c = db.query(TABLE_NAME, null, SearchManager.SUGGEST_COLUMN_QUERY + " LIKE '%' || ? || '%' ESCAPE '$'", new String[]{dbQuery}, null, null, BaseColumns._ID + " DESC", Integer.toString(BOTH_LOCAL_LIMIT));
+                    int COL_QUERY = c.getColumnIndex(SearchManager.SUGGEST_COLUMN_QUERY);
+                    while (c.moveToNext()) {
+                        suggestions.add(new Suggestion(c.getString(COL_QUERY), true));
+                    }
+                    c.close();
                 }
-                c.close();
+                net.removeAll(suggestions);
 
                 suggestions.addAll(net);
 
@@ -176,13 +187,13 @@ public class SuggestProvider extends ContentProvider {
         return null;
     }
 
-    private Cursor queryNet(String query) {
+    private Cursor queryNet(String query, CancellationSignal signal) {
         if (TextUtils.isEmpty(query)) {
             return null;
         }
 
         try {
-            List<Suggestion> list = getSuggests(query);
+            List<Suggestion> list = getSuggests(query, signal);
             if (list != null) {
                 for (String prefix : yuzuPrefix) {
                     if (prefix.startsWith(query)) {
@@ -198,38 +209,16 @@ public class SuggestProvider extends ContentProvider {
         return null;
     }
 
-    private List<Suggestion> getSuggests(String query) throws UnknownHostException {
-        if (AppData.search_suggest_engine.get() != mSuggestType) {
-            mSuggestType = AppData.search_suggest_engine.get();
-            mSuggestEngine = getSuggestEngine(mSuggestType);
-        }
-
-        JsonParser parser = null;
-        try {
-            URL url = mSuggestEngine.getUrl(query);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setConnectTimeout(2000);
-            connection.setRequestMethod("GET");
-            connection.connect();
-            if (connection.getResponseCode() == 200) {
-                parser = mJsonFactory.createParser(connection.getInputStream());
-
-                return mSuggestEngine.getSuggestions(parser);
+    private List<Suggestion> getSuggests(String query, CancellationSignal signal) throws UnknownHostException {
+        NetSuggester suggester;
+        synchronized (this) {
+            if (AppData.search_suggest_engine.get() != mSuggestType) {
+                mSuggestType = AppData.search_suggest_engine.get();
+                mSuggester = new NetSuggester(getSuggestEngine(mSuggestType), mJsonFactory);
             }
-        } catch (UnknownHostException e) {
-            throw e;
-        } catch (IOException | IllegalStateException | ArrayIndexOutOfBoundsException e) {
-            // ArrayIndexOutOfBoundsException - workaround for OkHttp
-            ErrorReport.printAndWriteLog(e);
-        } finally {
-            if (parser != null)
-                try {
-                    parser.close();
-                } catch (IOException e) {
-                    ErrorReport.printAndWriteLog(e);
-                }
+            suggester = mSuggester;
         }
-        return null;
+        return suggester.get(query, signal);
     }
 
     private Cursor queryLocal(String query) {
@@ -237,11 +226,26 @@ public class SuggestProvider extends ContentProvider {
         if (TextUtils.isEmpty(query))
             return wrapCursor(db.query(TABLE_NAME, null, null, null, null, null, BaseColumns._ID + " DESC"));
         else {
+            List<Suggestion> local = mLocalIndex.query(query, LOCAL_LIMIT);
+            if (local != null)
+                return addYuzuPrefix(query, local);
+
             String dbQuery = query.replace("%", "$%").replace("_", "$_");
             return addYuzuPrefix(query, db.query(TABLE_NAME, null, SearchManager.SUGGEST_COLUMN_QUERY + " LIKE '%' || ? || '%' ESCAPE '$'", new String[]{dbQuery}, null, null, BaseColumns._ID + " DESC"));
         }
     }
 
+    private Cursor addYuzuPrefix(String query, List<Suggestion> local) {
+        ArrayList<Suggestion> suggestions = new ArrayList<>();
+        for (String prefix : yuzuPrefix) {
+            if (prefix.startsWith(query)) {
+                suggestions.add(new Suggestion(prefix));
+            }
+        }
+        suggestions.addAll(local);
+        return new SuggestionsCursor(suggestions);
+    }
+
     private Cursor addYuzuPrefix(String query, Cursor c) {
         ArrayList<Suggestion> suggestions = new ArrayList<>();
         if (!TextUtils.isEmpty(query)) {
@@ -359,7 +363,14 @@ public class SuggestProvider extends ContentProvider {
         if (type == TYPE_NET || type == TYPE_NET_ALL)
             return 0;
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        return db.delete(TABLE_NAME, selection, selectionArgs);
+        int deleted = db.delete(TABLE_NAME, selection, selectionArgs);
+        if (selection == null)
+            mLocalIndex.onSearchDeleted(null);
+        else if (QUERY_SELECTION.equals(selection) && selectionArgs != null && selectionArgs.length == 1)
+            mLocalIndex.onSearchDeleted(selectionArgs[0]);
+        else
+            LocalSuggestIndex.invalidate();
+        return deleted;
     }
 
     @Override
@@ -372,8 +383,22 @@ public class SuggestProvider extends ContentProvider {
         int type = sUriMatcher.match(uri);
         if (type == TYPE_NET || type == TYPE_NET_ALL)
             return null;
+        String query = values.getAsString(SearchManager.SUGGEST_COLUMN_QUERY);
+        if (query == null)
+            return null;
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count = 1;
+        Cursor c = db.query(TABLE_NAME, new String[]{COLUMN_COUNT}, QUERY_SELECTION, new String[]{query}, null, null, null, "1");
+        if (c.moveToFirst())
+            count += c.getInt(0);
+        c.close();
+
+        long now = System.currentTimeMillis();
+        values.put(COLUMN_TIME, now);
+        values.put(COLUMN_COUNT, count);
+        // replaced on conflict, so that the latest query still has the largest id
         db.insert(TABLE_NAME, null, values);
+        mLocalIndex.onSearched(query, now, count);
         return null;
     }
 
@@ -394,6 +419,8 @@ public class SuggestProvider extends ContentProvider {
                 db.execSQL("CREATE TABLE " + TABLE_NAME + " (" +
                         BaseColumns._ID + " INTEGER PRIMARY KEY" +
                         ", " + SearchManager.SUGGEST_COLUMN_QUERY + " TEXT UNIQUE ON CONFLICT REPLACE" +
+                        ", " + COLUMN_TIME + " INTEGER NOT NULL DEFAULT 0" +
+                        ", " + COLUMN_COUNT + " INTEGER NOT NULL DEFAULT 1" +
                         ")");
                 db.setTransactionSuccessful();
             } finally {
@@ -403,8 +430,16 @@ public class SuggestProvider extends ContentProvider {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
-            onCreate(db);
+            switch (oldVersion) {
+                case 1:
+                    db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_TIME + " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COLUMN_COUNT + " INTEGER NOT NULL DEFAULT 1");
+                    break;
+                default:
+                    db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+                    onCreate(db);
+                    break;
+            }
         }
     }
 }
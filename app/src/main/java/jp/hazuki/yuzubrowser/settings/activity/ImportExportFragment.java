@@ -56,7 +56,7 @@ import jp.hazuki.yuzubrowser.utils.view.ProgressDialogFragment;
 import jp.hazuki.yuzubrowser.utils.view.filelist.FileListDialog;
 import jp.hazuki.yuzubrowser.utils.view.filelist.FileListViewController;
 
-public class ImportExportFragment extends PreferenceFragment implements LoaderManager.LoaderCallbacks<Boolean> {
+public class ImportExportFragment extends PreferenceFragment implements LoaderManager.LoaderCallbacks<Boolean>, ProgressDialogFragment.OnCancelListener {
     private static final int REQUEST_IMPORT_FOLDER = 1;
     private static final int REQUEST_EXPORT_FOLDER = 2;
 
@@ -121,6 +121,8 @@ public class ImportExportFragment extends PreferenceFragment implements LoaderMa
             public void onPositiveButtonClick() {
                 if (PermissionUtils.checkWriteStorage(getActivity())) {
                     BookmarkManager manager = new BookmarkManager(getActivity());
+                    // fold the journal into the file before copying it
+                    manager.write();
                     File internal_file = manager.getBookmarkFile();
                     File external_file = new File(BrowserApplication.getExternalUserDirectory(), internal_file.getParentFile().getName() + File.separator + FileUtils.getTimeFileName() + ".dat");
                     if (!external_file.getParentFile().exists()) {
@@ -166,7 +168,7 @@ public class ImportExportFragment extends PreferenceFragment implements LoaderMa
                                                     bundle.putSerializable("manager", manager);
                                                     bundle.putSerializable("folder", root);
                                                     getLoaderManager().restartLoader(2, bundle, ImportExportFragment.this);
-                                                    progress = ProgressDialogFragment.newInstance(getString(R.string.importing));
+                                                    progress = ProgressDialogFragment.newInstance(getString(R.string.importing), 100);
                                                     progress.show(getChildFragmentManager(), "progress");
                                                     handler.setDialog(progress);
                                                 }
@@ -349,7 +351,7 @@ public class ImportExportFragment extends PreferenceFragment implements LoaderMa
                         (File) args.getSerializable("file"),
                         (BookmarkManager) args.getSerializable("manager"),
                         (BookmarkFolder) args.getSerializable("folder"),
-                        new Handler());
+                        handler);
             case 3:
                 return new BookmarkHtmlExportTask(getActivity(),
                         (File) args.getSerializable("file"),
@@ -381,6 +383,13 @@ public class ImportExportFragment extends PreferenceFragment implements LoaderMa
 
     }
 
+    @Override
+    public void onProgressCanceled(ProgressDialogFragment dialog) {
+        Loader<Boolean> loader = getLoaderManager().getLoader(2);
+        if (loader != null)
+            loader.cancelLoad();
+    }
+
     private static DialogHandler handler = new DialogHandler();
 
     private static class DialogHandler extends Handler {
@@ -391,6 +400,11 @@ public class ImportExportFragment extends PreferenceFragment implements LoaderMa
             if (dialogRef == null) return;
 
             DialogFragment dialog = dialogRef.get();
+            if (msg.what == BookmarkHtmlImportTask.MESSAGE_PROGRESS) {
+                if (dialog instanceof ProgressDialogFragment)
+                    ((ProgressDialogFragment) dialog).setProgress(msg.arg1);
+                return;
+            }
             if (dialog != null) {
                 dialog.dismiss();
                 dialogRef.clear();
@@ -103,6 +103,8 @@ public class AppData {
     public static final BooleanContainer web_popup = new BooleanContainer("web_popup", true);
     public static final IntContainer download_action = new IntContainer("download_action", PreferenceConstants.DOWNLOAD_AUTO);
     public static final StringContainer download_folder = new StringContainer("download_folder", Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS).getAbsolutePath());
+    public static final IntContainer download_max_parallel = new IntContainer("download_max_parallel", 3);
+    public static final IntContainer download_max_per_host = new IntContainer("download_max_per_host", 2);
     public static final BooleanContainer pause_web_background = new BooleanContainer("pause_web_background", true);
     public static final BooleanContainer save_formdata = new BooleanContainer("save_formdata", true);
     //TODO: Restore this when Google fixes the bug where the WebView is blank after calling onPause followed by onResume.
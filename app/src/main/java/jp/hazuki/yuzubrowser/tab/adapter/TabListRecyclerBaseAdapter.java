@@ -17,7 +17,6 @@
 package jp.hazuki.yuzubrowser.tab.adapter;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffColorFilter;
 import android.graphics.drawable.Drawable;
@@ -67,12 +66,7 @@ public abstract class TabListRecyclerBaseAdapter extends RecyclerView.Adapter<Ta
         TabIndexData indexData = getItem(holder.getAdapterPosition());
         if (indexData != null) {
             holder.setIndexData(indexData);
-            Bitmap thumbNail = indexData.getThumbnail();
-            if (thumbNail != null) {
-                holder.thumbNail.setImageBitmap(thumbNail);
-            } else {
-                holder.thumbNail.setImageResource(R.drawable.empty_thumbnail);
-            }
+            tabManager.loadThumbnail(holder.thumbNail, indexData);
             holder.title.setText(indexData.getTitle());
             if (indexData.isPinning()) {
                 holder.closeButton.setImageDrawable(pinIcon);
@@ -17,11 +17,9 @@
 package jp.hazuki.yuzubrowser.tab.manager;
 
 import android.content.res.Resources;
-import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import android.support.v4.content.res.ResourcesCompat;
 import android.view.View;
+import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
@@ -30,7 +28,6 @@ import java.util.List;
 
 import jp.hazuki.yuzubrowser.BrowserActivity;
 import jp.hazuki.yuzubrowser.R;
-import jp.hazuki.yuzubrowser.favicon.FaviconManager;
 import jp.hazuki.yuzubrowser.settings.data.AppData;
 import jp.hazuki.yuzubrowser.theme.ThemeData;
 import jp.hazuki.yuzubrowser.utils.ArrayUtils;
@@ -45,6 +42,7 @@ class CacheTabManager implements TabManager, TabCache.OnCacheOverFlowListener<Ma
     private final TabCache<MainTabData> mTabCache;
     private final TabStorage mTabStorage;
     private final ThumbnailManager thumbnailManager;
+    private final TabThumbnailLoader thumbnailLoader;
     private final TabFaviconManager tabFaviconManager;
 
     private List<View> mTabView;
@@ -55,6 +53,7 @@ class CacheTabManager implements TabManager, TabCache.OnCacheOverFlowListener<Ma
         mTabStorage = new TabStorage(activity);
         mTabView = new ArrayList<>();
         thumbnailManager = new ThumbnailManager(activity);
+        thumbnailLoader = new TabThumbnailLoader(activity, mTabStorage);
         tabFaviconManager = new TabFaviconManager(activity);
     }
 
@@ -108,6 +107,7 @@ class CacheTabManager implements TabManager, TabCache.OnCacheOverFlowListener<Ma
             if (mTabCache.containsKey(data.getId()))
                 mTabCache.remove(data.getId());
         }
+        thumbnailLoader.remove(data.getId());
         if (mCurrentNo > no) {
             mCurrentNo -= 1;
         }
@@ -207,9 +207,9 @@ class CacheTabManager implements TabManager, TabCache.OnCacheOverFlowListener<Ma
     @Override
     public MainTabData get(CustomWebView web) {
         synchronized (mTabCache) {
-            for (MainTabData tabData : mTabCache.values()) {
-                if (tabData.mWebView == web) return tabData;
-            }
+            // WebViews carry the id of their tab, which is also the cache key
+            MainTabData tabData = mTabCache.peek(web.getIdentityId());
+            if (tabData != null && tabData.mWebView == web) return tabData;
         }
         int index = mTabStorage.indexOf(web.getIdentityId());
         if (index < 0) return null;
@@ -222,12 +222,7 @@ class CacheTabManager implements TabManager, TabCache.OnCacheOverFlowListener<Ma
 
     @Override
     public TabIndexData getIndexData(long id) {
-        int index = mTabStorage.indexOf(id);
-        if (index > -1) {
-            return mTabStorage.getIndexData(index);
-        } else {
-            return null;
-        }
+        return mTabStorage.getIndexDataById(id);
     }
 
     @Override
@@ -244,6 +239,9 @@ class CacheTabManager implements TabManager, TabCache.OnCacheOverFlowListener<Ma
             }
         }
         thumbnailManager.destroy();
+        thumbnailLoader.clear();
+        if (!cleared)
+            mTabStorage.compact();
     }
 
     @Override
@@ -259,6 +257,25 @@ class CacheTabManager implements TabManager, TabCache.OnCacheOverFlowListener<Ma
         }
     }
 
+    @Override
+    public void saveDirtyData() {
+        if (!cleared) {
+            synchronized (mTabCache) {
+                for (MainTabData tabData : mTabCache.values()) {
+                    if (tabData.getTabIndexData().isDirty())
+                        mTabStorage.saveWebView(tabData);
+                }
+            }
+            mTabStorage.saveIndexData();
+            mTabStorage.saveCurrentTab(mCurrentNo);
+        }
+    }
+
+    @Override
+    public void flush() {
+        mTabStorage.flush();
+    }
+
     @Override
     public void loadData() {
         List<TabIndexData> list = mTabStorage.getTabIndexDataList();
@@ -267,7 +284,6 @@ class CacheTabManager implements TabManager, TabCache.OnCacheOverFlowListener<Ma
             moveTabToBackground(v, mWebBrowser.getResources(), mWebBrowser.getTheme());
             mTabView.add(v);
             setText(v, data);
-            setIcon(v, data);
         }
         mCurrentNo = mTabStorage.loadCurrentTab();
 
@@ -293,6 +309,7 @@ class CacheTabManager implements TabManager, TabCache.OnCacheOverFlowListener<Ma
     @Override
     public void clear() {
         mTabStorage.clear();
+        thumbnailLoader.clear();
         cleared = true;
     }
 
@@ -305,6 +322,7 @@ class CacheTabManager implements TabManager, TabCache.OnCacheOverFlowListener<Ma
                     if (mTabCache.containsKey(id))
                         mTabCache.remove(id);
                 }
+                thumbnailLoader.remove(id);
             }
         });
     }
@@ -319,7 +337,7 @@ class CacheTabManager implements TabManager, TabCache.OnCacheOverFlowListener<Ma
 
     @Override
     public void onLayoutCreated() {
-        tabFaviconManager.onPreferenceReset(mTabView, mTabStorage.getTabIndexDataList());
+        tabFaviconManager.onPreferenceReset(mTabView, mTabStorage.getTabIndexDataList(), mCurrentNo);
     }
 
     @Override
@@ -349,6 +367,11 @@ class CacheTabManager implements TabManager, TabCache.OnCacheOverFlowListener<Ma
         thumbnailManager.forceTakeThumbnail(data);
     }
 
+    @Override
+    public void loadThumbnail(ImageView view, TabIndexData data) {
+        thumbnailLoader.bind(view, data);
+    }
+
     private void setText(View view, TabIndexData indexData) {
         String text;
         if (indexData.getTitle() != null) {
@@ -359,28 +382,9 @@ class CacheTabManager implements TabManager, TabCache.OnCacheOverFlowListener<Ma
         ((TextView) view.findViewById(R.id.textView)).setText(text);
     }
 
-    private void setIcon(View view, TabIndexData indexData) {
-        if (indexData.getOriginalUrl() == null || indexData.getOriginalUrl().startsWith("yuzu:")) {
-            return;
-        }
-
-        Bitmap icon = FaviconManager.getInstance(view.getContext()).get(indexData.getOriginalUrl());
-        Drawable drawable;
-        if (icon != null) {
-            drawable = new BitmapDrawable(view.getResources(), icon);
-        } else {
-            drawable = view.getContext().getDrawable(R.drawable.ic_page_white_24px);
-        }
-        TextView titleTextView = view.findViewById(R.id.textView);
-        int size = titleTextView.getHeight() - titleTextView.getPaddingTop() - titleTextView.getPaddingBottom();
-
-        assert drawable != null;
-        drawable.setBounds(0, 0, size, size);
-        titleTextView.setCompoundDrawables(drawable, null, null, null);
-    }
-
     private MainTabData getTabData(TabIndexData tabIndexData, int no) {
         CustomWebView webView = mTabStorage.loadWebView(mWebBrowser, tabIndexData);
+        tabFaviconManager.cancel(mTabView.get(no));
         MainTabData tabData = tabIndexData.getMainTabData(webView, mTabView.get(no));
         synchronized (mTabCache) {
             mTabCache.put(tabIndexData.getId(), tabData);
@@ -393,7 +397,6 @@ class CacheTabManager implements TabManager, TabCache.OnCacheOverFlowListener<Ma
     @Override
     public void onCacheOverflow(MainTabData tabData) {
         mTabStorage.saveWebView(tabData);
-        mTabStorage.saveIndexData();
         tabData.mWebView.setEmbeddedTitleBarMethod(null);
         tabData.mWebView.destroy();
         int index = mTabStorage.indexOf(tabData.getId());
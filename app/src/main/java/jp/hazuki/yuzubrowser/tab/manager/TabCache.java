@@ -16,12 +16,14 @@
 
 package jp.hazuki.yuzubrowser.tab.manager;
 
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class TabCache<T extends TabData> extends LinkedHashMap<Long, T> {
 
     private final OnCacheOverFlowListener<T> mListener;
+    private final HashMap<Long, T> mLookup = new HashMap<>();
     private int mSize;
 
     public TabCache(int cacheSize, OnCacheOverFlowListener<T> listener) {
@@ -34,6 +36,7 @@ public class TabCache<T extends TabData> extends LinkedHashMap<Long, T> {
     protected boolean removeEldestEntry(Map.Entry<Long, T> eldest) {
         boolean result = size() > mSize;
         if (result) {
+            mLookup.remove(eldest.getKey());
             mListener.onCacheOverflow(eldest.getValue());
         }
         return result;
@@ -41,11 +44,32 @@ public class TabCache<T extends TabData> extends LinkedHashMap<Long, T> {
 
     @Override
     public T put(Long key, T value) {
-        if (value != null)
+        if (value != null) {
+            mLookup.put(key, value);
             return super.put(key, value);
+        }
         return null;
     }
 
+    @Override
+    public T remove(Object key) {
+        mLookup.remove(key);
+        return super.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        mLookup.clear();
+        super.clear();
+    }
+
+    /**
+     * Same as {@link #get(Object)} without updating the access order.
+     */
+    public T peek(long key) {
+        return mLookup.get(key);
+    }
+
     public void setSize(int size) {
         mSize = size;
     }
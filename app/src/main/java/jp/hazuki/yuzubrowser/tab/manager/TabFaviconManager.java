@@ -20,27 +20,47 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 import android.widget.TextView;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import jp.hazuki.yuzubrowser.R;
 import jp.hazuki.yuzubrowser.favicon.FaviconManager;
 import jp.hazuki.yuzubrowser.settings.data.AppData;
 
+/**
+ * Shows the favicons of the tabs in the tab bar.
+ * The favicons are looked up off the main thread a batch at a time,
+ * starting from the current tab so the visible ones come first.
+ */
 class TabFaviconManager {
+    private static final int BATCH_SIZE = 8;
 
     private FaviconManager manager;
     private Context context;
     private boolean iconMode;
 
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor loader = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    /* view -> url of the favicon it is waiting for */
+    private final WeakHashMap<View, String> requests = new WeakHashMap<>();
+
     TabFaviconManager(Context context) {
         this.context = context;
         manager = FaviconManager.getInstance(context);
     }
 
-    void onPreferenceReset(List<View> tabViews, List<TabIndexData> indexDataList) {
+    void onPreferenceReset(List<View> tabViews, List<TabIndexData> indexDataList, int current) {
         if (iconMode != AppData.toolbar_show_favicon.get()) {
             iconMode = AppData.toolbar_show_favicon.get();
 
@@ -51,32 +71,97 @@ class TabFaviconManager {
                 return;
             }
 
-            for (int i = 0; i < length; i++) {
-                setFavicon(tabViews.get(i), indexDataList.get(i), iconMode);
+            if (current < 0 || current >= length)
+                current = 0;
+
+            List<Request> batch = new ArrayList<>(BATCH_SIZE);
+            // current tab, then alternately the ones on its right and left
+            for (int i = 0; i < length * 2; i++) {
+                int index = current + ((i & 1) == 0 ? i / 2 : -(i + 1) / 2);
+                if (index < 0 || index >= length) continue;
+
+                Request request = request(tabViews.get(index), indexDataList.get(index), iconMode);
+                if (request == null) continue;
+
+                batch.add(request);
+                if (batch.size() == BATCH_SIZE) {
+                    load(batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
             }
+            if (!batch.isEmpty())
+                load(batch);
         }
     }
 
     void setFavicon(View view, TabIndexData indexData) {
-        setFavicon(view, indexData, iconMode);
+        Request request = request(view, indexData, iconMode);
+        if (request != null) {
+            List<Request> batch = new ArrayList<>(1);
+            batch.add(request);
+            load(batch);
+        }
     }
 
-    private void setFavicon(View view, TabIndexData indexData, boolean show) {
-        TextView titleTextView = view.findViewById(R.id.textView);
-        if (show && indexData.getOriginalUrl() != null && !indexData.getOriginalUrl().startsWith("yuzu:")) {
-            Bitmap bitmap = manager.get(indexData.getOriginalUrl());
-            Drawable icon;
-            if (bitmap != null) {
-                icon = new BitmapDrawable(context.getResources(), bitmap);
-            } else {
-                icon = context.getDrawable(R.drawable.ic_page_white_24px);
+    /**
+     * Drops the pending favicon of the view, the tab shows its own one from now on.
+     */
+    void cancel(View view) {
+        requests.remove(view);
+    }
+
+    private Request request(View view, TabIndexData indexData, boolean show) {
+        String url = indexData.getOriginalUrl();
+        if (show && url != null && !url.startsWith("yuzu:")) {
+            requests.put(view, url);
+            return new Request(view, url);
+        } else {
+            requests.remove(view);
+            ((TextView) view.findViewById(R.id.textView)).setCompoundDrawables(null, null, null, null);
+            return null;
+        }
+    }
+
+    private void load(final List<Request> batch) {
+        loader.execute(() -> {
+            for (Request request : batch) {
+                request.bitmap = manager.get(request.url);
             }
-            int size = titleTextView.getHeight() - titleTextView.getPaddingTop() - titleTextView.getPaddingBottom();
-            assert icon != null;
-            icon.setBounds(0, 0, size, size);
-            titleTextView.setCompoundDrawables(icon, null, null, null);
+            handler.post(() -> {
+                for (Request request : batch) {
+                    if (request.url.equals(requests.get(request.view))) {
+                        requests.remove(request.view);
+                        show(request.view, request.bitmap);
+                    }
+                }
+            });
+        });
+    }
+
+    private void show(View view, Bitmap bitmap) {
+        if (!iconMode) return;
+
+        TextView titleTextView = view.findViewById(R.id.textView);
+        Drawable icon;
+        if (bitmap != null) {
+            icon = new BitmapDrawable(context.getResources(), bitmap);
         } else {
-            titleTextView.setCompoundDrawables(null, null, null, null);
+            icon = context.getDrawable(R.drawable.ic_page_white_24px);
+        }
+        int size = titleTextView.getHeight() - titleTextView.getPaddingTop() - titleTextView.getPaddingBottom();
+        assert icon != null;
+        icon.setBounds(0, 0, size, size);
+        titleTextView.setCompoundDrawables(icon, null, null, null);
+    }
+
+    private static final class Request {
+        final View view;
+        final String url;
+        Bitmap bitmap;
+
+        Request(View view, String url) {
+            this.view = view;
+            this.url = url;
         }
     }
 }
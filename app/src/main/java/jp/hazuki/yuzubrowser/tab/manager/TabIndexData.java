@@ -17,10 +17,12 @@
 package jp.hazuki.yuzubrowser.tab.manager;
 
 import android.graphics.Bitmap;
+import android.text.TextUtils;
 import android.view.View;
 
 import java.io.Serializable;
 
+import jp.hazuki.yuzubrowser.utils.net.RequestUrl;
 import jp.hazuki.yuzubrowser.webkit.CustomWebView;
 
 public class TabIndexData implements Serializable {
@@ -35,6 +37,9 @@ public class TabIndexData implements Serializable {
     private boolean shotThumbnail;
     private boolean navLock;
     private boolean pinning;
+    private transient volatile RequestUrl originalRequestUrl;
+    /* new tabs have never been saved */
+    private transient boolean dirty = true;
 
     public TabIndexData() {
     }
@@ -58,6 +63,20 @@ public class TabIndexData implements Serializable {
         return mOriginalUrl != null ? mOriginalUrl : mUrl;
     }
 
+    /**
+     * Decomposed {@link #getOriginalUrl()}, parsed again only when the url changes.
+     */
+    public RequestUrl getOriginalRequestUrl() {
+        String url = getOriginalUrl();
+        if (url == null) return null;
+        RequestUrl requestUrl = originalRequestUrl;
+        if (requestUrl == null || !url.equals(requestUrl.getUrl())) {
+            requestUrl = RequestUrl.parse(url);
+            originalRequestUrl = requestUrl;
+        }
+        return requestUrl;
+    }
+
     public String getTitle() {
         return mTitle;
     }
@@ -75,6 +94,7 @@ public class TabIndexData implements Serializable {
     }
 
     void setTabType(int tabType) {
+        if (this.tabType != tabType) dirty = true;
         this.tabType = tabType;
     }
 
@@ -83,21 +103,23 @@ public class TabIndexData implements Serializable {
     }
 
     void setParent(long parent) {
+        if (this.parent != parent) dirty = true;
         this.parent = parent;
     }
 
     public void setUrl(String url) {
-        if (url != null)
-            this.mUrl = url;
-        else
-            mUrl = "";
+        if (url == null) url = "";
+        if (!url.equals(mUrl)) dirty = true;
+        this.mUrl = url;
     }
 
     public void setOriginalUrl(String url) {
+        if (!TextUtils.equals(mOriginalUrl, url)) dirty = true;
         mOriginalUrl = url;
     }
 
     public void setTitle(String title) {
+        if (!TextUtils.equals(mTitle, title)) dirty = true;
         this.mTitle = title;
     }
 
@@ -145,6 +167,7 @@ public class TabIndexData implements Serializable {
     }
 
     public void setNavLock(boolean navLock) {
+        if (this.navLock != navLock) dirty = true;
         this.navLock = navLock;
     }
 
@@ -153,6 +176,18 @@ public class TabIndexData implements Serializable {
     }
 
     public void setPinning(boolean pinning) {
+        if (this.pinning != pinning) dirty = true;
         this.pinning = pinning;
     }
+
+    /**
+     * @return true if the tab navigated, or its title, pin or lock changed since it was last saved
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2017 Hazuki
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package jp.hazuki.yuzubrowser.tab.manager;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import jp.hazuki.yuzubrowser.utils.ArrayUtils;
+import jp.hazuki.yuzubrowser.utils.ErrorReport;
+
+/**
+ * Append only log of the changes made to the tab index since the last snapshot.
+ * One json object per line, each with a sequence number so that records already
+ * contained in the snapshot are skipped on replay.
+ */
+class TabJournal {
+    private static final String JSON_NAME_OP = "op";
+    private static final String JSON_NAME_SEQ = "seq";
+    private static final String JSON_NAME_ID = "id";
+    private static final String JSON_NAME_FROM = "from";
+    private static final String JSON_NAME_TO = "to";
+    private static final String JSON_NAME_TAB = "tab";
+
+    private static final int OP_ADD = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_MOVE = 3;
+    private static final int OP_SWAP = 4;
+    private static final int OP_UPDATE = 5;
+
+    private final File mFile;
+    private final JsonFactory mFactory = new JsonFactory();
+    private long mSequence;
+    private int mSize;
+
+    TabJournal(File file) {
+        mFile = file;
+    }
+
+    long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return number of records written since the last {@link #clear()}
+     */
+    int size() {
+        return mSize;
+    }
+
+    void add(int index, TabIndexData data) {
+        try (JsonGenerator generator = begin(OP_ADD)) {
+            generator.writeNumberField(JSON_NAME_TO, index);
+            generator.writeFieldName(JSON_NAME_TAB);
+            TabStorage.writeTabIndexData(generator, data);
+            end(generator);
+        } catch (IOException e) {
+            ErrorReport.printAndWriteLog(e);
+        }
+    }
+
+    void remove(long id) {
+        try (JsonGenerator generator = begin(OP_REMOVE)) {
+            generator.writeNumberField(JSON_NAME_ID, id);
+            end(generator);
+        } catch (IOException e) {
+            ErrorReport.printAndWriteLog(e);
+        }
+    }
+
+    void move(int from, int to) {
+        writeFromTo(OP_MOVE, from, to);
+    }
+
+    void swap(int i, int j) {
+        writeFromTo(OP_SWAP, i, j);
+    }
+
+    void update(TabIndexData data) {
+        try (JsonGenerator generator = begin(OP_UPDATE)) {
+            generator.writeFieldName(JSON_NAME_TAB);
+            TabStorage.writeTabIndexData(generator, data);
+            end(generator);
+        } catch (IOException e) {
+            ErrorReport.printAndWriteLog(e);
+        }
+    }
+
+    private void writeFromTo(int op, int from, int to) {
+        try (JsonGenerator generator = begin(op)) {
+            generator.writeNumberField(JSON_NAME_FROM, from);
+            generator.writeNumberField(JSON_NAME_TO, to);
+            end(generator);
+        } catch (IOException e) {
+            ErrorReport.printAndWriteLog(e);
+        }
+    }
+
+    private JsonGenerator begin(int op) throws IOException {
+        JsonGenerator generator = mFactory.createGenerator(new FileOutputStream(mFile, true), JsonEncoding.UTF8);
+        generator.writeStartObject();
+        generator.writeNumberField(JSON_NAME_SEQ, ++mSequence);
+        generator.writeNumberField(JSON_NAME_OP, op);
+        return generator;
+    }
+
+    private void end(JsonGenerator generator) throws IOException {
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+        mSize++;
+    }
+
+    /**
+     * Drops the journal once its records are contained in a snapshot.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    void clear() {
+        mFile.delete();
+        mSize = 0;
+    }
+
+    /**
+     * Applies the records newer than the snapshot to the list read from it.
+     * A record cut by a crash ends the replay.
+     *
+     * @return number of records applied
+     */
+    int replay(List<TabIndexData> list, long snapshotSequence) {
+        mSequence = snapshotSequence;
+        if (!mFile.exists()) return 0;
+
+        int applied = 0;
+        try (JsonParser parser = mFactory.createParser(mFile)) {
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                long seq = -1;
+                int op = 0;
+                long id = -1;
+                int from = -1;
+                int to = -1;
+                TabIndexData tab = null;
+                while (parser.nextToken() != JsonToken.END_OBJECT) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    if (name == null) continue;
+                    switch (name) {
+                        case JSON_NAME_SEQ:
+                            seq = parser.getLongValue();
+                            break;
+                        case JSON_NAME_OP:
+                            op = parser.getIntValue();
+                            break;
+                        case JSON_NAME_ID:
+                            id = parser.getLongValue();
+                            break;
+                        case JSON_NAME_FROM:
+                            from = parser.getIntValue();
+                            break;
+                        case JSON_NAME_TO:
+                            to = parser.getIntValue();
+                            break;
+                        case JSON_NAME_TAB:
+                            tab = TabStorage.readTabIndexData(parser);
+                            break;
+                        default:
+                            parser.skipChildren();
+                            break;
+                    }
+                }
+                if (seq <= snapshotSequence) continue;
+                apply(list, op, id, from, to, tab);
+                mSequence = seq;
+                applied++;
+            }
+        } catch (IOException e) {
+            ErrorReport.printAndWriteLog(e);
+        }
+        mSize = applied;
+        return applied;
+    }
+
+    private static void apply(List<TabIndexData> list, int op, long id, int from, int to, TabIndexData tab) {
+        switch (op) {
+            case OP_ADD:
+                if (tab == null || indexOf(list, tab.getId()) >= 0) return;
+                if (to >= 0 && to <= list.size())
+                    list.add(to, tab);
+                else
+                    list.add(tab);
+                break;
+            case OP_REMOVE: {
+                int index = indexOf(list, id);
+                if (index >= 0)
+                    list.remove(index);
+                break;
+            }
+            case OP_MOVE:
+                if (from >= 0 && to >= 0 && from < list.size() && to < list.size())
+                    ArrayUtils.move(list, from, to);
+                break;
+            case OP_SWAP:
+                if (from >= 0 && to >= 0 && from < list.size() && to < list.size())
+                    Collections.swap(list, from, to);
+                break;
+            case OP_UPDATE: {
+                if (tab == null) return;
+                int index = indexOf(list, tab.getId());
+                if (index >= 0)
+                    list.set(index, tab);
+                break;
+            }
+        }
+    }
+
+    private static int indexOf(List<TabIndexData> list, long id) {
+        for (int i = 0; list.size() > i; i++)
+            if (list.get(i).getId() == id)
+                return i;
+        return -1;
+    }
+}
@@ -17,6 +17,7 @@
 package jp.hazuki.yuzubrowser.tab.manager;
 
 import android.view.View;
+import android.widget.ImageView;
 
 import java.util.List;
 
@@ -70,6 +71,13 @@ public interface TabManager {
 
     void saveData();
 
+    /**
+     * Saves only the loaded tabs which changed since they were last saved, for the periodic auto save.
+     */
+    void saveDirtyData();
+
+    void flush();
+
     void loadData();
 
     void clear();
@@ -89,4 +97,6 @@ public interface TabManager {
     void removeThumbnailCache(String url);
 
     void forceTakeThumbnail(MainTabData data);
+
+    void loadThumbnail(ImageView view, TabIndexData data);
 }
@@ -18,7 +18,6 @@ package jp.hazuki.yuzubrowser.tab.manager;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
 import android.os.Parcel;
 
@@ -29,7 +28,6 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -38,8 +36,15 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import jp.hazuki.yuzubrowser.utils.ArrayUtils;
 import jp.hazuki.yuzubrowser.utils.ErrorReport;
@@ -53,34 +58,85 @@ import jp.hazuki.yuzubrowser.webkit.WebViewFactory;
 class TabStorage {
     private static final String FILE_TAB_INDEX = "index";
     private static final String FILE_TAB_CURRENT = "current";
+    private static final String FILE_TAB_JOURNAL = "index_journal";
     private static final String FILE_TAB_THUMBNAIL_SUFFIX = "_thumb";
+    private static final String FILE_TMP_SUFFIX = ".tmp";
+    private static final int JOURNAL_COMPACT_SIZE = 256;
     private List<TabIndexData> mTabIndexDataList;
     private final File tabPath;
+    private final TabJournal mJournal;
+    private long mSnapshotSequence;
+    private int mSavedCurrentTab = -1;
+
+    /* id -> data, also read from WebView IO threads */
+    private final ConcurrentHashMap<Long, TabIndexData> mIdMap = new ConcurrentHashMap<>();
+    /* id -> position, rebuilt lazily after structural changes */
+    private final HashMap<Long, Integer> mPositionMap = new HashMap<>();
+    private boolean mPositionValid;
+
+    /* bundles and thumbnails waiting for the writer thread, one entry per tab id */
+    private final LinkedHashMap<Long, PendingWrite> mPending = new LinkedHashMap<>();
+    private final Object mWriteLock = new Object();
+    private boolean mWriteQueued;
+    private final ThreadPoolExecutor mWriter = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
 
     public TabStorage(Context context) {
         tabPath = context.getDir("tabs", Context.MODE_PRIVATE);
         mTabIndexDataList = loadIndexJson(new File(tabPath, FILE_TAB_INDEX));
-        loadThumbnails();
+        mJournal = new TabJournal(new File(tabPath, FILE_TAB_JOURNAL));
+        if (mJournal.replay(mTabIndexDataList, mSnapshotSequence) > 0)
+            saveIndexSnapshot();
+        for (TabIndexData data : mTabIndexDataList)
+            mIdMap.put(data.getId(), data);
     }
 
     public void addIndexData(TabIndexData data) {
         mTabIndexDataList.add(data);
+        mIdMap.put(data.getId(), data);
+        if (mPositionValid)
+            mPositionMap.put(data.getId(), mTabIndexDataList.size() - 1);
+        mJournal.add(mTabIndexDataList.size() - 1, data);
+        compactIfNeeded();
     }
 
     public void addIndexData(int index, TabIndexData data) {
         mTabIndexDataList.add(index, data);
+        mIdMap.put(data.getId(), data);
+        invalidatePositions();
+        mJournal.add(index, data);
+        compactIfNeeded();
     }
 
     public TabIndexData getIndexData(int index) {
         return mTabIndexDataList.get(index);
     }
 
+    /**
+     * Thread safe, may be called from WebView IO threads.
+     */
+    public TabIndexData getIndexDataById(long id) {
+        return mIdMap.get(id);
+    }
+
     public int indexOf(long id) {
-        for (int i = 0; i < mTabIndexDataList.size(); i++)
-            if (mTabIndexDataList.get(i).getId() == id)
-                return i;
+        if (!mPositionValid) {
+            mPositionMap.clear();
+            for (int i = 0; i < mTabIndexDataList.size(); i++)
+                mPositionMap.put(mTabIndexDataList.get(i).getId(), i);
+            mPositionValid = true;
+        }
+        Integer index = mPositionMap.get(id);
+        return index != null ? index : -1;
+    }
 
-        return -1;
+    private void invalidatePositions() {
+        mPositionValid = false;
+    }
+
+    private void removeId(TabIndexData data) {
+        mIdMap.remove(data.getId());
+        invalidatePositions();
     }
 
     public int size() {
@@ -89,7 +145,9 @@ class TabStorage {
 
     public TabIndexData removeAndDelete(int index) {
         TabIndexData data = mTabIndexDataList.remove(index);
-        saveIndexData();
+        removeId(data);
+        mJournal.remove(data.getId());
+        compactIfNeeded();
         deleteWebView(data);
         return data;
     }
@@ -101,12 +159,13 @@ class TabStorage {
             TabIndexData data = itr.next();
             if (!data.isPinning()) {
                 itr.remove();
+                removeId(data);
                 deleteWebView(data);
                 listener.onRemove(index, data.getId());
             }
             index++;
         }
-        saveIndexData();
+        saveIndexSnapshot();
     }
 
     public interface OnClearExceptPinnedTabListener {
@@ -115,18 +174,31 @@ class TabStorage {
 
     public void move(int from, int to) {
         ArrayUtils.move(mTabIndexDataList, from, to);
+        invalidatePositions();
+        mJournal.move(from, to);
+        compactIfNeeded();
     }
 
     public void swap(int i, int j) {
         Collections.swap(mTabIndexDataList, i, j);
+        if (mPositionValid) {
+            mPositionMap.put(mTabIndexDataList.get(i).getId(), i);
+            mPositionMap.put(mTabIndexDataList.get(j).getId(), j);
+        }
+        mJournal.swap(i, j);
+        compactIfNeeded();
     }
 
     TabIndexData remove(int index) {
-        return mTabIndexDataList.remove(index);
+        TabIndexData data = mTabIndexDataList.remove(index);
+        removeId(data);
+        mJournal.remove(data.getId());
+        compactIfNeeded();
+        return data;
     }
 
     void add(int index, TabIndexData tabIndexData) {
-        mTabIndexDataList.add(index, tabIndexData);
+        addIndexData(index, tabIndexData);
     }
 
     public List<TabIndexData> getTabIndexDataList() {
@@ -134,22 +206,55 @@ class TabStorage {
     }
 
     public int searchParentTabNo(long id) {
-        for (int i = 0; mTabIndexDataList.size() > i; i++) {
-            if (mTabIndexDataList.get(i).getId() == id) {
-                return i;
-            }
-        }
-        return -1;
+        return indexOf(id);
     }
 
+    /**
+     * Writes the thumbnails which were updated.
+     * The index itself is already in the journal, a snapshot is only written when there is none yet.
+     */
     public void saveIndexData() {
-        saveIndexJson(new File(tabPath, FILE_TAB_INDEX), mTabIndexDataList);
+        if (!new File(tabPath, FILE_TAB_INDEX).exists())
+            saveIndexSnapshot();
         saveThumbnails();
     }
 
+    /**
+     * Folds the journal into a snapshot of the index, on shutdown.
+     */
+    public void compact() {
+        if (mJournal.size() > 0)
+            saveIndexSnapshot();
+    }
+
+    private void compactIfNeeded() {
+        if (mJournal.size() >= JOURNAL_COMPACT_SIZE)
+            saveIndexSnapshot();
+    }
+
+    private void saveIndexSnapshot() {
+        File file = new File(tabPath, FILE_TAB_INDEX);
+        File tmp = new File(tabPath, FILE_TAB_INDEX + FILE_TMP_SUFFIX);
+        long sequence = mJournal.getSequence();
+        if (saveIndexJson(tmp, mTabIndexDataList, sequence) && tmp.renameTo(file)) {
+            mSnapshotSequence = sequence;
+            mJournal.clear();
+        }
+    }
+
     public CustomWebView loadWebView(WebBrowser webBrowser, TabIndexData data) {
         if (data == null) return null;
-        Bundle bundle = loadBundle(new File(tabPath, Long.toString(data.getId())));
+        Bundle bundle = null;
+        synchronized (mPending) {
+            PendingWrite write = mPending.get(data.getId());
+            if (write != null)
+                bundle = write.bundle;
+        }
+        if (bundle == null) {
+            synchronized (mWriteLock) {
+                bundle = loadBundle(new File(tabPath, Long.toString(data.getId())));
+            }
+        }
         CustomWebView webView = webBrowser.makeWebView(WebViewFactory.getMode(bundle));
         webView.restoreState(bundle);
         webView.setIdentityId(data.getId());
@@ -158,47 +263,112 @@ class TabStorage {
 
     public TabIndexData saveWebView(MainTabData tabData) {
         TabIndexData data = tabData.getTabIndexData();
-        saveIndexData();
+        mJournal.update(data);
+        compactIfNeeded();
+        data.setDirty(false);
 
         Bundle bundle = new Bundle();
         tabData.mWebView.saveState(bundle);
-        saveBundle(new File(tabPath, Long.toString(data.getId())), bundle);
+        enqueueWrite(data.getId(), bundle, takeUpdatedThumbnail(data));
 
         return data;
     }
 
-    private void loadThumbnails() {
-        for (TabIndexData data : mTabIndexDataList) {
-            byte[] image = getThumbnail(data.getId());
-            if (image != null) {
-                try {
-                    Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length);
-                    data.setThumbnail(bitmap);
-                } catch (OutOfMemoryError e) {
-                    System.gc();
+    /**
+     * Writes everything queued for the writer thread before returning.
+     */
+    public void flush() {
+        writePending();
+    }
+
+    private void enqueueWrite(long id, Bundle bundle, Bitmap thumbnail) {
+        if (bundle == null && thumbnail == null) return;
+        synchronized (mPending) {
+            PendingWrite write = mPending.get(id);
+            if (write == null) {
+                write = new PendingWrite();
+                mPending.put(id, write);
+            }
+            if (bundle != null)
+                write.bundle = bundle;
+            if (thumbnail != null)
+                write.thumbnail = thumbnail;
+            if (!mWriteQueued) {
+                mWriteQueued = true;
+                mWriter.execute(mWriteRunnable);
+            }
+        }
+    }
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    private void writePending() {
+        while (true) {
+            synchronized (mWriteLock) {
+                long id;
+                PendingWrite write;
+                synchronized (mPending) {
+                    Iterator<Map.Entry<Long, PendingWrite>> itr = mPending.entrySet().iterator();
+                    if (!itr.hasNext()) {
+                        mWriteQueued = false;
+                        return;
+                    }
+                    Map.Entry<Long, PendingWrite> entry = itr.next();
+                    itr.remove();
+                    id = entry.getKey();
+                    write = entry.getValue();
+                }
+                if (write.bundle != null)
+                    saveBundle(new File(tabPath, Long.toString(id)), write.bundle);
+                if (write.thumbnail != null) {
+                    byte[] image = ImageUtils.bmp2byteArray(write.thumbnail, Bitmap.CompressFormat.JPEG, 75);
+                    if (image != null)
+                        saveThumbnail(id, image);
                 }
             }
         }
     }
 
+    private static final class PendingWrite {
+        private Bundle bundle;
+        private Bitmap thumbnail;
+    }
+
     private void saveThumbnails() {
         for (TabIndexData data : mTabIndexDataList) {
-            if (data.isThumbnailUpdated()) {
-                byte[] image = ImageUtils.bmp2byteArray(data.getThumbnail(), Bitmap.CompressFormat.JPEG, 75);
-                if (image != null)
-                    saveThumbnail(data.getId(), image);
-                data.setThumbnailUpdated(false);
-            }
+            enqueueWrite(data.getId(), null, takeUpdatedThumbnail(data));
         }
     }
 
+    private Bitmap takeUpdatedThumbnail(TabIndexData data) {
+        if (data.isThumbnailUpdated()) {
+            data.setThumbnailUpdated(false);
+            return data.getThumbnail();
+        }
+        return null;
+    }
+
     private void saveThumbnail(long id, byte[] image) {
-        try (FileOutputStream stream = new FileOutputStream(
-                new File(tabPath, Long.toString(id) + FILE_TAB_THUMBNAIL_SUFFIX))) {
-            stream.write(image);
+        writeAtomically(new File(tabPath, Long.toString(id) + FILE_TAB_THUMBNAIL_SUFFIX), image);
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void writeAtomically(File file, byte[] data) {
+        File tmp = new File(file.getParentFile(), file.getName() + FILE_TMP_SUFFIX);
+        try (OutputStream os = new FileOutputStream(tmp)) {
+            os.write(data);
         } catch (IOException e) {
             ErrorReport.printAndWriteLog(e);
+            tmp.delete();
+            return;
         }
+        if (!tmp.renameTo(file))
+            tmp.delete();
     }
 
     public byte[] getThumbnail(long id) {
@@ -218,9 +388,14 @@ class TabStorage {
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
     private void deleteWebView(TabIndexData data) {
+        synchronized (mPending) {
+            mPending.remove(data.getId());
+        }
         String id = Long.toString(data.getId());
-        new File(tabPath, id).delete();
-        new File(tabPath, id + FILE_TAB_THUMBNAIL_SUFFIX).delete();
+        synchronized (mWriteLock) {
+            new File(tabPath, id).delete();
+            new File(tabPath, id + FILE_TAB_THUMBNAIL_SUFFIX).delete();
+        }
     }
 
     private Bundle loadBundle(File file) {
@@ -242,22 +417,28 @@ class TabStorage {
     }
 
     void saveBundle(long id, Bundle bundle) {
-        saveBundle(new File(tabPath, Long.toString(id)), bundle);
+        synchronized (mWriteLock) {
+            saveBundle(new File(tabPath, Long.toString(id)), bundle);
+        }
     }
 
     private void saveBundle(File file, Bundle bundle) {
-        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
-            Parcel parcel = Parcel.obtain();
-            parcel.writeBundle(bundle);
-            os.write(parcel.marshall());
-            parcel.recycle();
-        } catch (IOException e) {
-            ErrorReport.printAndWriteLog(e);
-        }
+        Parcel parcel = Parcel.obtain();
+        parcel.writeBundle(bundle);
+        byte[] data = parcel.marshall();
+        parcel.recycle();
+        writeAtomically(file, data);
     }
 
     public void clear() {
-        FileUtils.deleteDirectoryContents(tabPath);
+        synchronized (mPending) {
+            mPending.clear();
+        }
+        synchronized (mWriteLock) {
+            FileUtils.deleteDirectoryContents(tabPath);
+        }
+        mJournal.clear();
+        mSavedCurrentTab = -1;
     }
 
     private static final String JSON_NAME_ID = "id";
@@ -268,53 +449,32 @@ class TabStorage {
     private static final String JSON_NAME_NAV_LOCK = "nav";
     private static final String JSON_NAME_PINNING = "pin";
 
+    private static final String JSON_NAME_SEQUENCE = "seq";
+    private static final String JSON_NAME_TABS = "tabs";
+
+    /**
+     * Reads either the legacy bare array or the {seq, tabs} snapshot object.
+     */
     private List<TabIndexData> loadIndexJson(File file) {
         List<TabIndexData> tabIndexDataList = new ArrayList<>();
+        mSnapshotSequence = 0;
         JsonFactory factory = new JsonFactory();
         try (JsonParser parser = factory.createParser(file)) {
-            // 配列の処理
-            if (parser.nextToken() == JsonToken.START_ARRAY) {
-                while (parser.nextToken() != JsonToken.END_ARRAY) {
-                    // 各オブジェクトの処理
-                    if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
-                        TabIndexData tabIndexData = new TabIndexData();
-                        while (parser.nextToken() != JsonToken.END_OBJECT) {
-                            String name = parser.getCurrentName();
-                            parser.nextToken();
-                            if (name != null) {
-                                switch (name) {
-                                    case JSON_NAME_ID:
-                                        tabIndexData.setId(parser.getLongValue());
-                                        break;
-                                    case JSON_NAME_URL:
-                                        tabIndexData.setUrl(parser.getText());
-                                        break;
-                                    case JSON_NAME_TITLE:
-                                        tabIndexData.setTitle(parser.getText());
-                                        break;
-                                    case JSON_NAME_TAB_TYPE:
-                                        tabIndexData.setTabType(parser.getIntValue());
-                                        break;
-                                    case JSON_NAME_PARENT:
-                                        tabIndexData.setParent(parser.getLongValue());
-                                        break;
-                                    case JSON_NAME_NAV_LOCK:
-                                        tabIndexData.setNavLock(parser.getBooleanValue());
-                                        break;
-                                    case JSON_NAME_PINNING:
-                                        tabIndexData.setPinning(parser.getBooleanValue());
-                                        break;
-                                    default:
-                                        parser.skipChildren();
-                                        break;
-                                }
-                            }
-                        }
-                        tabIndexDataList.add(tabIndexData);
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() != JsonToken.END_OBJECT) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    if (JSON_NAME_SEQUENCE.equals(name)) {
+                        mSnapshotSequence = parser.getLongValue();
+                    } else if (JSON_NAME_TABS.equals(name) && parser.getCurrentToken() == JsonToken.START_ARRAY) {
+                        readTabArray(parser, tabIndexDataList);
                     } else {
                         parser.skipChildren();
                     }
                 }
+            } else if (token == JsonToken.START_ARRAY) {
+                readTabArray(parser, tabIndexDataList);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -323,26 +483,86 @@ class TabStorage {
         return tabIndexDataList;
     }
 
-    private void saveIndexJson(File file, List<TabIndexData> tabIndexDataList) {
+    private static void readTabArray(JsonParser parser, List<TabIndexData> tabIndexDataList) throws IOException {
+        // 配列の処理
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            // 各オブジェクトの処理
+            if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+                tabIndexDataList.add(readTabIndexData(parser));
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    static TabIndexData readTabIndexData(JsonParser parser) throws IOException {
+        TabIndexData tabIndexData = new TabIndexData();
+        while (parser.nextToken() != JsonToken.END_OBJECT) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if (name != null) {
+                switch (name) {
+                    case JSON_NAME_ID:
+                        tabIndexData.setId(parser.getLongValue());
+                        break;
+                    case JSON_NAME_URL:
+                        tabIndexData.setUrl(parser.getText());
+                        break;
+                    case JSON_NAME_TITLE:
+                        tabIndexData.setTitle(parser.getText());
+                        break;
+                    case JSON_NAME_TAB_TYPE:
+                        tabIndexData.setTabType(parser.getIntValue());
+                        break;
+                    case JSON_NAME_PARENT:
+                        tabIndexData.setParent(parser.getLongValue());
+                        break;
+                    case JSON_NAME_NAV_LOCK:
+                        tabIndexData.setNavLock(parser.getBooleanValue());
+                        break;
+                    case JSON_NAME_PINNING:
+                        tabIndexData.setPinning(parser.getBooleanValue());
+                        break;
+                    default:
+                        parser.skipChildren();
+                        break;
+                }
+            }
+        }
+        tabIndexData.setDirty(false);
+        return tabIndexData;
+    }
+
+    static void writeTabIndexData(JsonGenerator generator, TabIndexData data) throws IOException {
+        generator.writeStartObject();
+        generator.writeNumberField(JSON_NAME_ID, data.getId());
+        generator.writeStringField(JSON_NAME_URL, data.getUrl());
+        generator.writeStringField(JSON_NAME_TITLE, data.getTitle());
+        generator.writeNumberField(JSON_NAME_TAB_TYPE, data.getTabType());
+        generator.writeNumberField(JSON_NAME_PARENT, data.getParent());
+        generator.writeBooleanField(JSON_NAME_NAV_LOCK, data.isNavLock());
+        generator.writeBooleanField(JSON_NAME_PINNING, data.isPinning());
+        generator.writeEndObject();
+    }
+
+    private boolean saveIndexJson(File file, List<TabIndexData> tabIndexDataList, long sequence) {
         JsonFactory jsonFactory = new JsonFactory();
         try (JsonGenerator generator = jsonFactory.createGenerator(file, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeNumberField(JSON_NAME_SEQUENCE, sequence);
+            generator.writeFieldName(JSON_NAME_TABS);
             generator.writeStartArray();
             for (TabIndexData data : tabIndexDataList) {
-                generator.writeStartObject();
-                generator.writeNumberField(JSON_NAME_ID, data.getId());
-                generator.writeStringField(JSON_NAME_URL, data.getUrl());
-                generator.writeStringField(JSON_NAME_TITLE, data.getTitle());
-                generator.writeNumberField(JSON_NAME_TAB_TYPE, data.getTabType());
-                generator.writeNumberField(JSON_NAME_PARENT, data.getParent());
-                generator.writeBooleanField(JSON_NAME_NAV_LOCK, data.isNavLock());
-                generator.writeBooleanField(JSON_NAME_PINNING, data.isPinning());
-                generator.writeEndObject();
+                writeTabIndexData(generator, data);
             }
             generator.writeEndArray();
+            generator.writeEndObject();
             generator.flush();
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
         }
+        return false;
     }
 
     private static final String JSON_NAME_CURRENT_TAB = "current";
@@ -365,16 +585,19 @@ class TabStorage {
             e.printStackTrace();
         }
 
+        mSavedCurrentTab = tab;
         return tab;
     }
 
     public void saveCurrentTab(int currentTab) {
+        if (currentTab == mSavedCurrentTab) return;
         JsonFactory jsonFactory = new JsonFactory();
         try (JsonGenerator generator = jsonFactory.createGenerator(new File(tabPath, FILE_TAB_CURRENT), JsonEncoding.UTF8)) {
             generator.writeStartObject();
             generator.writeNumberField(JSON_NAME_CURRENT_TAB, currentTab);
             generator.writeEndObject();
             generator.flush();
+            mSavedCurrentTab = currentTab;
         } catch (IOException e) {
             e.printStackTrace();
         }
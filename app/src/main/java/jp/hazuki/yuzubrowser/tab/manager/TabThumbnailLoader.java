@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2017 Hazuki
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.hazuki.yuzubrowser.tab.manager;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.WeakHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jp.hazuki.yuzubrowser.R;
+import jp.hazuki.yuzubrowser.utils.DisplayUtils;
+
+/**
+ * Decodes saved tab thumbnails when a row of the tab list is bound.
+ * Decoded bitmaps are kept in an LRU sized in bytes, and the evicted ones
+ * which are no longer shown are given back to the decoder through inBitmap.
+ * Everything but the decoding runs on the main thread.
+ */
+class TabThumbnailLoader {
+    private static final int REUSE_POOL_SIZE = 4;
+
+    private final TabStorage storage;
+    private final int width;
+    private final int height;
+    private final ThumbnailCache cache;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor decoder = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    /* view -> id of the tab it is waiting for */
+    private final WeakHashMap<ImageView, Long> requests = new WeakHashMap<>();
+    /* view -> bitmap it is showing */
+    private final WeakHashMap<ImageView, Bitmap> shown = new WeakHashMap<>();
+    /* evicted bitmaps nobody shows, guarded by itself */
+    private final ArrayDeque<Bitmap> reusable = new ArrayDeque<>();
+
+    TabThumbnailLoader(Context context, TabStorage storage) {
+        this.storage = storage;
+        float density = DisplayUtils.getDensity(context);
+        height = (int) (density * 82 + 0.5f);
+        width = (int) (density * 104 + 0.5f);
+        cache = new ThumbnailCache((int) Math.min(Runtime.getRuntime().maxMemory() / 16, 0x800000));
+    }
+
+    void bind(ImageView view, TabIndexData data) {
+        Bitmap thumbnail = data.getThumbnail();
+        if (thumbnail == null)
+            thumbnail = cache.get(data.getId());
+
+        if (thumbnail != null) {
+            requests.remove(view);
+            show(view, thumbnail);
+            return;
+        }
+
+        view.setImageResource(R.drawable.empty_thumbnail);
+        shown.remove(view);
+        Long pending = requests.put(view, data.getId());
+        if (pending != null && pending == data.getId()) return;
+
+        final long id = data.getId();
+        decoder.execute(() -> {
+            final Bitmap bitmap = decode(id);
+            handler.post(() -> {
+                if (bitmap != null && cache.get(id) == null)
+                    cache.put(id, bitmap);
+                Iterator<WeakHashMap.Entry<ImageView, Long>> itr = requests.entrySet().iterator();
+                while (itr.hasNext()) {
+                    WeakHashMap.Entry<ImageView, Long> entry = itr.next();
+                    if (entry.getValue() == id) {
+                        itr.remove();
+                        if (bitmap != null)
+                            show(entry.getKey(), bitmap);
+                    }
+                }
+            });
+        });
+    }
+
+    private void show(ImageView view, Bitmap bitmap) {
+        view.setImageBitmap(bitmap);
+        shown.put(view, bitmap);
+    }
+
+    void remove(long id) {
+        cache.remove(id);
+    }
+
+    void clear() {
+        cache.evictAll();
+        synchronized (reusable) {
+            reusable.clear();
+        }
+    }
+
+    private Bitmap decode(long id) {
+        byte[] image = storage.getThumbnail(id);
+        if (image == null) return null;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(image, 0, image.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight);
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inMutable = true;
+        options.inBitmap = takeReusable(options);
+
+        try {
+            return BitmapFactory.decodeByteArray(image, 0, image.length, options);
+        } catch (IllegalArgumentException e) {
+            // the bitmap given for reuse did not fit after all
+            options.inBitmap = null;
+            return decodeSafely(image, options);
+        } catch (OutOfMemoryError e) {
+            handler.post(this::clear);
+            return null;
+        }
+    }
+
+    private Bitmap decodeSafely(byte[] image, BitmapFactory.Options options) {
+        try {
+            return BitmapFactory.decodeByteArray(image, 0, image.length, options);
+        } catch (OutOfMemoryError e) {
+            handler.post(this::clear);
+            return null;
+        }
+    }
+
+    private int calculateSampleSize(int outWidth, int outHeight) {
+        int sampleSize = 1;
+        while (outWidth / (sampleSize * 2) >= width && outHeight / (sampleSize * 2) >= height)
+            sampleSize *= 2;
+        return sampleSize;
+    }
+
+    private Bitmap takeReusable(BitmapFactory.Options options) {
+        int sampleSize = options.inSampleSize;
+        int byteCount = ((options.outWidth + sampleSize - 1) / sampleSize)
+                * ((options.outHeight + sampleSize - 1) / sampleSize) * 2;
+        synchronized (reusable) {
+            Iterator<Bitmap> itr = reusable.iterator();
+            while (itr.hasNext()) {
+                Bitmap bitmap = itr.next();
+                if (bitmap.isRecycled() || !bitmap.isMutable()) {
+                    itr.remove();
+                } else if (bitmap.getAllocationByteCount() >= byteCount) {
+                    itr.remove();
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void onEvicted(Bitmap bitmap) {
+        if (!bitmap.isMutable() || shown.containsValue(bitmap)) return;
+        synchronized (reusable) {
+            if (reusable.size() >= REUSE_POOL_SIZE)
+                reusable.poll();
+            reusable.add(bitmap);
+        }
+    }
+
+    private final class ThumbnailCache extends LruCache<Long, Bitmap> {
+        ThumbnailCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected int sizeOf(Long key, Bitmap value) {
+            return value.getAllocationByteCount();
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+            if (evicted)
+                onEvicted(oldValue);
+        }
+    }
+}
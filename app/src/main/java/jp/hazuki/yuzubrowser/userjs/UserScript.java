@@ -2,14 +2,17 @@ package jp.hazuki.yuzubrowser.userjs;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.support.annotation.VisibleForTesting;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import jp.hazuki.yuzubrowser.utils.ErrorReport;
 import jp.hazuki.yuzubrowser.utils.Logger;
@@ -26,8 +29,12 @@ public class UserScript implements Parcelable {
     private String description;
     private List<Pattern> include;
     private List<Pattern> exclude;
+    private List<String> includeHosts;
+    private boolean includeAnyHost;
     private boolean unwrap;
     private boolean runStart;
+    private String runnable;
+
     public UserScript() {
         info = new UserScriptInfo();
     }
@@ -92,11 +99,14 @@ public class UserScript implements Parcelable {
     }
 
     public String getRunnable() {
-        if (unwrap) {
-            return info.getData();
-        } else {
-            return "(function() {\n" + info.getData() + "\n})()";
+        if (runnable == null) {
+            if (unwrap) {
+                runnable = info.getData();
+            } else {
+                runnable = "(function() {\n" + info.getData() + "\n})()";
+            }
         }
+        return runnable;
     }
 
     public void setData(String data) {
@@ -152,6 +162,14 @@ public class UserScript implements Parcelable {
         this.include = include;
     }
 
+    /**
+     * @return the hosts the includes are limited to, "*.example.com" standing for its subdomains,
+     * or null if an include may match any host
+     */
+    public List<String> getIncludeHosts() {
+        return includeAnyHost ? null : includeHosts;
+    }
+
     public List<Pattern> getExclude() {
         return exclude;
     }
@@ -178,6 +196,9 @@ public class UserScript implements Parcelable {
         description = null;
         include = null;
         exclude = null;
+        includeHosts = null;
+        includeAnyHost = false;
+        runnable = null;
 
         try {
             BufferedReader reader = new BufferedReader(new StringReader(info.getData()));
@@ -221,8 +242,10 @@ public class UserScript implements Parcelable {
             if (include == null)
                 include = new ArrayList<>();
             Pattern pattern = WebUtils.makeUrlPattern(value);
-            if (pattern != null)
+            if (pattern != null) {
                 include.add(pattern);
+                includeAnyHost = true;
+            }
         } else if ("exclude".equalsIgnoreCase(field)) {
             if (exclude == null)
                 exclude = new ArrayList<>();
@@ -236,22 +259,54 @@ public class UserScript implements Parcelable {
         } else if ("match".equalsIgnoreCase(field)) {
             if (include == null)
                 include = new ArrayList<>();
-            String pattern_url = "?^" + value.replace("?", "\\?").replace(".", "\\.")
+            String pattern_url = "^" + value.replace("?", "\\?").replace(".", "\\.")
                     .replace("*", ".*").replace("+", ".+")
                     .replace("://.*\\.", "://((?![\\./]).)*\\.").replaceAll("^\\.\\*://", "https?://");
-            Pattern pattern = WebUtils.makeUrlPattern(pattern_url);
-            if (pattern != null)
-                include.add(pattern);
+            try {
+                include.add(Pattern.compile(pattern_url));
+            } catch (PatternSyntaxException e) {
+                ErrorReport.printAndWriteLog(e);
+                return;
+            }
+            String host = getMatchHost(value);
+            if (host != null) {
+                if (includeHosts == null)
+                    includeHosts = new ArrayList<>();
+                includeHosts.add(host);
+            } else {
+                includeAnyHost = true;
+            }
         } else {
             Logger.w(TAG, "Unknown header : " + line);
         }
     }
 
+    /**
+     * @return the host of a match pattern which names its scheme and host plainly, or null
+     */
+    @VisibleForTesting
+    static String getMatchHost(String value) {
+        int schemeEnd = value.indexOf("://");
+        if (schemeEnd < 0) return null;
+        int hostEnd = value.indexOf('/', schemeEnd + 3);
+        if (hostEnd < 0) return null;
+
+        String scheme = value.substring(0, schemeEnd);
+        if (!scheme.equals("*") && !sMatchSchemePattern.matcher(scheme).matches())
+            return null;
+        String host = value.substring(schemeEnd + 3, hostEnd);
+        if (!sMatchHostPattern.matcher(host).matches())
+            return null;
+        return host.toLowerCase(Locale.ENGLISH);
+    }
+
     public UserScriptInfo getInfo() {
         return info;
     }
 
     private static final Pattern sHeaderStartPattern = Pattern.compile("\\s*//\\s*==UserScript==\\s*", Pattern.CASE_INSENSITIVE);
     private static final Pattern sHeaderEndPattern = Pattern.compile("\\s*//\\s*==/UserScript==\\s*", Pattern.CASE_INSENSITIVE);
+    private static final Pattern sMatchSchemePattern = Pattern.compile("[A-Za-z]+");
+    private static final Pattern sMatchHostPattern = Pattern.compile("\\*\\.[A-Za-z0-9.-]+|[A-Za-z0-9.-]*");
     private static final Pattern sHeaderMainPattern = Pattern.compile("\\s*//\\s*@(\\S+)(?:\\s+(.*))?", Pattern.CASE_INSENSITIVE);
 }
@@ -0,0 +1,215 @@
+package jp.hazuki.yuzubrowser.userjs;
+
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import jp.hazuki.yuzubrowser.webkit.CustomWebView;
+
+/**
+ * Runs the enabled user scripts on the pages they match.
+ * The scripts are split by the time they run at, and those whose matches name their hosts
+ * are only tried on urls of these hosts. Matching scripts still run in their own order.
+ * This is meant for the main thread only.
+ */
+public final class UserScriptDispatcher {
+    private final Phase mStart;
+    private final Phase mEnd;
+
+    public UserScriptDispatcher(List<UserScript> scripts) {
+        List<UserScript> start = new ArrayList<>();
+        List<UserScript> end = new ArrayList<>();
+        for (UserScript script : scripts) {
+            // without includes it never runs
+            if (script.getInclude() == null || script.getInclude().isEmpty())
+                continue;
+            if (script.isRunStart())
+                start.add(script);
+            else
+                end.add(script);
+        }
+        mStart = new Phase(start);
+        mEnd = new Phase(end);
+    }
+
+    public void run(CustomWebView web, String url, boolean isStart) {
+        Phase phase = isStart ? mStart : mEnd;
+        BitSet matches = phase.match(url);
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1))
+            web.evaluateJavascript(phase.runnables[i], null);
+    }
+
+    @VisibleForTesting
+    List<UserScript> getMatches(String url, boolean isStart) {
+        Phase phase = isStart ? mStart : mEnd;
+        BitSet matches = phase.match(url);
+        List<UserScript> list = new ArrayList<>();
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1))
+            list.add(phase.scripts[i]);
+        return list;
+    }
+
+    private static final class Phase {
+        private final UserScript[] scripts;
+        private final String[] runnables;
+        /* scripts which may match any host */
+        private final BitSet anyHost = new BitSet();
+        /* host -> scripts */
+        private final HostTable hosts = new HostTable();
+        /* domain -> scripts matching its subdomains */
+        private final HostTable domains = new HostTable();
+        /* reused by each run */
+        private final BitSet candidates = new BitSet();
+
+        Phase(List<UserScript> list) {
+            scripts = list.toArray(new UserScript[list.size()]);
+            runnables = new String[scripts.length];
+            for (int i = 0; i < scripts.length; i++) {
+                runnables[i] = scripts[i].getRunnable();
+
+                List<String> includeHosts = scripts[i].getIncludeHosts();
+                if (includeHosts == null) {
+                    anyHost.set(i);
+                    continue;
+                }
+                for (String host : includeHosts) {
+                    if (host.startsWith("*."))
+                        domains.add(host.substring(2), i);
+                    else
+                        hosts.add(host, i);
+                }
+            }
+        }
+
+        /**
+         * @return the scripts matching the url, only valid until the next call
+         */
+        BitSet match(String url) {
+            candidates.clear();
+            if (scripts.length == 0) return candidates;
+
+            candidates.or(anyHost);
+            if (!hosts.isEmpty() || !domains.isEmpty())
+                addHostCandidates(url);
+
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                if (!matches(scripts[i], url))
+                    candidates.clear(i);
+            }
+            return candidates;
+        }
+
+        private void addHostCandidates(String url) {
+            int start = url.indexOf("://");
+            if (start < 0) return;
+            start += 3;
+            int end = url.indexOf('/', start);
+            if (end < 0) end = url.length();
+
+            BitSet set = hosts.get(url, start, end);
+            if (set != null)
+                candidates.or(set);
+
+            if (domains.isEmpty()) return;
+            for (int dot = url.indexOf('.', start); dot >= 0 && dot < end; dot = url.indexOf('.', dot + 1)) {
+                set = domains.get(url, dot + 1, end);
+                if (set != null)
+                    candidates.or(set);
+            }
+        }
+
+        private static boolean matches(UserScript script, String url) {
+            if (script.getExclude() != null)
+                for (Pattern pattern : script.getExclude()) {
+                    if (pattern.matcher(url).find())
+                        return false;
+                }
+
+            for (Pattern pattern : script.getInclude()) {
+                if (pattern.matcher(url).find())
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Lower-case host -> scripts, looked up by a range of the url so that a run allocates nothing.
+     */
+    private static final class HostTable {
+        private String[] keys = new String[8];
+        private BitSet[] values = new BitSet[8];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(String key, int index) {
+            int slot = find(key, 0, key.length());
+            if (keys[slot] == null) {
+                if ((size + 1) * 2 > keys.length) {
+                    grow();
+                    slot = find(key, 0, key.length());
+                }
+                keys[slot] = key;
+                values[slot] = new BitSet();
+                size++;
+            }
+            values[slot].set(index);
+        }
+
+        /**
+         * @return the scripts of the host {@code str[start, end)} in any case, or null
+         */
+        BitSet get(String str, int start, int end) {
+            return values[find(str, start, end)];
+        }
+
+        /* the slot of the key, or the empty slot it would go to */
+        private int find(String str, int start, int end) {
+            int mask = keys.length - 1;
+            int slot = hash(str, start, end) & mask;
+            String key;
+            while ((key = keys[slot]) != null) {
+                if (key.length() == end - start && equalsLowerCase(key, str, start))
+                    return slot;
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            String[] oldKeys = keys;
+            BitSet[] oldValues = values;
+            keys = new String[oldKeys.length * 2];
+            values = new BitSet[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = find(oldKeys[i], 0, oldKeys[i].length());
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int hash(String str, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++)
+                h = 31 * h + Character.toLowerCase(str.charAt(i));
+            return h ^ (h >>> 16);
+        }
+
+        /* keys are already lower case */
+        private static boolean equalsLowerCase(String key, String str, int start) {
+            for (int i = 0; i < key.length(); i++) {
+                if (Character.toLowerCase(str.charAt(start + i)) != key.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+    }
+}
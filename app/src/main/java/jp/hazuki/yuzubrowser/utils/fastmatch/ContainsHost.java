@@ -16,7 +16,6 @@
 
 package jp.hazuki.yuzubrowser.utils.fastmatch;
 
-import android.net.Uri;
 import android.support.annotation.NonNull;
 
 class ContainsHost extends SimpleCountMatcher {
@@ -28,12 +27,11 @@ class ContainsHost extends SimpleCountMatcher {
     }
 
     @Override
-    protected boolean matchItem(Uri uri) {
-        String req = uri.getHost();
-        if (req == null) {
-            return uri.toString().contains(host);
+    protected boolean matchItem(String host, String url) {
+        if (host == null) {
+            return url.contains(this.host);
         } else {
-            return req.contains(host);
+            return host.contains(this.host);
         }
     }
 
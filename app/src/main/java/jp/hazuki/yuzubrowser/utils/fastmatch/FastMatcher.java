@@ -18,6 +18,8 @@ package jp.hazuki.yuzubrowser.utils.fastmatch;
 
 import android.net.Uri;
 
+import jp.hazuki.yuzubrowser.utils.net.RequestUrl;
+
 public interface FastMatcher {
     int TYPE_SIMPLE_HOST = 1;
     int TYPE_SIMPLE_URL = 2;
@@ -31,6 +33,8 @@ public interface FastMatcher {
 
     boolean match(Uri uri);
 
+    boolean match(RequestUrl url);
+
     int getFrequency();
 
     String getPattern();
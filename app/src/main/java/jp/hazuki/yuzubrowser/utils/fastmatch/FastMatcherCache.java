@@ -18,53 +18,61 @@ package jp.hazuki.yuzubrowser.utils.fastmatch;
 
 import android.content.Context;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Scanner;
-
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary cache of compiled matcher lists.
+ * <p>
+ * Layout: magic, version, db time, record count, then for each record
+ * type (byte), id (int), count (int), time (long) and the UTF-8 pattern (int length + bytes).
+ * Records are kept in list order, and are followed by the list's compiled {@link FastMatcherIndex},
+ * so a loaded list does not have to be compiled again.
+ * A loaded list reads its records from the mapped file, see {@link FastMatcherRecords}.
+ * Arrays are written as an int length and the big-endian elements, to be read back in bulk.
+ */
 public class FastMatcherCache {
     private static final String FOLDER = "fastMatcher";
-    private static final String CACHE_HEADER = "Y.FM.CACHE.V1";
-    private static final String ASCII_RS = "\u001e";
+    private static final int CACHE_MAGIC = 0x59464D43; // YFMC
+    private static final int CACHE_VERSION = 3;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
 
     public static void save(Context context, String fileName, FastMatcherList matcherList) {
         File file = new File(context.getCacheDir(), FOLDER + "/" + fileName);
         if (!file.getParentFile().exists()) {
             file.getParentFile().mkdirs();
         }
+        File tmp = new File(file.getParentFile(), fileName + ".tmp");
 
-        try (FileOutputStream fos = new FileOutputStream(file);
-             PrintWriter pw = new PrintWriter(fos)) {
-
-            pw.println(CACHE_HEADER);
-            pw.println(matcherList.getDbTime());
-
-            for (FastMatcher matcher : matcherList.getMatcherList())
-                pw.println(
-                        matcher.getType() + ASCII_RS +
-                                matcher.getId() + ASCII_RS +
-                                matcher.getFrequency() + ASCII_RS +
-                                matcher.getTime() + ASCII_RS +
-                                matcher.getPattern());
-
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            write(os, matcherList);
         } catch (IOException e) {
             e.printStackTrace();
+            tmp.delete();
+            return;
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
         }
     }
 
     public static long getLastTime(Context context, String fileName) {
         File file = new File(context.getCacheDir(), FOLDER + "/" + fileName);
-        if (!file.exists()) return -1;
-
-        try (Scanner scanner = new Scanner(file)) {
-            if (scanner.hasNext() && CACHE_HEADER.equals(scanner.nextLine())) {
-                if (scanner.hasNext())
-                    return Long.parseLong(scanner.nextLine());
-            }
-        } catch (NumberFormatException | FileNotFoundException e) {
+        if (!file.exists() || file.length() < HEADER_SIZE) return -1;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.readInt() == CACHE_MAGIC && raf.readInt() == CACHE_VERSION)
+                return raf.readLong();
+        } catch (IOException e) {
             e.printStackTrace();
         }
 
@@ -76,50 +84,90 @@ public class FastMatcherCache {
         FastMatcherList matcherList = new FastMatcherList();
         if (!file.exists()) return matcherList;
 
-        try (Scanner scanner = new Scanner(file)) {
-            if (scanner.hasNext() && CACHE_HEADER.equals(scanner.nextLine())) {
-                if (scanner.hasNext())
-                    matcherList.setDbTime(Long.parseLong(scanner.nextLine()));
-                else
-                    return matcherList;
-
-                while (scanner.hasNext()) {
-                    String[] items = scanner.nextLine().split(ASCII_RS);
-                    if (items.length != 5)
-                        throw new IllegalCacheException();
-                    SimpleCountMatcher matcher;
-                    switch (items[0]) {
-                        case "1":
-                            matcher = new SimpleHost(items[4]);
-                            break;
-                        case "2":
-                            matcher = new SimpleUrl(items[4]);
-                            break;
-                        case "3":
-                            matcher = new RegexHost(items[4]);
-                            break;
-                        case "4":
-                            matcher = new RegexUrl(items[4]);
-                            break;
-                        case "5":
-                            matcher = new ContainsHost(items[4]);
-                            break;
-                        default:
-                            continue;
-                    }
-                    matcher.setId(Integer.parseInt(items[1]));
-                    matcher.setCount(Integer.parseInt(items[2]));
-                    matcher.setTime(Long.parseLong(items[3]));
-                    matcherList.add(matcher);
-                }
-            }
-        } catch (NumberFormatException | FileNotFoundException e) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_SIZE)
+                throw new IllegalCacheException();
+
+            // the mapping stays valid after the channel is closed
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
             e.printStackTrace();
         }
 
         return matcherList;
     }
 
+    static void write(DataOutputStream os, FastMatcherList matcherList) throws IOException {
+        os.writeInt(CACHE_MAGIC);
+        os.writeInt(CACHE_VERSION);
+        os.writeLong(matcherList.getDbTime());
+        os.writeInt(matcherList.getMatcherList().size());
+
+        for (FastMatcher matcher : matcherList.getMatcherList()) {
+            byte[] pattern = matcher.getPattern().getBytes(StandardCharsets.UTF_8);
+            os.writeByte(matcher.getType());
+            os.writeInt(matcher.getId());
+            os.writeInt(matcher.getFrequency());
+            os.writeLong(matcher.getTime());
+            os.writeInt(pattern.length);
+            os.write(pattern);
+        }
+        matcherList.getIndex().write(os);
+    }
+
+    /**
+     * Reads a list written by {@link #write(DataOutputStream, FastMatcherList)}.
+     * The list keeps reading its records from the buffer, which must not change.
+     */
+    static FastMatcherList read(ByteBuffer buffer) throws IllegalCacheException {
+        try {
+            if (buffer.getInt() != CACHE_MAGIC || buffer.getInt() != CACHE_VERSION)
+                throw new IllegalCacheException();
+
+            FastMatcherList matcherList = new FastMatcherList();
+            matcherList.setDbTime(buffer.getLong());
+            FastMatcherRecords records = FastMatcherRecords.read(buffer, buffer.getInt());
+            matcherList.setRecords(records);
+            matcherList.setIndex(FastMatcherIndex.read(buffer, records, matcherList.getCounter()));
+            return matcherList;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalCacheException();
+        }
+    }
+
+    static void writeInts(DataOutputStream os, int[] array) throws IOException {
+        os.writeInt(array.length);
+        for (int value : array)
+            os.writeInt(value);
+    }
+
+    static void writeChars(DataOutputStream os, char[] array) throws IOException {
+        os.writeInt(array.length);
+        for (char value : array)
+            os.writeChar(value);
+    }
+
+    static int[] readInts(ByteBuffer buffer) throws IllegalCacheException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining() / 4)
+            throw new IllegalCacheException();
+        int[] array = new int[length];
+        buffer.asIntBuffer().get(array);
+        buffer.position(buffer.position() + length * 4);
+        return array;
+    }
+
+    static char[] readChars(ByteBuffer buffer) throws IllegalCacheException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining() / 2)
+            throw new IllegalCacheException();
+        char[] array = new char[length];
+        buffer.asCharBuffer().get(array);
+        buffer.position(buffer.position() + length * 2);
+        return array;
+    }
+
     public static class IllegalCacheException extends Exception {
     }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2017 Hazuki
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.hazuki.yuzubrowser.utils.fastmatch;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import jp.hazuki.yuzubrowser.utils.net.RequestUrl;
+
+/**
+ * Compiled form of a {@link FastMatcherList}.
+ * Literal hosts and urls are looked up all at once, only regex matchers are tried one by one.
+ * The matcher reported is always the first one of the list which matches,
+ * so the result and the frequency counting are the same as a linear scan.
+ * Matching does not allocate, hits only touch the matcher's cell of the {@link HitCounter}.
+ * Everything refers to matchers by their position in the list, so the index is cached
+ * along with the list by {@link FastMatcherCache}.
+ * Hosts are compared with the cached patterns in place, a matcher is only made
+ * when it is tried as a regex or gets a hit.
+ */
+final class FastMatcherIndex {
+
+    private final FastMatcherRecords records;
+    private final HitCounter counter;
+    /* open addressing table of the simple hosts' positions, -1 for empty cells */
+    private final int[] hosts;
+    private final StringAutomaton containsHosts;
+    private final StringAutomaton urls;
+    private final int[] others;
+
+    FastMatcherIndex(FastMatcherRecords records, HitCounter counter) {
+        this.records = records;
+        this.counter = counter;
+        StringAutomaton.Builder containsBuilder = new StringAutomaton.Builder();
+        StringAutomaton.Builder urlBuilder = new StringAutomaton.Builder();
+        ArrayList<Integer> hostList = new ArrayList<>();
+        ArrayList<Integer> otherList = new ArrayList<>();
+
+        for (int i = 0; records.size() > i; i++) {
+            if (!records.isBuiltIn(i)) {
+                otherList.add(i);
+                continue;
+            }
+            switch (records.getType(i)) {
+                case FastMatcher.TYPE_SIMPLE_HOST:
+                    hostList.add(i);
+                    break;
+                case FastMatcher.TYPE_CONTAINS_HOST:
+                    containsBuilder.add(records.getPattern(i), i);
+                    break;
+                case FastMatcher.TYPE_SIMPLE_URL:
+                    urlBuilder.add(records.getPattern(i), i);
+                    break;
+                default:
+                    otherList.add(i);
+                    break;
+            }
+        }
+
+        hosts = new int[getTableSize(hostList.size())];
+        Arrays.fill(hosts, -1);
+        for (int index : hostList) {
+            int mask = hosts.length - 1;
+            String host = records.getPattern(index);
+            for (int cell = hash(host) & mask; ; cell = (cell + 1) & mask) {
+                if (hosts[cell] < 0) {
+                    hosts[cell] = index;
+                    break;
+                }
+                // keep the first of duplicated hosts
+                if (records.patternEquals(hosts[cell], host))
+                    break;
+            }
+        }
+
+        containsHosts = containsBuilder.build();
+        urls = urlBuilder.build();
+        others = new int[otherList.size()];
+        for (int i = 0; others.length > i; i++)
+            others[i] = otherList.get(i);
+    }
+
+    private FastMatcherIndex(FastMatcherRecords records, HitCounter counter, int[] hosts,
+                             StringAutomaton containsHosts, StringAutomaton urls, int[] others) {
+        this.records = records;
+        this.counter = counter;
+        this.hosts = hosts;
+        this.containsHosts = containsHosts;
+        this.urls = urls;
+        this.others = others;
+    }
+
+    /**
+     * @return a power of two leaving at least half of the table empty
+     */
+    private static int getTableSize(int count) {
+        int size = 2;
+        while (size < count * 2)
+            size <<= 1;
+        return size;
+    }
+
+    private static int hash(String host) {
+        int h = host.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private int findHost(String host) {
+        int mask = hosts.length - 1;
+        for (int cell = hash(host) & mask; ; cell = (cell + 1) & mask) {
+            int index = hosts[cell];
+            if (index < 0)
+                return StringAutomaton.NO_MATCH;
+            if (records.patternEquals(index, host))
+                return index;
+        }
+    }
+
+    boolean match(RequestUrl request) {
+        String host = request.getHost();
+        String url = request.getUrl();
+
+        int best = host != null ? findHost(host) : StringAutomaton.NO_MATCH;
+
+        int found = containsHosts.findMin(host != null ? host : url);
+        if (found < best)
+            best = found;
+
+        found = urls.findMin(url);
+        if (found < best)
+            best = found;
+
+        for (int index : others) {
+            if (index > best) break;
+            if (records.get(index).match(request)) {
+                hit(index);
+                return true;
+            }
+        }
+
+        if (best != StringAutomaton.NO_MATCH) {
+            hit(best);
+            return true;
+        }
+        return false;
+    }
+
+    /* the slot is looked up on a hit, so loading does not look up every matcher */
+    private void hit(int index) {
+        counter.hit(counter.getSlot(records.getId(index)));
+    }
+
+    void write(DataOutputStream os) throws IOException {
+        FastMatcherCache.writeInts(os, hosts);
+        containsHosts.write(os);
+        urls.write(os);
+        FastMatcherCache.writeInts(os, others);
+    }
+
+    /**
+     * Reads an index written by {@link #write(DataOutputStream)} for the same list.
+     */
+    static FastMatcherIndex read(ByteBuffer buffer, FastMatcherRecords records, HitCounter counter)
+            throws FastMatcherCache.IllegalCacheException {
+        int[] hosts = FastMatcherCache.readInts(buffer);
+        StringAutomaton containsHosts = StringAutomaton.read(buffer, records.size());
+        StringAutomaton urls = StringAutomaton.read(buffer, records.size());
+        int[] others = FastMatcherCache.readInts(buffer);
+
+        if (hosts.length < 2 || Integer.bitCount(hosts.length) != 1)
+            throw new FastMatcherCache.IllegalCacheException();
+        boolean empty = false;
+        for (int index : hosts) {
+            if (index < 0)
+                empty = true;
+            else if (index >= records.size() || records.getType(index) != FastMatcher.TYPE_SIMPLE_HOST)
+                throw new FastMatcherCache.IllegalCacheException();
+        }
+        // lookups stop at an empty cell
+        if (!empty)
+            throw new FastMatcherCache.IllegalCacheException();
+        for (int index : others) {
+            if (index < 0 || index >= records.size())
+                throw new FastMatcherCache.IllegalCacheException();
+        }
+        return new FastMatcherIndex(records, counter, hosts, containsHosts, urls, others);
+    }
+}
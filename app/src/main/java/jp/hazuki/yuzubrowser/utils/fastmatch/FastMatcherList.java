@@ -21,9 +21,24 @@ import android.net.Uri;
 import java.util.ArrayList;
 import java.util.Collections;
 
+import jp.hazuki.yuzubrowser.utils.net.RequestUrl;
+
 public class FastMatcherList {
     private long dbTime = -1;
+    /* null while the matchers are only in the records of a cache */
     private ArrayList<FastMatcher> matcherList = new ArrayList<>();
+    private FastMatcherRecords records;
+    private volatile FastMatcherIndex index;
+    private volatile HitCounter counter;
+
+    public FastMatcherList() {
+    }
+
+    public FastMatcherList(FastMatcherList list) {
+        dbTime = list.dbTime;
+        matcherList = new ArrayList<>(list.getMatcherList());
+        counter = list.counter;
+    }
 
     public long getDbTime() {
         return dbTime;
@@ -33,25 +48,97 @@ public class FastMatcherList {
         this.dbTime = dbTime;
     }
 
-    public ArrayList<FastMatcher> getMatcherList() {
+    /**
+     * Makes the matchers of a list read from a cache, which only has its records until then.
+     */
+    public synchronized ArrayList<FastMatcher> getMatcherList() {
+        if (matcherList == null) {
+            ArrayList<FastMatcher> list = new ArrayList<>(records.size());
+            for (int i = 0; records.size() > i; i++)
+                list.add(records.get(i));
+            matcherList = list;
+        }
         return matcherList;
     }
 
-    public void setMatcherList(ArrayList<FastMatcher> matcherList) {
+    public synchronized void setMatcherList(ArrayList<FastMatcher> matcherList) {
         this.matcherList = matcherList;
+        records = null;
+        index = null;
+        counter = null;
     }
 
-    public void add(FastMatcher matcher) {
-        matcherList.add(matcher);
+    public synchronized void add(FastMatcher matcher) {
+        getMatcherList().add(matcher);
+        records = null;
+        index = null;
+        counter = null;
     }
 
     public boolean match(Uri uri) {
-        for (FastMatcher matcher : matcherList)
-            if (matcher.match(uri)) return true;
-        return false;
+        return getIndex().match(new RequestUrl(uri));
+    }
+
+    public boolean match(RequestUrl url) {
+        return getIndex().match(url);
+    }
+
+    public void compile() {
+        getIndex();
+    }
+
+    /**
+     * Folds the hits counted since the last call into the matchers' frequency and time.
+     * Must be called from a single thread, the one which persists the list.
+     *
+     * @return true if any matcher was hit
+     */
+    public boolean drainHits() {
+        HitCounter hitCounter = counter;
+        return hitCounter != null && hitCounter.drain();
+    }
+
+    FastMatcherIndex getIndex() {
+        FastMatcherIndex matcherIndex = index;
+        if (matcherIndex == null) {
+            matcherIndex = new FastMatcherIndex(getRecords(), getCounter());
+            index = matcherIndex;
+        }
+        return matcherIndex;
+    }
+
+    /**
+     * @param matcherIndex index compiled from the current {@link #getRecords()}, with its {@link #getCounter()}
+     */
+    void setIndex(FastMatcherIndex matcherIndex) {
+        index = matcherIndex;
+    }
+
+    synchronized HitCounter getCounter() {
+        if (counter == null)
+            counter = new HitCounter(getRecords());
+        return counter;
+    }
+
+    synchronized FastMatcherRecords getRecords() {
+        if (records == null)
+            records = new FastMatcherRecords(matcherList);
+        return records;
+    }
+
+    /**
+     * @param cached records read from a cache, standing for the matchers until they are needed
+     */
+    synchronized void setRecords(FastMatcherRecords cached) {
+        matcherList = null;
+        records = cached;
+        index = null;
+        counter = null;
     }
 
-    public void sort() {
-        Collections.sort(matcherList, new FastMatcherSorter());
+    public synchronized void sort() {
+        Collections.sort(getMatcherList(), new FastMatcherSorter());
+        records = null;
+        index = null;
     }
 }
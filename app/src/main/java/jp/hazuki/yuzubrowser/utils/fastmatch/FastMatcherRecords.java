@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 Hazuki
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.hazuki.yuzubrowser.utils.fastmatch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The matchers of a list by position, as {@link FastMatcherIndex} and {@link HitCounter} see them.
+ * A list read by {@link FastMatcherCache} leaves its records in the cache's buffer:
+ * ids and patterns are read from there, and a matcher object is only made for a record
+ * which is hit, tried as a regex, or asked for by the list.
+ * Safe to use from several threads, each record gets a single matcher.
+ */
+final class FastMatcherRecords {
+    /* type, id, count, time and pattern length, followed by the UTF-8 pattern */
+    static final int RECORD_HEADER = 1 + 4 + 4 + 8 + 4;
+
+    /* null if the records are the matchers themselves */
+    private final ByteBuffer buffer;
+    private final int[] offsets;
+    private final AtomicReferenceArray<FastMatcher> matchers;
+
+    FastMatcherRecords(List<FastMatcher> list) {
+        buffer = null;
+        offsets = null;
+        matchers = new AtomicReferenceArray<>(list.toArray(new FastMatcher[list.size()]));
+    }
+
+    private FastMatcherRecords(ByteBuffer buffer, int[] offsets) {
+        this.buffer = buffer;
+        this.offsets = offsets;
+        matchers = new AtomicReferenceArray<>(offsets.length);
+    }
+
+    /**
+     * Finds the records written by {@link FastMatcherCache} from the buffer's position, and leaves it after them.
+     * The buffer is only read at absolute positions afterwards, and must not change.
+     */
+    static FastMatcherRecords read(ByteBuffer buffer, int size) throws FastMatcherCache.IllegalCacheException {
+        if (size < 0 || size > buffer.remaining() / RECORD_HEADER)
+            throw new FastMatcherCache.IllegalCacheException();
+        int[] offsets = new int[size];
+        int position = buffer.position();
+        int limit = buffer.limit();
+        for (int i = 0; size > i; i++) {
+            if (limit - position < RECORD_HEADER)
+                throw new FastMatcherCache.IllegalCacheException();
+            int type = buffer.get(position);
+            // the index refers to the records by position, none can be skipped
+            if (type < FastMatcher.TYPE_SIMPLE_HOST || type > FastMatcher.TYPE_CONTAINS_HOST)
+                throw new FastMatcherCache.IllegalCacheException();
+            int length = buffer.getInt(position + RECORD_HEADER - 4);
+            if (length < 0 || length > limit - position - RECORD_HEADER)
+                throw new FastMatcherCache.IllegalCacheException();
+            offsets[i] = position;
+            position += RECORD_HEADER + length;
+        }
+        buffer.position(position);
+        return new FastMatcherRecords(buffer, offsets);
+    }
+
+    int size() {
+        return matchers.length();
+    }
+
+    /**
+     * @return true if the record is one of this package's matchers, whose type tells how it matches
+     */
+    boolean isBuiltIn(int index) {
+        return buffer != null || matchers.get(index) instanceof SimpleCountMatcher;
+    }
+
+    int getType(int index) {
+        return buffer != null ? buffer.get(offsets[index]) : matchers.get(index).getType();
+    }
+
+    int getId(int index) {
+        return buffer != null ? buffer.getInt(offsets[index] + 1) : matchers.get(index).getId();
+    }
+
+    String getPattern(int index) {
+        FastMatcher matcher = matchers.get(index);
+        if (matcher != null) return matcher.getPattern();
+
+        int offset = offsets[index] + RECORD_HEADER;
+        byte[] bytes = new byte[buffer.getInt(offset - 4)];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        source.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares the pattern with the text without making a string of it.
+     */
+    boolean patternEquals(int index, String text) {
+        if (buffer == null) return matchers.get(index).getPattern().equals(text);
+
+        int position = offsets[index] + RECORD_HEADER;
+        int end = position + buffer.getInt(position - 4);
+        // a char takes at least one byte
+        if (end - position < text.length()) return false;
+
+        int i = 0;
+        while (position < end) {
+            int b = buffer.get(position) & 0xff;
+            int codePoint;
+            int length;
+            if (b < 0x80) {
+                codePoint = b;
+                length = 1;
+            } else if (b >= 0xc2 && b < 0xe0) {
+                codePoint = b & 0x1f;
+                length = 2;
+            } else if (b >= 0xe0 && b < 0xf0) {
+                codePoint = b & 0x0f;
+                length = 3;
+            } else if (b >= 0xf0 && b < 0xf5) {
+                codePoint = b & 0x07;
+                length = 4;
+            } else {
+                // not written by the cache, decode it as the matcher would
+                return getPattern(index).equals(text);
+            }
+            if (end - position < length)
+                return getPattern(index).equals(text);
+            for (int j = 1; length > j; j++) {
+                int c = buffer.get(position + j) & 0xff;
+                if ((c & 0xc0) != 0x80)
+                    return getPattern(index).equals(text);
+                codePoint = (codePoint << 6) | (c & 0x3f);
+            }
+            position += length;
+
+            if (i >= text.length() || text.codePointAt(i) != codePoint)
+                return false;
+            i += Character.charCount(codePoint);
+        }
+        return i == text.length();
+    }
+
+    /**
+     * @return the matcher of the record, made on the first call
+     */
+    FastMatcher get(int index) {
+        FastMatcher matcher = matchers.get(index);
+        if (matcher == null) {
+            matcher = create(index);
+            if (!matchers.compareAndSet(index, null, matcher))
+                matcher = matchers.get(index);
+        }
+        return matcher;
+    }
+
+    private FastMatcher create(int index) {
+        int offset = offsets[index];
+        String pattern = getPattern(index);
+        SimpleCountMatcher matcher;
+        switch (buffer.get(offset)) {
+            case FastMatcher.TYPE_SIMPLE_HOST:
+                matcher = new SimpleHost(pattern);
+                break;
+            case FastMatcher.TYPE_SIMPLE_URL:
+                matcher = new SimpleUrl(pattern);
+                break;
+            case FastMatcher.TYPE_REGEX_HOST:
+                matcher = new RegexHost(pattern, true);
+                break;
+            case FastMatcher.TYPE_REGEX_URL:
+                matcher = new RegexUrl(pattern, true);
+                break;
+            case FastMatcher.TYPE_CONTAINS_HOST:
+                matcher = new ContainsHost(pattern);
+                break;
+            default:
+                // checked by read()
+                throw new IllegalStateException();
+        }
+        matcher.setId(buffer.getInt(offset + 1));
+        matcher.setCount(buffer.getInt(offset + 5));
+        matcher.setTime(buffer.getLong(offset + 9));
+        return matcher;
+    }
+
+    /**
+     * @return number of matchers made so far
+     */
+    int getCreatedCount() {
+        int count = 0;
+        for (int i = 0; matchers.length() > i; i++) {
+            if (matchers.get(i) != null)
+                count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017 Hazuki
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.hazuki.yuzubrowser.utils.fastmatch;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Pending hit counts of a matcher list, one atomic cell per matcher id.
+ * Matching threads only increment their own cell; {@link #drain()} folds the
+ * pending hits into the matchers from the thread which persists them.
+ * The slot of an id is its position among the sorted ids, the first matcher of an id gets its hits.
+ * Matchers of a cached list are only made when they get hits.
+ */
+final class HitCounter {
+
+    private final FastMatcherRecords records;
+    private final int[] ids;
+    private final int[] positions;
+    private final AtomicIntegerArray counts;
+    private final AtomicLongArray times;
+
+    HitCounter(FastMatcherRecords records) {
+        this.records = records;
+        // id in the high bits and position in the low bits, so sorting puts the first matcher of an id first
+        long[] keys = new long[records.size()];
+        int length = 0;
+        for (int i = 0; records.size() > i; i++) {
+            if (records.isBuiltIn(i))
+                keys[length++] = ((long) records.getId(i) << 32) | i;
+        }
+        Arrays.sort(keys, 0, length);
+
+        int[] sortedIds = new int[length];
+        int[] sortedPositions = new int[length];
+        int size = 0;
+        for (int i = 0; length > i; i++) {
+            int id = (int) (keys[i] >> 32);
+            if (size > 0 && sortedIds[size - 1] == id) continue;
+            sortedIds[size] = id;
+            sortedPositions[size++] = (int) keys[i];
+        }
+        ids = Arrays.copyOf(sortedIds, size);
+        positions = Arrays.copyOf(sortedPositions, size);
+        counts = new AtomicIntegerArray(size);
+        times = new AtomicLongArray(size);
+    }
+
+    /**
+     * @return slot of the id, or -1 if the matcher is not counted here
+     */
+    int getSlot(int id) {
+        int slot = Arrays.binarySearch(ids, id);
+        return slot < 0 ? -1 : slot;
+    }
+
+    void hit(int slot) {
+        if (slot < 0) return;
+        counts.incrementAndGet(slot);
+        times.lazySet(slot, System.currentTimeMillis());
+    }
+
+    /**
+     * @return true if any matcher got new hits
+     */
+    boolean drain() {
+        boolean changed = false;
+        for (int i = 0; counts.length() > i; i++) {
+            int hits = counts.getAndSet(i, 0);
+            if (hits > 0) {
+                ((SimpleCountMatcher) records.get(positions[i])).addCount(hits, times.get(i));
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
@@ -16,25 +16,38 @@
 
 package jp.hazuki.yuzubrowser.utils.fastmatch;
 
-import android.net.Uri;
-
 import java.util.regex.Pattern;
 
 class RegexHost extends SimpleCountMatcher {
 
-    private final Pattern pattern;
+    private final String source;
+    private volatile Pattern pattern;
 
     RegexHost(String host) {
-        pattern = Pattern.compile(host);
+        this(host, false);
+    }
+
+    RegexHost(String host, boolean lazy) {
+        source = host;
+        if (!lazy)
+            pattern = Pattern.compile(host);
     }
 
     @Override
-    protected boolean matchItem(Uri uri) {
-        String host = uri.getHost();
+    protected boolean matchItem(String host, String url) {
         if (host != null)
-            return pattern.matcher(uri.getHost()).find();
+            return getCompiled().matcher(host).find();
         else
-            return pattern.matcher(uri.toString()).find();
+            return getCompiled().matcher(url).find();
+    }
+
+    private Pattern getCompiled() {
+        Pattern compiled = pattern;
+        if (compiled == null) {
+            compiled = Pattern.compile(source);
+            pattern = compiled;
+        }
+        return compiled;
     }
 
     @Override
@@ -44,6 +57,6 @@ class RegexHost extends SimpleCountMatcher {
 
     @Override
     public String getPattern() {
-        return pattern.pattern();
+        return source;
     }
 }
@@ -16,21 +16,35 @@
 
 package jp.hazuki.yuzubrowser.utils.fastmatch;
 
-import android.net.Uri;
-
 import java.util.regex.Pattern;
 
 class RegexUrl extends SimpleCountMatcher {
 
-    private Pattern pattern;
+    private final String source;
+    private volatile Pattern pattern;
 
     RegexUrl(String pattern) {
-        this.pattern = Pattern.compile(pattern);
+        this(pattern, false);
+    }
+
+    RegexUrl(String pattern, boolean lazy) {
+        source = pattern;
+        if (!lazy)
+            this.pattern = Pattern.compile(pattern);
     }
 
     @Override
-    protected boolean matchItem(Uri uri) {
-        return pattern.matcher(uri.toString()).find();
+    protected boolean matchItem(String host, String url) {
+        return getCompiled().matcher(url).find();
+    }
+
+    private Pattern getCompiled() {
+        Pattern compiled = pattern;
+        if (compiled == null) {
+            compiled = Pattern.compile(source);
+            pattern = compiled;
+        }
+        return compiled;
     }
 
     @Override
@@ -40,6 +54,6 @@ class RegexUrl extends SimpleCountMatcher {
 
     @Override
     public String getPattern() {
-        return pattern.pattern();
+        return source;
     }
 }
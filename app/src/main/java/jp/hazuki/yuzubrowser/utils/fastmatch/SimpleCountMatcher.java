@@ -18,6 +18,8 @@ package jp.hazuki.yuzubrowser.utils.fastmatch;
 
 import android.net.Uri;
 
+import jp.hazuki.yuzubrowser.utils.net.RequestUrl;
+
 abstract class SimpleCountMatcher implements FastMatcher {
 
     private int count;
@@ -25,7 +27,11 @@ abstract class SimpleCountMatcher implements FastMatcher {
     private boolean update;
     private long time;
 
-    protected abstract boolean matchItem(Uri uri);
+    /**
+     * @param host lower-cased host, or null
+     * @param url  full url
+     */
+    protected abstract boolean matchItem(String host, String url);
 
     @Override
     public int getId() {
@@ -36,16 +42,24 @@ abstract class SimpleCountMatcher implements FastMatcher {
         this.id = id;
     }
 
+    /**
+     * Does not count the hit, lists count through their {@link HitCounter}.
+     */
     @Override
     public final boolean match(Uri uri) {
-        if (matchItem(uri)) {
-            if (count != Integer.MAX_VALUE)
-                count++;
-            time = System.currentTimeMillis();
-            update = true;
-            return true;
-        }
-        return false;
+        return match(new RequestUrl(uri));
+    }
+
+    @Override
+    public final boolean match(RequestUrl url) {
+        return matchItem(url.getHost(), url.getUrl());
+    }
+
+    void addCount(int hits, long time) {
+        count = (int) Math.min((long) count + hits, Integer.MAX_VALUE);
+        if (time > this.time)
+            this.time = time;
+        update = true;
     }
 
     @Override
@@ -16,7 +16,6 @@
 
 package jp.hazuki.yuzubrowser.utils.fastmatch;
 
-import android.net.Uri;
 import android.support.annotation.NonNull;
 
 class SimpleHost extends SimpleCountMatcher {
@@ -28,8 +27,8 @@ class SimpleHost extends SimpleCountMatcher {
     }
 
     @Override
-    protected boolean matchItem(Uri uri) {
-        return host.equals(uri.getHost());
+    protected boolean matchItem(String host, String url) {
+        return this.host.equals(host);
     }
 
     @Override
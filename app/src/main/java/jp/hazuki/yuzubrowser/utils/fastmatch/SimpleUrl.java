@@ -16,8 +16,6 @@
 
 package jp.hazuki.yuzubrowser.utils.fastmatch;
 
-import android.net.Uri;
-
 class SimpleUrl extends SimpleCountMatcher {
 
     private String pattern;
@@ -27,8 +25,8 @@ class SimpleUrl extends SimpleCountMatcher {
     }
 
     @Override
-    protected boolean matchItem(Uri uri) {
-        return uri.toString().contains(pattern);
+    protected boolean matchItem(String host, String url) {
+        return url.contains(pattern);
     }
 
     @Override
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 Hazuki
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.hazuki.yuzubrowser.utils.fastmatch;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton over literal patterns.
+ * Every pattern carries an int value and {@link #findMin(String)} returns the smallest value
+ * of all patterns contained in the text, in a single pass without allocation.
+ * States are kept in flat arrays, so the automaton can be written to and read from the cache as is.
+ */
+final class StringAutomaton {
+    static final int NO_MATCH = Integer.MAX_VALUE;
+
+    /* children of a state are keys[start[state]] .. keys[start[state + 1] - 1], sorted */
+    private final int[] start;
+    private final char[] keys;
+    private final int[] next;
+    private final int[] fail;
+    private final int[] output;
+
+    private StringAutomaton(int[] start, char[] keys, int[] next, int[] fail, int[] output) {
+        this.start = start;
+        this.keys = keys;
+        this.next = next;
+        this.fail = fail;
+        this.output = output;
+    }
+
+    boolean isEmpty() {
+        return output.length <= 1;
+    }
+
+    int findMin(String text) {
+        if (isEmpty()) return NO_MATCH;
+        int best = NO_MATCH;
+        int state = 0;
+        for (int i = 0; text.length() > i; i++) {
+            char c = text.charAt(i);
+            int to;
+            while ((to = child(state, c)) < 0 && state != 0)
+                state = fail[state];
+            state = to < 0 ? 0 : to;
+            if (output[state] < best)
+                best = output[state];
+        }
+        return best;
+    }
+
+    private int child(int state, char c) {
+        int index = Arrays.binarySearch(keys, start[state], start[state + 1], c);
+        return index < 0 ? -1 : next[index];
+    }
+
+    void write(DataOutputStream os) throws IOException {
+        FastMatcherCache.writeInts(os, start);
+        FastMatcherCache.writeChars(os, keys);
+        FastMatcherCache.writeInts(os, next);
+        FastMatcherCache.writeInts(os, fail);
+        FastMatcherCache.writeInts(os, output);
+    }
+
+    /**
+     * @param limit values read must be below it, or {@link #NO_MATCH}
+     */
+    static StringAutomaton read(ByteBuffer buffer, int limit) throws FastMatcherCache.IllegalCacheException {
+        int[] start = FastMatcherCache.readInts(buffer);
+        char[] keys = FastMatcherCache.readChars(buffer);
+        int[] next = FastMatcherCache.readInts(buffer);
+        int[] fail = FastMatcherCache.readInts(buffer);
+        int[] output = FastMatcherCache.readInts(buffer);
+
+        int size = output.length;
+        if (size < 1 || start.length != size + 1 || fail.length != size
+                || next.length != keys.length || start[0] != 0 || start[size] != keys.length)
+            throw new FastMatcherCache.IllegalCacheException();
+        for (int i = 0; size > i; i++) {
+            if (start[i] > start[i + 1] || fail[i] < 0 || fail[i] >= size
+                    || output[i] < 0 || (output[i] >= limit && output[i] != NO_MATCH))
+                throw new FastMatcherCache.IllegalCacheException();
+        }
+        for (int to : next) {
+            if (to <= 0 || to >= size)
+                throw new FastMatcherCache.IllegalCacheException();
+        }
+        return new StringAutomaton(start, keys, next, fail, output);
+    }
+
+    static final class Builder {
+        private final ArrayList<TreeMap<Character, Integer>> nodes = new ArrayList<>();
+        private final ArrayList<Integer> values = new ArrayList<>();
+
+        Builder() {
+            newNode();
+        }
+
+        private int newNode() {
+            nodes.add(new TreeMap<Character, Integer>());
+            values.add(NO_MATCH);
+            return nodes.size() - 1;
+        }
+
+        void add(String pattern, int value) {
+            if (pattern.isEmpty()) return;
+            int state = 0;
+            for (int i = 0; pattern.length() > i; i++) {
+                Character c = pattern.charAt(i);
+                Integer to = nodes.get(state).get(c);
+                if (to == null) {
+                    to = newNode();
+                    nodes.get(state).put(c, to);
+                }
+                state = to;
+            }
+            if (value < values.get(state))
+                values.set(state, value);
+        }
+
+        StringAutomaton build() {
+            int size = nodes.size();
+            int[] start = new int[size + 1];
+            char[] keys = new char[size - 1];
+            int[] next = new int[size - 1];
+            int[] fail = new int[size];
+            int[] output = new int[size];
+
+            int edge = 0;
+            for (int i = 0; size > i; i++) {
+                start[i] = edge;
+                for (Map.Entry<Character, Integer> child : nodes.get(i).entrySet()) {
+                    keys[edge] = child.getKey();
+                    next[edge] = child.getValue();
+                    edge++;
+                }
+                output[i] = values.get(i);
+            }
+            start[size] = edge;
+
+            StringAutomaton automaton = new StringAutomaton(start, keys, next, fail, output);
+
+            // breadth-first, so fail links always point to an already completed node
+            int[] queue = new int[size];
+            int head = 0, tail = 0;
+            for (int j = start[0]; start[1] > j; j++) {
+                fail[next[j]] = 0;
+                queue[tail++] = next[j];
+            }
+            while (tail > head) {
+                int state = queue[head++];
+                for (int j = start[state]; start[state + 1] > j; j++) {
+                    char c = keys[j];
+                    int child = next[j];
+                    int f = fail[state];
+                    int to;
+                    while ((to = automaton.child(f, c)) < 0 && f != 0)
+                        f = fail[f];
+                    fail[child] = to < 0 || to == child ? 0 : to;
+                    if (output[fail[child]] < output[child])
+                        output[child] = output[fail[child]];
+                    queue[tail++] = child;
+                }
+            }
+            return automaton;
+        }
+    }
+}
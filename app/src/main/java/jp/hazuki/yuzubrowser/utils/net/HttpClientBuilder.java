@@ -10,6 +10,12 @@ public abstract class HttpClientBuilder {
 
     public abstract void setHeader(String name, String value);
 
+    /**
+     * @param connectMillis time allowed to connect, 0 for no limit
+     * @param readMillis    time a read may block without receiving data, 0 for no limit
+     */
+    public abstract void setTimeout(int connectMillis, int readMillis);
+
     public abstract HttpResponseData connect();
 
     public abstract void destroy();
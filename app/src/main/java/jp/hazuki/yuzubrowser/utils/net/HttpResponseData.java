@@ -7,6 +7,13 @@ import java.util.Map;
 public interface HttpResponseData {
     InputStream getInputStream();
 
+    /**
+     * @return 200, or 206 for a range request
+     */
+    int getResponseCode();
+
+    String getHeaderField(String name);
+
     long getContentLength();
 
     Map<String, List<String>> getHeaderFields();
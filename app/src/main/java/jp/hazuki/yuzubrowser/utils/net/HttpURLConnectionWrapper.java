@@ -49,12 +49,20 @@ public class HttpURLConnectionWrapper extends HttpClientBuilder {
         mConnection.setRequestProperty(name, value);
     }
 
+    @Override
+    public void setTimeout(int connectMillis, int readMillis) {
+        mConnection.setConnectTimeout(connectMillis);
+        mConnection.setReadTimeout(readMillis);
+    }
+
     private static class MyHttpResponseData implements HttpResponseData {
+        private final HttpURLConnection mConnection;
         private final InputStream mInputStream;
         private final long mContentLength;
         private final Map<String, List<String>> mHeaderFields;
 
-        public MyHttpResponseData(InputStream is, long cl, Map<String, List<String>> header) {
+        public MyHttpResponseData(HttpURLConnection con, InputStream is, long cl, Map<String, List<String>> header) {
+            mConnection = con;
             mInputStream = is;
             mContentLength = cl;
             mHeaderFields = header;
@@ -65,6 +73,20 @@ public class HttpURLConnectionWrapper extends HttpClientBuilder {
             return mInputStream;
         }
 
+        @Override
+        public int getResponseCode() {
+            try {
+                return mConnection.getResponseCode();
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
         @Override
         public long getContentLength() {
             return mContentLength;
@@ -80,7 +102,8 @@ public class HttpURLConnectionWrapper extends HttpClientBuilder {
     public HttpResponseData connect() {
         try {
             mConnection.connect();
-            if (mConnection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+            int code = mConnection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_PARTIAL) {
                 InputStream is = mConnection.getInputStream();
 
                 String cl_str = mConnection.getHeaderField("Content-Length");
@@ -93,7 +116,7 @@ public class HttpURLConnectionWrapper extends HttpClientBuilder {
                     }
                 }
 
-                return new MyHttpResponseData(is, cl, mConnection.getHeaderFields());
+                return new MyHttpResponseData(mConnection, is, cl, mConnection.getHeaderFields());
             }
         } catch (IOException e) {
             ErrorReport.printAndWriteLog(e);
@@ -103,6 +126,7 @@ public class HttpURLConnectionWrapper extends HttpClientBuilder {
 
     @Override
     public void destroy() {
+        mConnection.disconnect();
     }
 
 }
@@ -0,0 +1,60 @@
+package jp.hazuki.yuzubrowser.utils.net;
+
+import android.net.Uri;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.Locale;
+
+/**
+ * Url decomposed once, shared by every checker looking at the same request.
+ */
+public final class RequestUrl {
+    private final Uri uri;
+    private final String url;
+    private final String host;
+    private final String path;
+
+    public RequestUrl(Uri uri) {
+        this.uri = uri;
+        url = uri.toString();
+        String rawHost = uri.getHost();
+        host = rawHost != null ? rawHost.toLowerCase(Locale.ENGLISH) : null;
+        path = uri.getPath();
+    }
+
+    /**
+     * Url split beforehand, without an {@link Uri}.
+     *
+     * @param host lower-cased host, or null
+     */
+    @VisibleForTesting
+    public RequestUrl(String url, String host, String path) {
+        uri = null;
+        this.url = url;
+        this.host = host;
+        this.path = path;
+    }
+
+    public static RequestUrl parse(String url) {
+        return new RequestUrl(Uri.parse(url));
+    }
+
+    public Uri getUri() {
+        return uri;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return lower-cased host, or null if the url has no host
+     */
+    public String getHost() {
+        return host;
+    }
+
+    public String getPath() {
+        return path;
+    }
+}
@@ -18,7 +18,9 @@ package jp.hazuki.yuzubrowser.utils.view;
 
 import android.app.Dialog;
 import android.app.DialogFragment;
+import android.app.Fragment;
 import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.os.Bundle;
 
 public class ProgressDialogFragment extends DialogFragment {
@@ -26,6 +28,7 @@ public class ProgressDialogFragment extends DialogFragment {
     private ProgressDialog dialog;
 
     private static final String MESSAGE = "mes";
+    private static final String MAX = "max";
 
     public static ProgressDialogFragment newInstance(String message) {
         ProgressDialogFragment fragment = new ProgressDialogFragment();
@@ -35,16 +38,45 @@ public class ProgressDialogFragment extends DialogFragment {
         return fragment;
     }
 
+    /**
+     * Dialog with a progress bar and a cancel button,
+     * the parent fragment is told about canceling through {@link OnCancelListener}.
+     */
+    public static ProgressDialogFragment newInstance(String message, int max) {
+        ProgressDialogFragment fragment = newInstance(message);
+        fragment.getArguments().putInt(MAX, max);
+        return fragment;
+    }
+
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
         dialog = new ProgressDialog(getActivity());
         dialog.setMessage(getArguments().getCharSequence(MESSAGE));
-        dialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+        int max = getArguments().getInt(MAX);
+        if (max > 0) {
+            dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            dialog.setMax(max);
+            dialog.setButton(DialogInterface.BUTTON_NEGATIVE, getText(android.R.string.cancel), new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    Fragment parent = getParentFragment();
+                    if (parent instanceof OnCancelListener)
+                        ((OnCancelListener) parent).onProgressCanceled(ProgressDialogFragment.this);
+                }
+            });
+        } else {
+            dialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+        }
         setCancelable(false);
 
         return dialog;
     }
 
+    public void setProgress(int progress) {
+        if (dialog != null)
+            dialog.setProgress(progress);
+    }
+
     @Override
     public void dismiss() {
         dialog.dismiss();
@@ -60,4 +92,8 @@ public class ProgressDialogFragment extends DialogFragment {
         super.onDestroy();
         dialog = null;
     }
+
+    public interface OnCancelListener {
+        void onProgressCanceled(ProgressDialogFragment dialog);
+    }
 }
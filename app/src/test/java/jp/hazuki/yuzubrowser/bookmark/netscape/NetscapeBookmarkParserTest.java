@@ -0,0 +1,232 @@
+package jp.hazuki.yuzubrowser.bookmark.netscape;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+
+import jp.hazuki.yuzubrowser.bookmark.BookmarkFolder;
+import jp.hazuki.yuzubrowser.bookmark.BookmarkItem;
+import jp.hazuki.yuzubrowser.bookmark.BookmarkSite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NetscapeBookmarkParserTest {
+    private static final String HEADER = "<!DOCTYPE NETSCAPE-Bookmark-file-1>\n" +
+            "<META HTTP-EQUIV=\"Content-Type\" CONTENT=\"text/html; charset=UTF-8\">\n" +
+            "<TITLE>Bookmarks</TITLE>\n" +
+            "<H1>Bookmarks</H1>\n";
+
+    private static BookmarkFolder parse(String body) throws Exception {
+        BookmarkFolder root = new BookmarkFolder("root", null, 1);
+        assertTrue(new NetscapeBookmarkParser(root).parse(new BufferedReader(new StringReader(HEADER + body))));
+        return root;
+    }
+
+    private static void assertSite(String title, String url, BookmarkItem item) {
+        assertTrue(item instanceof BookmarkSite);
+        assertEquals(title, item.title);
+        assertEquals(url, ((BookmarkSite) item).url);
+    }
+
+    private static BookmarkFolder assertFolder(String title, int size, BookmarkItem item) {
+        assertTrue(item instanceof BookmarkFolder);
+        BookmarkFolder folder = (BookmarkFolder) item;
+        assertEquals(title, folder.title);
+        assertEquals(size, folder.list.size());
+        return folder;
+    }
+
+    @Test(expected = NetscapeBookmarkException.class)
+    public void parse_rejectsOtherFiles() throws Exception {
+        new NetscapeBookmarkParser(new BookmarkFolder("root", null, 1))
+                .parse(new BufferedReader(new StringReader("<html><body></body></html>")));
+    }
+
+    @Test
+    public void parse_quotedGreaterThan() throws Exception {
+        BookmarkFolder root = parse("<DL><p>\n" +
+                "<DT><A HREF=\"http://a.example/?q=a>b\" ADD_DATE=\"1\" TAGS='x>y'>A</A>\n" +
+                "</DL><p>\n");
+        assertEquals(1, root.list.size());
+        assertSite("A", "http://a.example/?q=a>b", root.list.get(0));
+    }
+
+    @Test
+    public void parse_unquotedAndSingleQuotedHref() throws Exception {
+        BookmarkFolder root = parse("<DL><p>\n" +
+                "<DT><A HREF=http://b.example/>B</A>\n" +
+                "<DT><A ADD_DATE=1 HREF=http://c.example/ LAST_MODIFIED=2>C</A>\n" +
+                "<DT><A HREF='http://d.example/\"x\"'>D</A>\n" +
+                "<DT><a href = \"http://e.example/\">E</a>\n" +
+                "<DT><A NAME=\"no href\">F</A>\n" +
+                "</DL><p>\n");
+        assertEquals(4, root.list.size());
+        assertSite("B", "http://b.example/", root.list.get(0));
+        assertSite("C", "http://c.example/", root.list.get(1));
+        assertSite("D", "http://d.example/\"x\"", root.list.get(2));
+        assertSite("E", "http://e.example/", root.list.get(3));
+    }
+
+    @Test
+    public void parse_skipsCommentsAndDeclarations() throws Exception {
+        BookmarkFolder root = parse("<!-- This is an automatically generated file. -->\n" +
+                "<!DOCTYPE something-else>\n" +
+                "<DL><p>\n" +
+                "<!-- <DT><A HREF=\"http://hidden.example/\">hidden</A> -- still a comment -->\n" +
+                "<DT><A HREF=\"http://shown.example/\">shown</A>\n" +
+                "</DL><p>\n");
+        assertEquals(1, root.list.size());
+        assertSite("shown", "http://shown.example/", root.list.get(0));
+    }
+
+    @Test
+    public void parse_decodesTitlesAndUrls() throws Exception {
+        BookmarkFolder root = parse("<DL><p>\n" +
+                "<DT><H3>Tom &amp; Jerry</H3>\n" +
+                "<DL><p>\n" +
+                "<DT><A HREF=\"http://a.example/?a=1&amp;b=2\">  &lt;b&gt; &#12354;&#x3044; </A>\n" +
+                "</DL><p>\n" +
+                "</DL><p>\n");
+        BookmarkFolder folder = assertFolder("Tom & Jerry", 1, root.list.get(0));
+        assertSite("<b> あい", "http://a.example/?a=1&b=2", folder.list.get(0));
+    }
+
+    @Test
+    public void decodeEntities_named() throws Exception {
+        assertEquals("plain", NetscapeBookmarkParser.decodeEntities("plain"));
+        assertEquals("a & b", NetscapeBookmarkParser.decodeEntities("a &amp; b"));
+        assertEquals("<>\"' ", NetscapeBookmarkParser.decodeEntities("&lt;&gt;&quot;&apos;&nbsp;"));
+    }
+
+    @Test
+    public void decodeEntities_numeric() throws Exception {
+        assertEquals("ABC", NetscapeBookmarkParser.decodeEntities("&#65;&#x42;&#X43;"));
+        assertEquals("😀", NetscapeBookmarkParser.decodeEntities("&#x1F600;"));
+        assertEquals("😀", NetscapeBookmarkParser.decodeEntities("&#128512;"));
+    }
+
+    @Test
+    public void decodeEntities_malformedKept() throws Exception {
+        assertEquals("&unknown;", NetscapeBookmarkParser.decodeEntities("&unknown;"));
+        assertEquals("a & b", NetscapeBookmarkParser.decodeEntities("a & b"));
+        assertEquals("&amp", NetscapeBookmarkParser.decodeEntities("&amp"));
+        assertEquals("&&", NetscapeBookmarkParser.decodeEntities("&&amp;"));
+        assertEquals("&#;", NetscapeBookmarkParser.decodeEntities("&#;"));
+        assertEquals("&#x;", NetscapeBookmarkParser.decodeEntities("&#x;"));
+        assertEquals("&#xZZ;", NetscapeBookmarkParser.decodeEntities("&#xZZ;"));
+        assertEquals("&#-1;", NetscapeBookmarkParser.decodeEntities("&#-1;"));
+        assertEquals("&#x110000;", NetscapeBookmarkParser.decodeEntities("&#x110000;"));
+        assertEquals("&#99999999999;", NetscapeBookmarkParser.decodeEntities("&#99999999999;"));
+        assertEquals("&averyverylongname; <", NetscapeBookmarkParser.decodeEntities("&averyverylongname; &lt;"));
+    }
+
+    @Test
+    public void parse_nestedFolders() throws Exception {
+        BookmarkFolder root = parse("<DL><p>\n" +
+                "    <DT><H3 ADD_DATE=\"1\">F1</H3>\n" +
+                "    <DD>description\n" +
+                "    <DL><p>\n" +
+                "        <DT><A HREF=\"http://1/\">one</A>\n" +
+                "        <DT><H3>F2</H3>\n" +
+                "        <DL><p>\n" +
+                "            <DT><A HREF=\"http://2/\">two</A>\n" +
+                "        </DL><p>\n" +
+                "        <DT><A HREF=\"http://3/\">three</A>\n" +
+                "    </DL><p>\n" +
+                "    <DT><A HREF=\"http://4/\">four</A>\n" +
+                "</DL><p>\n");
+        assertEquals(2, root.list.size());
+        BookmarkFolder f1 = assertFolder("F1", 3, root.list.get(0));
+        assertSite("one", "http://1/", f1.list.get(0));
+        BookmarkFolder f2 = assertFolder("F2", 1, f1.list.get(1));
+        assertSite("two", "http://2/", f2.list.get(0));
+        assertSite("three", "http://3/", f1.list.get(2));
+        assertSite("four", "http://4/", root.list.get(1));
+        assertSame(root, f1.parent);
+        assertSame(f1, f2.parent);
+    }
+
+    @Test
+    public void parse_folderWithoutList() throws Exception {
+        BookmarkFolder root = parse("<DL><p>\n" +
+                "    <DT><H3>Empty</H3>\n" +
+                "    <DT><A HREF=\"http://5/\">five</A>\n" +
+                "    <DT><H3>Also empty</H3>\n" +
+                "    <DT><H3>Full</H3>\n" +
+                "    <DL><p>\n" +
+                "        <DT><A HREF=\"http://6/\">six</A>\n" +
+                "    </DL><p>\n" +
+                "    <DT><A HREF=\"http://7/\">seven</A>\n" +
+                "</DL><p>\n");
+        assertEquals(5, root.list.size());
+        assertFolder("Empty", 0, root.list.get(0));
+        assertSite("five", "http://5/", root.list.get(1));
+        assertFolder("Also empty", 0, root.list.get(2));
+        BookmarkFolder full = assertFolder("Full", 1, root.list.get(3));
+        assertSite("six", "http://6/", full.list.get(0));
+        assertSite("seven", "http://7/", root.list.get(4));
+    }
+
+    @Test
+    public void parse_unbalancedListEnd() throws Exception {
+        BookmarkFolder root = parse("<DL><p>\n" +
+                "    <DT><H3>F</H3>\n" +
+                "    <DL><p>\n" +
+                "        <DT><A HREF=\"http://1/\">one</A>\n" +
+                "    </DL><p>\n" +
+                "    </DL><p>\n" +
+                "</DL><p>\n" +
+                "<DT><A HREF=\"http://2/\">two</A>\n" +
+                "<DT><H3>G</H3>\n" +
+                "<DL><p>\n" +
+                "    <DT><A HREF=\"http://3/\">three</A>\n");
+        assertEquals(3, root.list.size());
+        BookmarkFolder f = assertFolder("F", 1, root.list.get(0));
+        assertSite("one", "http://1/", f.list.get(0));
+        assertSite("two", "http://2/", root.list.get(1));
+        BookmarkFolder g = assertFolder("G", 1, root.list.get(2));
+        assertSite("three", "http://3/", g.list.get(0));
+    }
+
+    private static String manySites(int count) {
+        StringBuilder builder = new StringBuilder("<DL><p>\n");
+        for (int i = 0; count > i; i++)
+            builder.append("<DT><A HREF=\"http://").append(i).append("/\">").append(i).append("</A>\n");
+        return builder.append("</DL><p>\n").toString();
+    }
+
+    @Test
+    public void parse_reportsProgress() throws Exception {
+        BookmarkFolder root = new BookmarkFolder("root", null, 1);
+        NetscapeBookmarkParser parser = new NetscapeBookmarkParser(root);
+        final int[] calls = new int[1];
+        parser.setOnProgressListener(new NetscapeBookmarkParser.OnProgressListener() {
+            @Override
+            public boolean onProgress() {
+                calls[0]++;
+                return true;
+            }
+        });
+        assertTrue(parser.parse(new BufferedReader(new StringReader(HEADER + manySites(600)))));
+        assertEquals(2, calls[0]);
+        assertEquals(600, root.list.size());
+    }
+
+    @Test
+    public void parse_canceledByListener() throws Exception {
+        BookmarkFolder root = new BookmarkFolder("root", null, 1);
+        NetscapeBookmarkParser parser = new NetscapeBookmarkParser(root);
+        parser.setOnProgressListener(new NetscapeBookmarkParser.OnProgressListener() {
+            @Override
+            public boolean onProgress() {
+                return false;
+            }
+        });
+        assertFalse(parser.parse(new BufferedReader(new StringReader(HEADER + manySites(600)))));
+        assertEquals(256, root.list.size());
+    }
+}
@@ -0,0 +1,157 @@
+package jp.hazuki.yuzubrowser.search;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jp.hazuki.yuzubrowser.bookmark.BookmarkSite;
+import jp.hazuki.yuzubrowser.search.suggest.Suggestion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocalSuggestIndexTest {
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final long NOW = 1000 * DAY;
+
+    private static void visit(LocalSuggestIndex.Table table, String url, String title, int visits, long time) {
+        for (int i = 0; i < visits; i++)
+            table.visit(url, title, time);
+    }
+
+    private static List<String> query(LocalSuggestIndex.Table table, String query, int limit) {
+        List<String> words = new ArrayList<>();
+        for (Suggestion suggestion : table.query(query, limit, NOW))
+            words.add(suggestion.word);
+        return words;
+    }
+
+    @Test
+    public void query_ranksByFrecency() throws Exception {
+        LocalSuggestIndex.Table table = new LocalSuggestIndex.Table(100);
+        // 5 * 100 * 2
+        visit(table, "http://example.com/a", "A", 5, NOW);
+        // 20 * 10 * 2, an old visit weighs less
+        visit(table, "http://example.com/b", "B", 20, NOW - 100 * DAY);
+        // 3 * 100 * 2
+        visit(table, "https://www.example.org/", "Org", 3, NOW - DAY);
+        // 7 * 100, the title matches but not the url
+        visit(table, "http://foo.com/", "An example", 7, NOW);
+        // 4 * 100 * 2
+        table.search("example query", NOW, 4);
+        visit(table, "http://other.com/", "Other", 50, NOW);
+
+        assertEquals(Arrays.asList("http://example.com/a", "example query", "http://foo.com/",
+                "https://www.example.org/", "http://example.com/b"), query(table, "ex", 10));
+        assertEquals(Arrays.asList("http://example.com/a", "example query"), query(table, "ex", 2));
+        assertEquals(Collections.singletonList("https://www.example.org/"), query(table, "http://www.example.o", 10));
+        assertEquals(Collections.emptyList(), query(table, "  ", 10));
+    }
+
+    @Test
+    public void query_matchesEveryWord() throws Exception {
+        LocalSuggestIndex.Table table = new LocalSuggestIndex.Table(100);
+        visit(table, "http://example.com/news", "Daily News Page", 1, NOW);
+        visit(table, "http://example.com/mail", "Mail Page", 2, NOW);
+        table.search("news today", NOW, 1);
+
+        assertEquals(Collections.singletonList("http://example.com/news"), query(table, "news page", 10));
+        assertEquals(Collections.singletonList("http://example.com/news"), query(table, "DAILY exam", 10));
+        // the query starts with the word, the url does not
+        assertEquals(Arrays.asList("news today", "http://example.com/news"), query(table, "news", 10));
+        // words have to start a word of the url or the title
+        assertEquals(Collections.emptyList(), query(table, "ews", 10));
+    }
+
+    @Test
+    public void query_stopsOnceNoEntryCanBeatTheResults() throws Exception {
+        LocalSuggestIndex.Table table = new LocalSuggestIndex.Table(1000);
+        for (int i = 0; i < 100; i++)
+            visit(table, "http://site" + i + ".com/", null, 100 - i, NOW);
+
+        assertEquals(Arrays.asList("http://site0.com/", "http://site1.com/", "http://site2.com/",
+                "http://site3.com/", "http://site4.com/"), query(table, "site", 5));
+        assertEquals(5, table.getScanned());
+
+        // nothing matches, so every entry is looked at
+        assertEquals(Collections.emptyList(), query(table, "nothing", 5));
+        assertEquals(100, table.getScanned());
+
+        // fewer matches than the limit, so every entry is looked at
+        List<String> found = query(table, "site9", 20);
+        assertEquals(11, found.size());
+        assertEquals("http://site9.com/", found.get(0));
+        assertEquals("http://site99.com/", found.get(10));
+        assertEquals(100, table.getScanned());
+    }
+
+    @Test
+    public void deleteVisits_removesUnusedEntries() throws Exception {
+        LocalSuggestIndex.Table table = new LocalSuggestIndex.Table(100);
+        visit(table, "http://visited.com/", "Site", 1, NOW);
+        visit(table, "http://bookmarked.com/", "Site", 1, NOW);
+        table.setBookmarks(Collections.singletonList(new BookmarkSite("Site", "http://bookmarked.com/", 1)));
+        table.search("site", NOW, 1);
+        assertEquals(3, table.size());
+
+        table.deleteVisits("http://visited.com/");
+        assertEquals(2, table.size());
+        assertEquals(Arrays.asList("http://bookmarked.com/", "site"), query(table, "site", 10));
+
+        table.deleteVisits(null);
+        table.deleteSearches(null);
+        assertEquals(1, table.size());
+        assertEquals(Collections.singletonList("http://bookmarked.com/"), query(table, "site", 10));
+
+        table.setBookmarks(Collections.<BookmarkSite>emptyList());
+        assertEquals(0, table.size());
+        assertEquals(Collections.emptyList(), query(table, "site", 10));
+    }
+
+    @Test
+    public void visit_newTitleReplacesOldWords() throws Exception {
+        LocalSuggestIndex.Table table = new LocalSuggestIndex.Table(100);
+        visit(table, "http://example.com/", "Old Title", 1, NOW);
+        assertEquals(Collections.singletonList("http://example.com/"), query(table, "old", 10));
+
+        // a title without a visit
+        table.visit("http://example.com/", "New Name", 0);
+        assertEquals(Collections.emptyList(), query(table, "old", 10));
+        assertEquals(Collections.singletonList("http://example.com/"), query(table, "name", 10));
+
+        // not in the history
+        table.visit("http://unknown.com/", "Name", 0);
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void trim_leavesOutWorstEntriesButBookmarks() throws Exception {
+        LocalSuggestIndex.Table table = new LocalSuggestIndex.Table(10);
+        table.setBookmarks(Collections.singletonList(new BookmarkSite("Bookmark", "http://bookmark.com/", 1)));
+        for (int i = 0; i < 10; i++)
+            visit(table, "http://site" + i + ".com/", null, 100 - i, NOW);
+        table.trim(NOW);
+        assertTrue(table.isComplete());
+        assertEquals(11, table.size());
+
+        for (int i = 10; i < 100; i++) {
+            visit(table, "http://site" + i + ".com/", null, 100 - i, NOW);
+            table.bound(NOW);
+            assertTrue(table.size() <= 21);
+        }
+        table.trim(NOW);
+
+        assertFalse(table.isComplete());
+        assertEquals(11, table.size());
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            expected.add("http://site" + i + ".com/");
+        assertEquals(expected, query(table, "site", 20));
+        assertEquals(Collections.singletonList("http://bookmark.com/"), query(table, "bookmark", 10));
+        assertEquals(Collections.emptyList(), query(table, "site99", 10));
+    }
+}
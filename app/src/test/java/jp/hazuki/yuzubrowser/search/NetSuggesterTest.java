@@ -0,0 +1,236 @@
+package jp.hazuki.yuzubrowser.search;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import jp.hazuki.yuzubrowser.search.suggest.ISuggest;
+import jp.hazuki.yuzubrowser.search.suggest.Suggestion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs against a local server answering a JSON array of words per query.
+ */
+public class NetSuggesterTest {
+    private static final long LONG_TTL = 60 * 1000;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    /* query -> body, queries not in it get an error */
+    private final ConcurrentHashMap<String, String> bodies = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> delays = new ConcurrentHashMap<>();
+
+    private final ISuggest engine = new ISuggest() {
+        @Override
+        public URL getUrl(String query) throws IOException {
+            return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/?q=" + URLEncoder.encode(query, "UTF-8"));
+        }
+
+        @Override
+        public List<Suggestion> getSuggestions(JsonParser parser) throws IOException {
+            List<Suggestion> list = new ArrayList<>();
+            if (parser.nextToken() != JsonToken.START_ARRAY) return null;
+            while (parser.nextToken() == JsonToken.VALUE_STRING)
+                list.add(new Suggestion(parser.getText()));
+            return list;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String query = URLDecoder.decode(exchange.getRequestURI().getRawQuery().substring(2), "UTF-8");
+                requests.add(query);
+                Long delay = delays.get(query);
+                if (delay != null) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                String body = bodies.get(query);
+                byte[] bytes = (body != null ? body : "error").getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(body != null ? 200 : 429, bytes.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(bytes);
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private NetSuggester create(long ttl, long emptyTtl) {
+        return new NetSuggester(engine, new JsonFactory(), ttl, emptyTtl);
+    }
+
+    private static List<String> words(List<Suggestion> list) {
+        List<String> words = new ArrayList<>();
+        for (Suggestion suggestion : list)
+            words.add(suggestion.word);
+        return words;
+    }
+
+    @Test
+    public void get_cachesResults() throws Exception {
+        bodies.put("abc", "[\"abc\",\"abcd\"]");
+        NetSuggester suggester = create(LONG_TTL, LONG_TTL);
+
+        assertEquals(Arrays.asList("abc", "abcd"), words(suggester.get("abc", null)));
+        List<Suggestion> second = suggester.get("abc", null);
+        assertEquals(Arrays.asList("abc", "abcd"), words(second));
+        assertEquals(1, requests.size());
+
+        // the caller may modify what it gets
+        second.clear();
+        assertEquals(2, suggester.get("abc", null).size());
+    }
+
+    @Test
+    public void get_resultsExpire() throws Exception {
+        bodies.put("abc", "[\"abc\"]");
+        NetSuggester suggester = create(200, 200);
+
+        suggester.get("abc", null);
+        suggester.get("abc", null);
+        assertEquals(1, requests.size());
+        Thread.sleep(300);
+        suggester.get("abc", null);
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void get_failureFallsBackToPrefix() throws Exception {
+        bodies.put("ab", "[\"abc\",\"Abd\",\"xyz\"]");
+        NetSuggester suggester = create(LONG_TTL, LONG_TTL);
+
+        suggester.get("ab", null);
+        // "abd" is answered with an error
+        assertEquals(Arrays.asList("Abd"), words(suggester.get("abd", null)));
+        assertEquals(Arrays.asList("ab", "abd"), requests);
+    }
+
+    @Test
+    public void get_failureWithoutPrefix() throws Exception {
+        assertNull(create(LONG_TTL, LONG_TTL).get("nothing", null));
+    }
+
+    @Test
+    public void get_emptyPrefixAnswersLongerQueries() throws Exception {
+        bodies.put("zq", "[]");
+        bodies.put("zqx", "[\"zqx\"]");
+        NetSuggester suggester = create(LONG_TTL, LONG_TTL);
+
+        assertTrue(suggester.get("zq", null).isEmpty());
+        assertTrue(suggester.get("zqx", null).isEmpty());
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void get_emptyPrefixTrustedOnlyForAWhile() throws Exception {
+        bodies.put("zq", "[]");
+        bodies.put("zqx", "[\"zqx\"]");
+        NetSuggester suggester = create(LONG_TTL, 200);
+
+        assertTrue(suggester.get("zq", null).isEmpty());
+        assertTrue(suggester.get("zqx", null).isEmpty());
+        Thread.sleep(300);
+        assertEquals(Arrays.asList("zqx"), words(suggester.get("zqx", null)));
+        assertEquals(Arrays.asList("zq", "zqx"), requests);
+    }
+
+    @Test
+    public void get_supersededWhileWaiting() throws Exception {
+        bodies.put("a1", "[\"a1\"]");
+        bodies.put("a12", "[\"a12\"]");
+        final NetSuggester suggester = create(LONG_TTL, LONG_TTL);
+
+        final List<List<Suggestion>> first = new ArrayList<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    first.add(suggester.get("a1", null));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        Thread.sleep(20);
+        assertEquals(Arrays.asList("a12"), words(suggester.get("a12", null)));
+        thread.join();
+
+        assertNull(first.get(0));
+        assertEquals(Arrays.asList("a12"), requests);
+    }
+
+    @Test
+    public void get_abortsConnectedRequest() throws Exception {
+        bodies.put("slow", "[\"slow\"]");
+        bodies.put("slower", "[\"slower\"]");
+        delays.put("slow", 3000L);
+        final NetSuggester suggester = create(LONG_TTL, LONG_TTL);
+
+        final List<List<Suggestion>> first = new ArrayList<>();
+        final long[] took = new long[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    first.add(suggester.get("slow", null));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                took[0] = (System.nanoTime() - start) / 1000000;
+            }
+        });
+        thread.start();
+        while (!requests.contains("slow"))
+            Thread.sleep(10);
+
+        assertEquals(Arrays.asList("slower"), words(suggester.get("slower", null)));
+        thread.join();
+
+        assertNull(first.get(0));
+        assertTrue("took " + took[0] + "ms", took[0] < 2000);
+    }
+}
@@ -0,0 +1,157 @@
+package jp.hazuki.yuzubrowser.userjs;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class UserScriptDispatcherTest {
+
+    private static final String[] URLS = {
+            "http://example.com/",
+            "https://example.com/page?q=1",
+            "http://EXAMPLE.com/Upper",
+            "http://www.example.com/",
+            "http://example.com",
+            "http://example.com:8080/",
+            "http://example.com.evil.com/",
+            "http://evil.com/?http://example.com/",
+            "https://example.org/",
+            "https://a.example.org/",
+            "https://a.b.Example.ORG/deep/path",
+            "https://notexample.org/",
+            "https://sub.example.net/path/x",
+            "https://sub.example.net/other",
+            "http://foo.com/bar",
+            "http://foo.com/private/x",
+            "ftp://foo.com/bar",
+            "file:///sdcard/index.html",
+            "about:blank",
+            "",
+    };
+
+    private static List<UserScript> createScripts() {
+        return Arrays.asList(
+                script("@match http://example.com/*"),
+                script("@match *://*.example.org/*"),
+                script("@match https://Sub.Example.NET/path*"),
+                script("@match http://example.com/*", "@match http://*/*"),
+                script("@match *://*/*"),
+                script("@match <all_urls>"),
+                script("@match file:///*"),
+                script("@include *"),
+                script("@include http://foo.com/*", "@exclude http://foo.com/private/*"),
+                script("@match *://*.example.org/*", "@exclude *://a.example.org/*"),
+                script("@match http://example.com/*", "@run-at document-start"),
+                script("@include *example*", "@run-at document-start"),
+                script("@match *://*.example.org/*", "@include http://foo.com/*"),
+                script("@name no include"));
+    }
+
+    private static UserScript script(String... headers) {
+        StringBuilder builder = new StringBuilder("// ==UserScript==\n");
+        for (String header : headers)
+            builder.append("// ").append(header).append('\n');
+        builder.append("// ==/UserScript==\n");
+        builder.append("console.log(1);\n");
+        return new UserScript(builder.toString());
+    }
+
+    /* the loop applyUserScript used to run over every script */
+    private static List<UserScript> linearMatches(List<UserScript> scripts, String url, boolean isStart) {
+        List<UserScript> list = new ArrayList<>();
+        SCRIPT_LOOP:
+        for (UserScript script : scripts) {
+            if (isStart != script.isRunStart())
+                continue;
+
+            if (script.getExclude() != null)
+                for (Pattern pattern : script.getExclude()) {
+                    if (pattern.matcher(url).find())
+                        continue SCRIPT_LOOP;
+                }
+
+            if (script.getInclude() != null)
+                for (Pattern pattern : script.getInclude()) {
+                    if (pattern.matcher(url).find()) {
+                        list.add(script);
+                        break;
+                    }
+                }
+        }
+        return list;
+    }
+
+    @Test
+    public void getMatches_sameAsLinearLoop() throws Exception {
+        List<UserScript> scripts = createScripts();
+        UserScriptDispatcher dispatcher = new UserScriptDispatcher(scripts);
+
+        for (String url : URLS) {
+            assertEquals(url, linearMatches(scripts, url, true), dispatcher.getMatches(url, true));
+            assertEquals(url, linearMatches(scripts, url, false), dispatcher.getMatches(url, false));
+        }
+    }
+
+    @Test
+    public void getMatches_manyHosts() throws Exception {
+        // enough hosts to grow the tables
+        List<UserScript> scripts = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            scripts.add(script("@match http://host" + i + ".com/*"));
+            scripts.add(script("@match *://*.domain" + i + ".net/*"));
+        }
+        UserScriptDispatcher dispatcher = new UserScriptDispatcher(scripts);
+
+        for (int i = 0; i < 110; i++) {
+            String[] urls = {
+                    "http://host" + i + ".com/",
+                    "http://HOST" + i + ".COM/x",
+                    "https://a.domain" + i + ".net/",
+                    "https://domain" + i + ".net/",
+                    "http://host" + i + ".com.domain" + i + ".net/",
+            };
+            for (String url : urls) {
+                assertEquals(url, linearMatches(scripts, url, false), dispatcher.getMatches(url, false));
+            }
+        }
+    }
+
+    @Test
+    public void getMatches_match() throws Exception {
+        UserScript script = script("@match *://*.example.org/*");
+        UserScriptDispatcher dispatcher = new UserScriptDispatcher(Arrays.asList(script));
+
+        assertEquals(Arrays.asList(script), dispatcher.getMatches("https://a.example.org/", false));
+        assertEquals(Arrays.asList(script), dispatcher.getMatches("http://www.example.org/x", false));
+        assertEquals(0, dispatcher.getMatches("https://example.org.evil.com/", false).size());
+        assertEquals(0, dispatcher.getMatches("https://a.example.org/", true).size());
+    }
+
+    @Test
+    public void getMatchHost() throws Exception {
+        assertEquals("example.com", UserScript.getMatchHost("http://example.com/*"));
+        assertEquals("example.com", UserScript.getMatchHost("*://Example.COM/path"));
+        assertEquals("*.example.org", UserScript.getMatchHost("https://*.example.org/*"));
+        assertEquals("", UserScript.getMatchHost("file:///*"));
+        assertNull(UserScript.getMatchHost("*://*/*"));
+        assertNull(UserScript.getMatchHost("<all_urls>"));
+        assertNull(UserScript.getMatchHost("http://example.com"));
+        assertNull(UserScript.getMatchHost("http*://example.com/*"));
+        assertNull(UserScript.getMatchHost("http://exa*mple.com/*"));
+        assertNull(UserScript.getMatchHost("http://example.com:8080/*"));
+    }
+
+    @Test
+    public void getIncludeHosts() throws Exception {
+        assertEquals(Arrays.asList("example.com", "*.example.org"),
+                script("@match http://example.com/*", "@match *://*.example.org/*").getIncludeHosts());
+        assertNull(script("@match http://example.com/*", "@match *://*/*").getIncludeHosts());
+        assertNull(script("@match http://example.com/*", "@include http://foo.com/*").getIncludeHosts());
+    }
+}
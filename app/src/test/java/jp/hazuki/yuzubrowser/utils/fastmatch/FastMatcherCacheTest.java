@@ -0,0 +1,214 @@
+package jp.hazuki.yuzubrowser.utils.fastmatch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jp.hazuki.yuzubrowser.utils.net.RequestUrl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FastMatcherCacheTest {
+
+    private static FastMatcher create(SimpleCountMatcher matcher, int id, int count) {
+        matcher.setId(id);
+        matcher.setCount(count);
+        matcher.setTime(1000 + id);
+        return matcher;
+    }
+
+    private static RequestUrl request(String url) {
+        int start = url.indexOf("://") + 3;
+        int end = url.indexOf('/', start);
+        if (end < 0) end = url.length();
+        return new RequestUrl(url, url.substring(start, end), url.substring(end));
+    }
+
+    private static FastMatcherList createList() {
+        FastMatcherList list = new FastMatcherList();
+        list.setDbTime(12345);
+        int id = 0;
+        list.add(create(new SimpleHost("ads.example.com"), id++, 10));
+        list.add(create(new RegexHost("^ad[0-9]+\\."), id++, 9));
+        list.add(create(new SimpleHost("広告.example.jp"), id++, 8));
+        list.add(create(new ContainsHost("tracker."), id++, 7));
+        list.add(create(new SimpleUrl("/バナー/"), id++, 6));
+        list.add(create(new SimpleHost("ads.example.co"), id++, 5));
+        list.add(create(new SimpleHost("😀.example.net"), id++, 4));
+        list.add(create(new RegexUrl("\\.gif\\?ref="), id++, 3));
+        list.add(create(new SimpleHost("example.org"), id++, 2));
+        list.add(create(new SimpleHost("ads.example.com"), id++, 1));
+        return list;
+    }
+
+    private static ByteBuffer write(FastMatcherList list) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream os = new DataOutputStream(bytes)) {
+            FastMatcherCache.write(os, list);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * A single record with the given pattern bytes.
+     */
+    private static FastMatcherRecords record(byte[] pattern) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream os = new DataOutputStream(bytes)) {
+            os.writeByte(FastMatcher.TYPE_SIMPLE_HOST);
+            os.writeInt(1);
+            os.writeInt(0);
+            os.writeLong(0);
+            os.writeInt(pattern.length);
+            os.write(pattern);
+        }
+        return FastMatcherRecords.read(ByteBuffer.wrap(bytes.toByteArray()), 1);
+    }
+
+    @Test
+    public void read_makesMatchersOnlyWhenNeeded() throws Exception {
+        FastMatcherList read = FastMatcherCache.read(write(createList()));
+        FastMatcherRecords records = read.getRecords();
+        assertEquals(12345, read.getDbTime());
+        assertEquals(10, records.size());
+        assertEquals(0, records.getCreatedCount());
+
+        // a literal host is found in place, the regexes after it are not needed
+        assertTrue(read.match(request("http://ads.example.com/")));
+        assertEquals(0, records.getCreatedCount());
+        assertFalse(read.match(request("http://ads.example.net/")));
+        assertEquals(2, records.getCreatedCount());
+        assertTrue(read.match(request("http://ads.example.com/x")));
+        assertEquals(2, records.getCreatedCount());
+
+        // the hit is folded into a matcher made from the record
+        assertTrue(read.drainHits());
+        assertEquals(3, records.getCreatedCount());
+        FastMatcher hit = records.get(0);
+        assertEquals(0, hit.getId());
+        assertEquals(12, hit.getFrequency());
+        assertTrue(hit.isUpdate());
+
+        List<FastMatcher> matchers = read.getMatcherList();
+        assertEquals(10, records.getCreatedCount());
+        assertSame(hit, matchers.get(0));
+    }
+
+    @Test
+    public void read_sameAsWritten() throws Exception {
+        FastMatcherList list = createList();
+        FastMatcherList read = FastMatcherCache.read(write(list));
+
+        String[] urls = {
+                "http://ads.example.com/",
+                "http://ad12.example.com/",
+                "http://広告.example.jp/",
+                "http://広告.example.j/",
+                "http://cdn.tracker.net/",
+                "http://www.example.net/バナー/1.png",
+                "http://ads.example.co/",
+                "http://😀.example.net/",
+                "http://😁.example.net/",
+                "http://www.example.net/p.gif?ref=1",
+                "https://example.org/",
+                "https://example.or/",
+                "http://www.example.net/",
+        };
+        for (String url : urls) {
+            assertEquals(url, list.match(request(url)), read.match(request(url)));
+        }
+        list.drainHits();
+        read.drainHits();
+
+        List<FastMatcher> expected = list.getMatcherList();
+        List<FastMatcher> actual = read.getMatcherList();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; expected.size() > i; i++) {
+            assertEquals(expected.get(i).getClass(), actual.get(i).getClass());
+            assertEquals(expected.get(i).getPattern(), actual.get(i).getPattern());
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+            assertEquals(expected.get(i).getFrequency(), actual.get(i).getFrequency());
+            assertEquals(expected.get(i).isUpdate(), actual.get(i).isUpdate());
+            if (!expected.get(i).isUpdate())
+                assertEquals(expected.get(i).getTime(), actual.get(i).getTime());
+        }
+    }
+
+    @Test
+    public void read_sortedCopyKeepsCounting() throws Exception {
+        FastMatcherList read = FastMatcherCache.read(write(createList()));
+        assertTrue(read.match(request("http://example.org/")));
+        read.drainHits();
+
+        FastMatcherList sorted = new FastMatcherList(read);
+        sorted.sort();
+        FastMatcher matcher = null;
+        for (FastMatcher item : sorted.getMatcherList()) {
+            if (item.getPattern().equals("example.org"))
+                matcher = item;
+        }
+        assertNotNull(matcher);
+        assertEquals(3, matcher.getFrequency());
+
+        // hits of the old list still reach the same matcher
+        assertTrue(read.match(request("http://example.org/")));
+        assertTrue(sorted.match(request("http://example.org/")));
+        sorted.drainHits();
+        assertEquals(5, matcher.getFrequency());
+    }
+
+    @Test
+    public void read_rejectsBrokenCache() throws Exception {
+        byte[] bytes = write(createList()).array();
+        for (int length : new int[]{0, 19, 30, bytes.length - 1}) {
+            try {
+                FastMatcherCache.read(ByteBuffer.wrap(Arrays.copyOf(bytes, length)));
+                fail("length " + length);
+            } catch (FastMatcherCache.IllegalCacheException e) {
+                // expected
+            }
+        }
+
+        // type of the first record
+        bytes[20] = 9;
+        try {
+            FastMatcherCache.read(ByteBuffer.wrap(bytes));
+            fail();
+        } catch (FastMatcherCache.IllegalCacheException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void patternEquals_comparesInPlace() throws Exception {
+        List<String> patterns = new ArrayList<>(Arrays.asList(
+                "", "a", "ab", "広告", "é", "😀", "a😀b"));
+        for (String pattern : patterns) {
+            FastMatcherRecords records = record(pattern.getBytes(StandardCharsets.UTF_8));
+            for (String text : patterns)
+                assertEquals(pattern + " " + text, pattern.equals(text), records.patternEquals(0, text));
+            assertFalse(records.patternEquals(0, pattern + "x"));
+            assertEquals(pattern, records.getPattern(0));
+        }
+
+        // not UTF-8 as the cache writes it, compared as decoded
+        byte[] broken = {'a', (byte) 0xff, 'b'};
+        FastMatcherRecords records = record(broken);
+        String decoded = new String(broken, StandardCharsets.UTF_8);
+        assertTrue(records.patternEquals(0, decoded));
+        assertFalse(records.patternEquals(0, "ab"));
+        assertNotNull(records.get(0));
+        assertEquals(decoded, records.get(0).getPattern());
+    }
+}
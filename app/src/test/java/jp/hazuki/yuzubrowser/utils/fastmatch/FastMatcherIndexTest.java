@@ -0,0 +1,266 @@
+package jp.hazuki.yuzubrowser.utils.fastmatch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import jp.hazuki.yuzubrowser.utils.net.RequestUrl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FastMatcherIndexTest {
+
+    private static <T extends SimpleCountMatcher> T withId(T matcher, int id, int count) {
+        matcher.setId(id);
+        matcher.setCount(count);
+        matcher.setTime(1000 + id);
+        return matcher;
+    }
+
+    private static RequestUrl request(String url) {
+        int start = url.indexOf("://");
+        if (start < 0)
+            return new RequestUrl(url, null, null);
+        start += 3;
+        int end = url.indexOf('/', start);
+        if (end < 0) end = url.length();
+        return new RequestUrl(url, url.substring(start, end), url.substring(end));
+    }
+
+    /**
+     * What the list did before it was compiled: the first matcher which matches.
+     */
+    private static FastMatcher linearScan(List<FastMatcher> list, RequestUrl url) {
+        for (FastMatcher matcher : list) {
+            if (matcher.match(url))
+                return matcher;
+        }
+        return null;
+    }
+
+    /**
+     * Matches with the index and returns the matcher the hit was counted for.
+     */
+    private static FastMatcher matchAndGetHit(List<FastMatcher> list, FastMatcherIndex index,
+                                              HitCounter counter, RequestUrl url) {
+        int[] before = new int[list.size()];
+        for (int i = 0; list.size() > i; i++)
+            before[i] = list.get(i).getFrequency();
+
+        boolean matched = index.match(url);
+        counter.drain();
+
+        FastMatcher hit = null;
+        for (int i = 0; list.size() > i; i++) {
+            int diff = list.get(i).getFrequency() - before[i];
+            if (diff == 0) continue;
+            assertEquals(1, diff);
+            assertNull("counted twice", hit);
+            hit = list.get(i);
+        }
+        assertEquals(matched, hit != null);
+        return hit;
+    }
+
+    private static List<FastMatcher> mixedList() {
+        List<FastMatcher> list = new ArrayList<>();
+        int id = 0;
+        list.add(withId(new SimpleHost("ads.example.com"), id++, 10));
+        list.add(withId(new ContainsHost("tracker."), id++, 9));
+        list.add(withId(new SimpleUrl("/banner/"), id++, 8));
+        list.add(withId(new RegexHost("^ad[0-9]+\\."), id++, 7));
+        list.add(withId(new RegexUrl("\\.gif\\?ref="), id++, 6));
+        list.add(withId(new ContainsHost("ads."), id++, 5));
+        list.add(withId(new SimpleUrl("/ad.js"), id++, 4));
+        list.add(withId(new SimpleHost("example.org"), id++, 3));
+        list.add(withId(new SimpleUrl("ad"), id++, 2));
+        list.add(withId(new SimpleHost("ads.example.com"), id++, 1));
+        list.add(withId(new ContainsHost("metrics"), id++, 0));
+        list.add(withId(new RegexHost("^ad[0-9]+\\.", true), id++, 0));
+        return list;
+    }
+
+    @Test
+    public void match_sameAsLinearScan() throws Exception {
+        List<FastMatcher> list = mixedList();
+        HitCounter counter = new HitCounter(new FastMatcherRecords(list));
+        FastMatcherIndex index = new FastMatcherIndex(new FastMatcherRecords(list), counter);
+
+        String[] urls = {
+                "http://ads.example.com/",
+                "http://ads.example.com/banner/top.png",
+                "http://cdn.tracker.net/ads.example.com",
+                "https://example.org/banner/x.png",
+                "https://example.org/",
+                "https://sub.example.org/",
+                "http://ad12.example.net/p.gif?ref=1",
+                "http://www.example.net/p.gif?ref=1",
+                "http://static.example.net/js/ad.js",
+                "http://static.example.net/load",
+                "http://www.example.net/",
+                "http://metrics.example.net/",
+                "http://myads.example.net/",
+                "data:text/html,tracker.ad",
+                "about:blank",
+        };
+        for (String url : urls) {
+            RequestUrl request = request(url);
+            assertSame(url, linearScan(list, request), matchAndGetHit(list, index, counter, request));
+        }
+    }
+
+    @Test
+    public void match_randomListsSameAsLinearScan() throws Exception {
+        Random random = new Random(3);
+        String[] hosts = {"a.com", "b.com", "ab.com", "a.b.com", "ba.net", "x.ab.org"};
+        String[] parts = {"a", "b", "ab", "ba", ".com", "/x", "x/", "ab.c"};
+        for (int round = 0; 100 > round; round++) {
+            List<FastMatcher> list = new ArrayList<>();
+            for (int i = 0; 20 > i; i++) {
+                SimpleCountMatcher matcher;
+                switch (random.nextInt(5)) {
+                    case 0:
+                        matcher = new SimpleHost(hosts[random.nextInt(hosts.length)]);
+                        break;
+                    case 1:
+                        matcher = new ContainsHost(parts[random.nextInt(parts.length)]);
+                        break;
+                    case 2:
+                        matcher = new SimpleUrl(parts[random.nextInt(parts.length)]);
+                        break;
+                    case 3:
+                        matcher = new RegexHost("^" + parts[random.nextInt(parts.length)].replace(".", "\\."));
+                        break;
+                    default:
+                        matcher = new RegexUrl(parts[random.nextInt(parts.length)].replace(".", "\\.") + "$");
+                        break;
+                }
+                // some ids are shared, as the same rule can be listed twice
+                list.add(withId(matcher, random.nextInt(15), 0));
+            }
+            HitCounter counter = new HitCounter(new FastMatcherRecords(list));
+            FastMatcherIndex index = new FastMatcherIndex(new FastMatcherRecords(list), counter);
+
+            for (int n = 0; 50 > n; n++) {
+                String url = "http://" + hosts[random.nextInt(hosts.length)] + "/"
+                        + parts[random.nextInt(parts.length)] + parts[random.nextInt(parts.length)];
+                RequestUrl request = request(url);
+                FastMatcher expected = linearScan(list, request);
+                FastMatcher hit = matchAndGetHit(list, index, counter, request);
+                if (expected == null) {
+                    assertNull(url, hit);
+                } else {
+                    // hits of a shared id go to its first matcher
+                    assertEquals(url, expected.getId(), hit.getId());
+                    for (FastMatcher matcher : list) {
+                        if (matcher.getId() == expected.getId()) {
+                            assertSame(url, matcher, hit);
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void match_firstInListOrder() throws Exception {
+        RequestUrl request = request("http://ads.example.com/banner/ad.js");
+
+        List<FastMatcher> list = new ArrayList<>();
+        list.add(withId(new SimpleUrl("/ad.js"), 1, 0));
+        list.add(withId(new ContainsHost("ads."), 2, 0));
+        list.add(withId(new SimpleHost("ads.example.com"), 3, 0));
+        HitCounter counter = new HitCounter(new FastMatcherRecords(list));
+        assertEquals(1, matchAndGetHit(list, new FastMatcherIndex(new FastMatcherRecords(list), counter), counter, request).getId());
+
+        list = new ArrayList<>();
+        list.add(withId(new SimpleHost("ads.example.com"), 3, 0));
+        list.add(withId(new ContainsHost("ads."), 2, 0));
+        list.add(withId(new SimpleUrl("/ad.js"), 1, 0));
+        counter = new HitCounter(new FastMatcherRecords(list));
+        assertEquals(3, matchAndGetHit(list, new FastMatcherIndex(new FastMatcherRecords(list), counter), counter, request).getId());
+
+        // a regex before the literals is tried first, one after them is not needed
+        list = new ArrayList<>();
+        list.add(withId(new RegexUrl("banner/ad"), 4, 0));
+        list.add(withId(new SimpleHost("ads.example.com"), 3, 0));
+        list.add(withId(new RegexHost("^ads\\."), 5, 0));
+        counter = new HitCounter(new FastMatcherRecords(list));
+        assertEquals(4, matchAndGetHit(list, new FastMatcherIndex(new FastMatcherRecords(list), counter), counter, request).getId());
+
+        list.remove(0);
+        counter = new HitCounter(new FastMatcherRecords(list));
+        assertEquals(3, matchAndGetHit(list, new FastMatcherIndex(new FastMatcherRecords(list), counter), counter, request).getId());
+    }
+
+    @Test
+    public void match_keepsIdsAndCounts() throws Exception {
+        List<FastMatcher> list = mixedList();
+        HitCounter counter = new HitCounter(new FastMatcherRecords(list));
+        FastMatcherIndex index = new FastMatcherIndex(new FastMatcherRecords(list), counter);
+
+        assertTrue(index.match(request("http://ads.example.com/")));
+        assertTrue(index.match(request("http://ads.example.com/banner/")));
+        assertTrue(index.match(request("http://static.example.net/banner/")));
+        assertFalse(index.match(request("http://www.example.net/")));
+        assertTrue(counter.drain());
+        assertFalse(counter.drain());
+
+        for (int i = 0; list.size() > i; i++) {
+            FastMatcher matcher = list.get(i);
+            assertEquals(i, matcher.getId());
+            int initial = mixedList().get(i).getFrequency();
+            if (i == 0) {
+                assertEquals(initial + 2, matcher.getFrequency());
+                assertTrue(matcher.isUpdate());
+            } else if (i == 2) {
+                assertEquals(initial + 1, matcher.getFrequency());
+                assertTrue(matcher.getTime() > 1000 + i);
+            } else {
+                assertEquals(initial, matcher.getFrequency());
+                assertEquals(1000 + i, matcher.getTime());
+                assertFalse(matcher.isUpdate());
+            }
+        }
+    }
+
+    @Test
+    public void read_sameAsWritten() throws Exception {
+        List<FastMatcher> list = mixedList();
+        FastMatcherRecords records = new FastMatcherRecords(list);
+        HitCounter counter = new HitCounter(records);
+        FastMatcherIndex index = new FastMatcherIndex(records, counter);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream os = new DataOutputStream(bytes)) {
+            index.write(os);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        FastMatcherIndex read = FastMatcherIndex.read(buffer, records, counter);
+        assertEquals(0, buffer.remaining());
+
+        String[] urls = {
+                "http://ads.example.com/",
+                "http://cdn.tracker.net/",
+                "https://example.org/",
+                "http://ad12.example.net/",
+                "http://static.example.net/js/ad.js",
+                "http://www.example.net/",
+                "data:text/html,metrics",
+        };
+        for (String url : urls) {
+            RequestUrl request = request(url);
+            assertSame(url, matchAndGetHit(list, index, counter, request), matchAndGetHit(list, read, counter, request));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package jp.hazuki.yuzubrowser.utils.fastmatch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class StringAutomatonTest {
+
+    private static StringAutomaton build(String... patterns) {
+        StringAutomaton.Builder builder = new StringAutomaton.Builder();
+        for (int i = 0; patterns.length > i; i++)
+            builder.add(patterns[i], i);
+        return builder.build();
+    }
+
+    private static String randomString(Random random, int maxLength) {
+        int length = random.nextInt(maxLength + 1);
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; length > i; i++)
+            builder.append((char) ('a' + random.nextInt(3)));
+        return builder.toString();
+    }
+
+    @Test
+    public void empty_neverMatches() throws Exception {
+        StringAutomaton automaton = new StringAutomaton.Builder().build();
+        assertEquals(StringAutomaton.NO_MATCH, automaton.findMin("anything"));
+        assertEquals(StringAutomaton.NO_MATCH, automaton.findMin(""));
+    }
+
+    @Test
+    public void findMin_returnsSmallestValueContained() throws Exception {
+        StringAutomaton automaton = build("abc", "bc", "c");
+        assertEquals(0, automaton.findMin("xabcx"));
+        assertEquals(1, automaton.findMin("xbcx"));
+        assertEquals(2, automaton.findMin("xcx"));
+        assertEquals(StringAutomaton.NO_MATCH, automaton.findMin("abx"));
+    }
+
+    @Test
+    public void findMin_overlappingPatterns() throws Exception {
+        StringAutomaton automaton = build("hers", "she", "his", "he");
+        assertEquals(0, automaton.findMin("ushers"));
+        assertEquals(1, automaton.findMin("ushe"));
+        assertEquals(2, automaton.findMin("ahisa"));
+        assertEquals(3, automaton.findMin("ahe"));
+    }
+
+    @Test
+    public void findMin_followsFailLinks() throws Exception {
+        // "abc" has no 'd' child, the match goes on from "bc"
+        StringAutomaton automaton = build("bcd", "abce");
+        assertEquals(0, automaton.findMin("abcd"));
+        assertEquals(1, automaton.findMin("abce"));
+    }
+
+    @Test
+    public void add_duplicateKeepsSmallestValue() throws Exception {
+        StringAutomaton.Builder builder = new StringAutomaton.Builder();
+        builder.add("ad", 5);
+        builder.add("ad", 3);
+        builder.add("ad", 7);
+        builder.add("", 0);
+        assertEquals(3, builder.build().findMin("load"));
+    }
+
+    @Test
+    public void findMin_sameAsBruteForce() throws Exception {
+        Random random = new Random(1);
+        for (int round = 0; 200 > round; round++) {
+            String[] patterns = new String[1 + random.nextInt(30)];
+            StringAutomaton.Builder builder = new StringAutomaton.Builder();
+            for (int i = 0; patterns.length > i; i++) {
+                patterns[i] = randomString(random, 4);
+                builder.add(patterns[i], i);
+            }
+            StringAutomaton automaton = builder.build();
+
+            for (int n = 0; 50 > n; n++) {
+                String text = randomString(random, 20);
+                int expected = StringAutomaton.NO_MATCH;
+                for (int i = 0; patterns.length > i; i++) {
+                    if (!patterns[i].isEmpty() && text.contains(patterns[i])) {
+                        expected = i;
+                        break;
+                    }
+                }
+                assertEquals(text, expected, automaton.findMin(text));
+            }
+        }
+    }
+
+    @Test
+    public void read_sameAsWritten() throws Exception {
+        Random random = new Random(2);
+        StringAutomaton.Builder builder = new StringAutomaton.Builder();
+        for (int i = 0; 50 > i; i++)
+            builder.add(randomString(random, 5), i);
+        StringAutomaton automaton = builder.build();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream os = new DataOutputStream(bytes)) {
+            automaton.write(os);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        StringAutomaton read = StringAutomaton.read(buffer, 50);
+        assertEquals(0, buffer.remaining());
+
+        for (int n = 0; 500 > n; n++) {
+            String text = randomString(random, 20);
+            assertEquals(text, automaton.findMin(text), read.findMin(text));
+        }
+    }
+
+    @Test(expected = FastMatcherCache.IllegalCacheException.class)
+    public void read_rejectsValuesOutOfRange() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream os = new DataOutputStream(bytes)) {
+            build("ad", "ads", "banner").write(os);
+        }
+        StringAutomaton.read(ByteBuffer.wrap(bytes.toByteArray()), 2);
+    }
+}